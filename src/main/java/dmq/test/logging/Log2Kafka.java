@@ -11,6 +11,8 @@ import java.util.List;
 // 配置示例：log2kafka_uri=kafka://192.168.0.1:9090/topic
 public class Log2Kafka {
     public static final String LOG2KAFKA_URI= "log2kafka_uri";
+    public static final String LOG2KAFKA_FILTER= "log2kafka_filter";// logger名称的过滤规则（见LoggerNameFilter）
+    public static final String LOG2KAFKA_KEY= "log2kafka_key";// 日志的key，决定日志进入的分区（见KeyStrategy）
 
     private final Level level;
     private final String uri;
@@ -34,6 +36,9 @@ public class Log2Kafka {
             appenderList.add(kafkaAppender);
             kafkaAppender.setName(uri);
             kafkaAppender.setThreshold(level);
+            kafkaAppender.setLoggerFilter(System.getProperty(LOG2KAFKA_FILTER));
+            if(System.getProperty(LOG2KAFKA_KEY) != null)
+                kafkaAppender.setKeyStrategy(System.getProperty(LOG2KAFKA_KEY));
             //mongoAppender.putExtraElement("hello", "log2mongo_test");
             //mongoAppender.renameSaveTime("save_time");
             Logger.getRootLogger().addAppender(kafkaAppender);
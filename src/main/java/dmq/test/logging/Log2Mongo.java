@@ -9,6 +9,7 @@ import org.apache.log4j.Logger;
 // 配置示例：log2mongo_uri=mongodb://192.168.0.1:27017/database.collection
 public class Log2Mongo {
     public static final String LOG2MONGO_URI= "log2mongo_uri";
+    public static final String LOG2MONGO_FILTER= "log2mongo_filter";// logger名称的过滤规则（见LoggerNameFilter）
 
     private final Level level;
     private final String uri;
@@ -30,6 +31,7 @@ public class Log2Mongo {
             mongoAppender = new MongoAppender(uri);
             mongoAppender.setName(uri);
             mongoAppender.setThreshold(level);
+            mongoAppender.setLoggerFilter(System.getProperty(LOG2MONGO_FILTER));
             //mongoAppender.putExtraElement("hello", "log2mongo_test");
             //mongoAppender.renameSaveTime("save_time");
             Logger.getRootLogger().addAppender(mongoAppender);
@@ -0,0 +1,77 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.TimeUnit;
+
+// 根据BufferHandler.processBuffer的耗时与缓存的积压程度，动态调整TimedBuffer的批量数量与处理周期
+// 批量数量使用AIMD（加性增、乘性减）：
+//  处理结束时缓存内仍然积压了一批以上的数据，说明下游处理不过来，批量数量加大一步，减少请求次数
+//  单批处理的耗时超过目标延时，说明批量过大，批量数量减半
+// 处理周期用于控制流量较小时数据的等待时间：
+//  周期 = 目标延时 - 平均处理耗时，即数据从写入到处理完成，大致不超过目标延时
+// 批量数量与处理周期都限定在配置的范围之内
+public class AdaptiveController {
+    public static final long TARGET_LATENCY= 1000;  // 默认目标延时（毫秒）
+    private static final double DECREASE= 0.5;      // 乘性减的系数
+    private static final int STEPS= 64;             // 加性增的步长为 maxSize/STEPS
+    private static final double SMOOTHING= 0.2;     // 平均处理耗时的平滑系数
+
+    private final int minSize, maxSize, stepSize;
+    private final long minTime, maxTime, targetLatency;
+    private volatile int thresholdSize;
+    private volatile long thresholdTime;
+    private double averageMillis= 0;// 平均处理耗时（毫秒）
+    private long countAdjusted= 0;
+    public AdaptiveController(int minSize, int maxSize, long minTime, long maxTime, long targetLatency) {
+        this.minSize= Math.max(1, minSize);
+        this.maxSize= Math.max(this.minSize, maxSize);
+        this.minTime= Math.max(1, minTime);
+        this.maxTime= Math.max(this.minTime, maxTime);
+        this.targetLatency= targetLatency > 0? targetLatency: TARGET_LATENCY;
+        stepSize= Math.max(1, this.maxSize/STEPS);
+        thresholdSize= this.minSize;
+        thresholdTime= clamp(this.targetLatency, this.minTime, this.maxTime);
+    }
+    // 以TimedBuffer的默认参数作为上限
+    public AdaptiveController(int minSize, long minTime, long targetLatency) {
+        this(minSize, TimedBuffer.THRESHOLD_SIZE, minTime, TimedBuffer.THRESHOLD_TIME, targetLatency);
+    }
+
+    public int getThresholdSize() {
+        return thresholdSize;
+    }
+    public long getThresholdTime() {
+        return thresholdTime;
+    }
+
+    // 每批数据处理完成之后调用
+    // batchSize: 本批数量，nanos: 处理耗时，depth: 处理结束时缓存内积压的数量
+    public synchronized void onProcessed(int batchSize, long nanos, int depth) {
+        if(batchSize <= 0)
+            return;
+        double millis= nanos/(double)TimeUnit.MILLISECONDS.toNanos(1);
+        averageMillis= averageMillis == 0? millis: averageMillis*(1-SMOOTHING) + millis*SMOOTHING;
+
+        int size= thresholdSize;
+        if(millis > targetLatency)
+            size= (int)(size*DECREASE);
+        else if(depth >= size)
+            size+= stepSize;
+        size= (int)clamp(size, minSize, maxSize);
+
+        long time= clamp(targetLatency-(long)averageMillis, minTime, maxTime);
+        if(size != thresholdSize || time != thresholdTime)
+            countAdjusted++;
+        thresholdSize= size;
+        thresholdTime= time;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return value < min? min: (value > max? max: value);
+    }
+
+    public synchronized String dump() {
+        return String.format("size=%d[%d,%d], time=%d[%d,%d], target=%d, average=%.1f, adjusted=%d",
+                thresholdSize, minSize, maxSize, thresholdTime, minTime, maxTime,
+                targetLatency, averageMillis, countAdjusted);
+    }
+}
@@ -0,0 +1,54 @@
+package dmq.test.logging.common;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+// 数组实现的一批数据，由BatchPool分配与回收
+// TimedBuffer取出的数据放在Batch中交给BufferHandler，processBuffer返回之后回收，下次继续使用同一个数组
+// 只支持追加与按下标读取，不是线程安全的
+public class Batch<T> extends AbstractList<T> implements RandomAccess {
+    private final BatchPool<T> pool;
+    private Object[] elements;
+    private int size= 0;
+    Batch(BatchPool<T> pool, int initialCapacity) {
+        this.pool= pool;
+        elements= new Object[Math.max(1, initialCapacity)];
+    }
+
+    @Override// AbstractList
+    public boolean add(T t) {
+        if(size == elements.length)
+            elements= Arrays.copyOf(elements, elements.length*2);
+        elements[size++]= t;
+        modCount++;
+        return true;
+    }
+
+    @Override// AbstractList
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+        return (T)elements[index];
+    }
+
+    @Override// AbstractList
+    public int size() {
+        return size;
+    }
+
+    // 清除引用，数组保留
+    @Override// AbstractList
+    public void clear() {
+        Arrays.fill(elements, 0, size, null);
+        size= 0;
+        modCount++;
+    }
+
+    // 放回BatchPool，之后不能再使用
+    public void recycle() {
+        if(pool != null)
+            pool.release(this);
+    }
+}
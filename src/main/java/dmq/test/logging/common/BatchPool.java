@@ -0,0 +1,53 @@
+package dmq.test.logging.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Batch的对象池，避免每次处理都分配新的列表
+// 最多保留maxPooled个空闲的Batch，多余的交给GC回收
+// 稳定状态下，分配与回收都不再产生新的对象
+public class BatchPool<T> {
+    public static final int MAX_POOLED= 16;
+
+    private final int initialCapacity, maxPooled;
+    private final ArrayDeque<Batch<T>> freeBatches;
+    private final AtomicLong countCreated= new AtomicLong(0);
+    private final AtomicLong countReused= new AtomicLong(0);
+    public BatchPool(int initialCapacity) {
+        this(initialCapacity, MAX_POOLED);
+    }
+    public BatchPool(int initialCapacity, int maxPooled) {
+        this.initialCapacity= initialCapacity;
+        this.maxPooled= Math.max(1, maxPooled);
+        freeBatches= new ArrayDeque<>(this.maxPooled);
+    }
+
+    public Batch<T> acquire() {
+        Batch<T> batch;
+        synchronized (freeBatches) {
+            batch= freeBatches.poll();
+        }// synchronized
+        if(batch != null) {
+            countReused.incrementAndGet();
+            return batch;
+        }
+        countCreated.incrementAndGet();
+        return new Batch<>(this, initialCapacity);
+    }
+
+    void release(Batch<T> batch) {
+        batch.clear();
+        synchronized (freeBatches) {
+            if(freeBatches.size() < maxPooled)
+                freeBatches.push(batch);
+        }// synchronized
+    }
+
+    public String dump() {
+        int free;
+        synchronized (freeBatches) {
+            free= freeBatches.size();
+        }// synchronized
+        return String.format("free=%d, created=%d, reused=%d", free, countCreated.get(), countReused.get());
+    }
+}
@@ -0,0 +1,60 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// 缓存已满时，阻塞写入线程，直到缓存可用或者超时
+// 等待期间会主动触发一次处理，超时之后丢弃新数据
+// 注意：不要在BufferHandler的处理线程内写入同一个缓存，否则只能等到超时
+public class BlockPolicy<T> implements OverflowPolicy<T> {
+    public static final long TIMEOUT= 1000;// 默认超时（毫秒）
+    private static final long PARK_NANOS= TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final long timeoutNanos;
+    private final AtomicLong countBlocked= new AtomicLong(0);
+    private final AtomicLong countTimeout= new AtomicLong(0);
+    private final AtomicLong blockedNanos= new AtomicLong(0);
+    public BlockPolicy(long timeoutMillis) {
+        timeoutNanos= TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+    public BlockPolicy() {
+        this(TIMEOUT);
+    }
+
+    @Override// OverflowPolicy
+    public boolean overflow(TimedBuffer<T> buffer, T t) {
+        countBlocked.incrementAndGet();
+        long start= System.nanoTime();
+        try {
+            do {
+                buffer.fireTiming();
+                LockSupport.parkNanos(PARK_NANOS);
+                if(buffer.offer(t))
+                    return true;
+                if(Thread.currentThread().isInterrupted())
+                    break;
+            } while(System.nanoTime()-start < timeoutNanos);
+        } finally {
+            blockedNanos.addAndGet(System.nanoTime()-start);
+        }
+        countTimeout.incrementAndGet();
+        return false;
+    }
+
+    public long countBlocked() {
+        return countBlocked.get();
+    }
+    public long countTimeout() {
+        return countTimeout.get();
+    }
+    public long blockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+
+    @Override// OverflowPolicy
+    public String dump() {
+        return String.format("policy=%s, blocked=%d, timeout=%d, blockedMillis=%d",
+                BLOCK, countBlocked.get(), countTimeout.get(), blockedMillis());
+    }
+}
@@ -0,0 +1,22 @@
+package dmq.test.logging.common;
+
+import java.util.Collection;
+import java.util.function.ToIntFunction;
+
+// TimedBuffer使用的缓存队列（多个生产者，一个消费者）
+// offer可以被任意线程并发调用；drainTo由TimedBuffer的处理线程调用
+public interface BufferQueue<T> {
+    // 缓存已满时返回false，数据不会被写入
+    boolean offer(T t);
+    // 取出最多max条数据，追加到target，返回实际取出的数量
+    int drainTo(Collection<? super T> target, int max);
+    // 取出最早写入的一条数据，没有数据时返回null
+    T poll();
+    // 移除优先级最低（并且低于limit）的数据中最早写入的一条，不存在时返回null
+    // 这是缓存溢出时才会用到的操作，需要遍历整个缓存
+    T removeLowest(ToIntFunction<? super T> priority, int limit);
+    // 当前缓存的数据量（并发情况下是一个近似值）
+    int size();
+    // 缓存最大容量
+    int capacity();
+}
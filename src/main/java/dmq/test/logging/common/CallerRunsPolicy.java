@@ -0,0 +1,33 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 缓存已满时，由写入线程同步处理缓存内的数据（连同新数据一起）
+// 不会丢失数据，但是写入线程需要承担一次BufferHandler的处理时间
+public class CallerRunsPolicy<T> implements OverflowPolicy<T> {
+    private final AtomicLong countCallerRuns= new AtomicLong(0);
+    private final AtomicLong countProcessed= new AtomicLong(0);
+
+    @Override// OverflowPolicy
+    public boolean overflow(TimedBuffer<T> buffer, T t) {
+        int size= buffer.processNow(t);
+        if(size <= 0)
+            return false;
+        countCallerRuns.incrementAndGet();
+        countProcessed.addAndGet(size);
+        return true;
+    }
+
+    public long countCallerRuns() {
+        return countCallerRuns.get();
+    }
+    public long countProcessed() {
+        return countProcessed.get();
+    }
+
+    @Override// OverflowPolicy
+    public String dump() {
+        return String.format("policy=%s, callerRuns=%d, processed=%d",
+                CALLER_RUNS, countCallerRuns.get(), countProcessed.get());
+    }
+}
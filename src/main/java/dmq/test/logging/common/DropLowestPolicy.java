@@ -0,0 +1,45 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+// 缓存已满时，优先丢弃优先级最低的数据（同级别时丢弃最早写入的）
+// 如果新数据的优先级不高于缓存内的任何数据，丢弃新数据
+// 对于日志，优先级通常就是log4j的Level.toInt()，见Helper.levelPriority
+public class DropLowestPolicy<T> implements OverflowPolicy<T> {
+    private static final int MAX_RETRY= 3;// 腾出的空间可能被其他线程抢先占用
+
+    private final ToIntFunction<? super T> priority;
+    private final AtomicLong countEvicted= new AtomicLong(0);
+    private final AtomicLong countRejected= new AtomicLong(0);
+    public DropLowestPolicy(ToIntFunction<? super T> priority) {
+        this.priority= priority;
+    }
+
+    @Override// OverflowPolicy
+    public boolean overflow(TimedBuffer<T> buffer, T t) {
+        int limit= priority.applyAsInt(t);
+        for(int i=0; i<MAX_RETRY; i++) {
+            if(buffer.evictLowest(priority, limit) == null)
+                break;
+            countEvicted.incrementAndGet();
+            if(buffer.offer(t))
+                return true;
+        }// for
+        countRejected.incrementAndGet();
+        return false;
+    }
+
+    public long countEvicted() {
+        return countEvicted.get();
+    }
+    public long countRejected() {
+        return countRejected.get();
+    }
+
+    @Override// OverflowPolicy
+    public String dump() {
+        return String.format("policy=%s, evicted=%d, rejected=%d",
+                DROP_LOWEST_LEVEL, countEvicted.get(), countRejected.get());
+    }
+}
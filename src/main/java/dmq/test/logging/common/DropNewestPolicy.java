@@ -0,0 +1,23 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 缓存已满时，丢弃新来的数据
+public class DropNewestPolicy<T> implements OverflowPolicy<T> {
+    private final AtomicLong countDropped= new AtomicLong(0);
+
+    @Override// OverflowPolicy
+    public boolean overflow(TimedBuffer<T> buffer, T t) {
+        countDropped.incrementAndGet();
+        return false;
+    }
+
+    public long countDropped() {
+        return countDropped.get();
+    }
+
+    @Override// OverflowPolicy
+    public String dump() {
+        return String.format("policy=%s, dropped=%d", DROP_NEWEST, countDropped.get());
+    }
+}
@@ -0,0 +1,37 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 缓存已满时，丢弃最早写入的数据，为新数据腾出空间
+// 突发流量时，最新的数据往往更重要
+public class DropOldestPolicy<T> implements OverflowPolicy<T> {
+    private static final int MAX_RETRY= 3;// 腾出的空间可能被其他线程抢先占用
+
+    private final AtomicLong countEvicted= new AtomicLong(0);
+    private final AtomicLong countDropped= new AtomicLong(0);
+
+    @Override// OverflowPolicy
+    public boolean overflow(TimedBuffer<T> buffer, T t) {
+        for(int i=0; i<MAX_RETRY; i++) {
+            if(buffer.evictOldest() != null)
+                countEvicted.incrementAndGet();
+            if(buffer.offer(t))
+                return true;
+        }// for
+        countDropped.incrementAndGet();
+        return false;
+    }
+
+    public long countEvicted() {
+        return countEvicted.get();
+    }
+    public long countDropped() {
+        return countDropped.get();
+    }
+
+    @Override// OverflowPolicy
+    public String dump() {
+        return String.format("policy=%s, evicted=%d, dropped=%d",
+                DROP_OLDEST, countEvicted.get(), countDropped.get());
+    }
+}
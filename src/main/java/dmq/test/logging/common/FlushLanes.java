@@ -0,0 +1,235 @@
+package dmq.test.logging.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// TimedBuffer的并行处理通道
+// 每批数据按照keyExtractor取得的键分成N份，每份交给一个通道（SerialExecutor）处理，
+// 同一个键的数据总是进入同一个通道，通道内依次处理，因此同一个键的数据保持顺序，最多N批数据同时处理
+// 每批数据的所有通道都处理完成，并且之前的批次都已完成之后，才通知这一批完成（TimedBuffer据此确认预写日志）
+// 各通道内等待处理的数据总数达到maxQueued时为饱和状态，避免数据在通道内无限堆积：
+// dispatch本身不等待（定时处理在TimerWheel的共享线程上调用，通道也使用同一个线程池，等待会占住共享线程），
+// TimedBuffer的定时处理在饱和时暂不取出数据，数据留在缓存中由OverflowPolicy处理，恢复之后由onAvailable重新触发；
+// flush等在调用线程上的处理通过awaitCapacity等待
+public class FlushLanes<T> {
+    private static final Logger LOGGER= LoggerFactory.getLogger(FlushLanes.class);
+
+    // 一个处理通道
+    private static class Lane {
+        final SerialExecutor executor;
+        final AtomicInteger queued= new AtomicInteger(0);   // 等待处理的数据条数
+        final AtomicInteger inFlight= new AtomicInteger(0); // 正在处理的批次
+        final AtomicLong countBatches= new AtomicLong(0);
+        final AtomicLong countItems= new AtomicLong(0);
+        Lane(SerialExecutor executor) {
+            this.executor= executor;
+        }
+    }
+    // 一批数据，所有通道处理完成之后才能通知完成
+    private static class Group {
+        final Runnable onComplete;
+        int remaining;
+        Group(Runnable onComplete, int remaining) {
+            this.onComplete= onComplete;
+            this.remaining= remaining;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final Function<? super T, ?> keyExtractor;
+    private final Queue<Group> groups= new ConcurrentLinkedQueue<>();
+    private final int maxQueued;
+    private final AtomicInteger totalQueued= new AtomicInteger(0);
+    private volatile boolean shutdown= false;
+    private final BatchPool<T> batchPool;
+    private final Runnable onAvailable;
+    private final Batch<T>[] parts;// 只在dispatch内使用
+    @SuppressWarnings("unchecked")
+    FlushLanes(int count, Function<? super T, ?> keyExtractor, int maxQueued, BatchPool<T> batchPool,
+               Runnable onAvailable) {
+        lanes= new Lane[Math.max(1, count)];
+        parts= (Batch<T>[])new Batch<?>[lanes.length];
+        this.batchPool= batchPool;
+        for(int i=0; i<lanes.length; i++)
+            lanes[i]= new Lane(new SerialExecutor(TimerWheel.shared().workers()));
+        this.keyExtractor= keyExtractor;
+        this.maxQueued= Math.max(1, maxQueued);
+        this.onAvailable= onAvailable;
+    }
+
+    private int laneOf(T t) {
+        Object key= keyExtractor.apply(t);
+        if(key == null)
+            return 0;
+        return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    // 按照键复制到各个通道的Batch中，由processor处理，处理完成之后回收，全部完成之后调用onComplete（可以为null）
+    // 返回之后，调用者可以回收list
+    synchronized void dispatch(List<T> list, final Consumer<List<T>> processor, Runnable onComplete) {
+        for(int i=0; i<list.size(); i++) {
+            T one= list.get(i);
+            int index= laneOf(one);
+            if(parts[index] == null)
+                parts[index]= batchPool.acquire();
+            parts[index].add(one);
+        }// for
+
+        int remaining= 0;
+        for(Batch<T> part: parts)
+            if(part != null)
+                remaining++;
+        final Group group= new Group(onComplete, remaining);
+        groups.add(group);
+        if(remaining == 0) {
+            complete(group);
+            return;
+        }
+
+        for(int i=0; i<lanes.length; i++) {
+            final Batch<T> part= parts[i];
+            if(part == null)
+                continue;
+            parts[i]= null;
+            final Lane lane= lanes[i];
+            lane.queued.addAndGet(part.size());
+            totalQueued.addAndGet(part.size());
+            try {
+                lane.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lane.queued.addAndGet(-part.size());
+                        dequeued(part.size());
+                        lane.inFlight.incrementAndGet();
+                        try {
+                            processor.accept(part);
+                            lane.countBatches.incrementAndGet();
+                            lane.countItems.addAndGet(part.size());
+                        } finally {
+                            lane.inFlight.decrementAndGet();
+                            complete(group);
+                            part.recycle();
+                        }
+                    }
+                });
+            } catch(RejectedExecutionException x) {
+                lane.queued.addAndGet(-part.size());
+                dequeued(part.size());
+                LOGGER.warn("FlushLanes rejected data (lane= {}, size= {})", i, part.size());
+                complete(group);
+                part.recycle();
+            }
+        }// for
+    }
+    // 从饱和状态恢复时通知onAvailable
+    private void dequeued(int size) {
+        int queued= totalQueued.addAndGet(-size);
+        if(queued < maxQueued && queued+size >= maxQueued && onAvailable != null)
+            onAvailable.run();
+    }
+    boolean isSaturated() {
+        return !shutdown && totalQueued.get() >= maxQueued;
+    }
+    // 在调用线程上等待通道不再饱和，不能在TimerWheel的共享线程上调用
+    synchronized void awaitCapacity(long timeout, TimeUnit unit) {
+        long deadline= System.nanoTime()+unit.toNanos(timeout);
+        try {
+            while(isSaturated()) {
+                long remain= TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime());
+                if(remain <= 0) {
+                    LOGGER.warn("Timed out waiting for flush lanes: {}", dump());
+                    return;
+                }
+                wait(Math.min(remain, TimerWheel.TICK));
+            }// while
+        } catch(InterruptedException x) {
+            LOGGER.warn("Failed to wait for flush lanes.", x);
+        }
+    }
+
+    // 按照顺序通知已经全部处理完成的批次
+    private synchronized void complete(Group group) {
+        group.remaining--;
+        for(Group head= groups.peek(); head != null && head.remaining <= 0; head= groups.peek()) {
+            groups.poll();
+            if(head.onComplete != null)
+                head.onComplete.run();
+        }// for
+        notifyAll();
+    }
+
+    // 等待已经提交的数据全部处理完成
+    boolean await(long timeout, TimeUnit unit) {
+        final CountDownLatch latch= new CountDownLatch(lanes.length);
+        for(Lane lane: lanes) {
+            try {
+                lane.executor.execute(latch::countDown);
+            } catch(RejectedExecutionException x) {
+                latch.countDown();
+            }
+        }// for
+        try {
+            return latch.await(timeout, unit);
+        } catch(InterruptedException x) {
+            LOGGER.warn("Failed to wait for flush lanes.", x);
+        }
+        return false;
+    }
+    // 不再接受新数据，等待已提交的数据处理完成
+    void shutdown(long timeout, TimeUnit unit) {
+        shutdown= true;
+        for(Lane lane: lanes)
+            lane.executor.shutdown();
+        long deadline= System.nanoTime()+unit.toNanos(timeout);
+        try {
+            for(Lane lane: lanes) {
+                long remain= deadline-System.nanoTime();
+                if(remain <= 0 || !lane.executor.awaitTermination(remain, TimeUnit.NANOSECONDS))
+                    lane.executor.shutdownNow();
+            }// for
+        } catch(InterruptedException x) {
+            LOGGER.warn("Failed to wait for flush lanes.", x);
+        }
+    }
+
+    public int size() {
+        return lanes.length;
+    }
+    // 通道内等待处理的数据条数
+    public int queued(int lane) {
+        return lanes[lane].queued.get();
+    }
+    // 通道内正在处理的批次数量（0或1）
+    public int inFlight(int lane) {
+        return lanes[lane].inFlight.get();
+    }
+    // 所有通道正在处理的批次数量
+    public int inFlight() {
+        int count= 0;
+        for(Lane lane: lanes)
+            count+= lane.inFlight.get();
+        return count;
+    }
+
+    public String dump() {
+        StringBuilder builder= new StringBuilder();
+        builder.append(String.format("lanes=%d, unacked=%d", lanes.length, groups.size()));
+        for(int i=0; i<lanes.length; i++) {
+            Lane lane= lanes[i];
+            builder.append(String.format("; lane%d: queued=%d, inFlight=%d, batches=%d, items=%d",
+                    i, lane.queued.get(), lane.inFlight.get(), lane.countBatches.get(), lane.countItems.get()));
+        }// for
+        return builder.toString();
+    }
+}
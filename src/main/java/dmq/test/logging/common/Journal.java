@@ -0,0 +1,100 @@
+package dmq.test.logging.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// TimedBuffer的预写日志（write-ahead journal）
+// 写入缓存的数据先按顺序追加到SegmentLog（durable模式），BufferHandler处理完一批数据之后，按照数量确认（ack）
+// 确认时只移动读取位置并写入checkpoint，完全确认的段文件被复用，相当于截断日志
+// 内存映射的数据由操作系统写回磁盘，sync按照固定的周期统一调用一次force（group commit），进程被杀时不会丢失数据，
+// 断电时最多丢失一个周期内的数据
+// 重新打开之后，尚未确认的数据可以通过recover取出，重新处理
+// 确认只按照数量计算，TimedBuffer按照取出的顺序确认，被丢弃或淘汰的数据在缓存取空时一起确认，不会一直占用磁盘空间
+// 进程被杀时，已经处理但尚未确认的数据在恢复时会被重复处理（至少一次）
+public class Journal<T> {
+    private static final Logger LOGGER= LoggerFactory.getLogger(Journal.class);
+    private static final String PREFIX= "journal-";
+
+    private final SegmentLog segmentLog;
+    private final Serializer<T> serializer;
+    private final AtomicLong countAppended= new AtomicLong(0);
+    private final AtomicLong countAcked= new AtomicLong(0);
+    private final AtomicLong countRecovered= new AtomicLong(0);
+    private final AtomicLong countSynced= new AtomicLong(0);
+    private final AtomicLong countRejected= new AtomicLong(0);
+    public Journal(Path directory, Serializer<T> serializer, long maxDiskBytes, int segmentBytes)
+            throws IOException {
+        this.serializer= serializer;
+        segmentLog= new SegmentLog(directory, PREFIX, segmentBytes, maxDiskBytes, true);
+    }
+
+    // 磁盘空间不足或者序列化失败时返回false
+    boolean append(T t) {
+        try {
+            if(segmentLog.append(serializer.serialize(t))) {
+                countAppended.incrementAndGet();
+                return true;
+            }
+        } catch(Exception x) {
+            LOGGER.error("Journal failed to serialize data!", x);
+        }
+        countRejected.incrementAndGet();
+        return false;
+    }
+
+    // 确认最早的count条数据已经处理完成
+    void ack(int count) {
+        countAcked.addAndGet(segmentLog.skip(count));
+        segmentLog.checkpoint();
+    }
+
+    // 取出最多max条尚未确认的数据，处理完成之后需要调用checkpoint
+    List<T> recover(int max) {
+        List<T> list= new ArrayList<>();
+        while(list.size() < max) {
+            byte[] data= segmentLog.read();
+            if(data == null)
+                break;
+            try {
+                list.add(serializer.deserialize(data));
+            } catch(Exception x) {
+                LOGGER.error("Journal failed to deserialize data!", x);
+            }
+        }// while
+        countRecovered.addAndGet(list.size());
+        return list;
+    }
+    void checkpoint() {
+        segmentLog.checkpoint();
+    }
+
+    // 同步到磁盘（group commit）
+    void sync() {
+        segmentLog.force();
+        countSynced.incrementAndGet();
+    }
+
+    public long count() {
+        return segmentLog.count();
+    }
+
+    void close() {
+        try {
+            segmentLog.close();
+        } catch(IOException x) {
+            LOGGER.warn("Journal failed to close.", x);
+        }
+    }
+
+    public String dump() {
+        return String.format("pending=%d, appended=%d, acked=%d, recovered=%d, synced=%d, rejected=%d",
+                segmentLog.count(), countAppended.get(), countAcked.get(), countRecovered.get(),
+                countSynced.get(), countRejected.get());
+    }
+}
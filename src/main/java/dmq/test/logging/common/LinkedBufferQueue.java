@@ -0,0 +1,72 @@
+package dmq.test.logging.common;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.ToIntFunction;
+
+// 最初的缓存方案：所有操作都在同一个对象锁内完成
+// 原来使用LinkedList，每写入一条数据都要分配一个链表节点，现在改为预先分配的ArrayDeque
+public class LinkedBufferQueue<T> implements BufferQueue<T> {
+    private final int maxCapacity;
+    private final ArrayDeque<T> bufferList;
+    public LinkedBufferQueue(int maxCapacity) {
+        this.maxCapacity= maxCapacity;
+        bufferList= new ArrayDeque<>(Math.max(1, maxCapacity));
+    }
+
+    @Override// BufferQueue
+    public synchronized boolean offer(T t) {
+        if(bufferList.size() >= maxCapacity)
+            return false;
+        bufferList.add(t);
+        return true;
+    }
+
+    @Override// BufferQueue
+    public synchronized int drainTo(Collection<? super T> target, int max) {
+        int count= 0;
+        while(count < max && !bufferList.isEmpty()) {
+            target.add(bufferList.poll());
+            count++;
+        }// while
+        return count;
+    }
+
+    @Override// BufferQueue
+    public synchronized T poll() {
+        return bufferList.poll();
+    }
+
+    @Override// BufferQueue
+    public synchronized T removeLowest(ToIntFunction<? super T> priority, int limit) {
+        int lowest= limit;
+        int index= -1, i= 0;
+        for(T one: bufferList) {
+            int value= priority.applyAsInt(one);
+            if(value < lowest) {
+                lowest= value;
+                index= i;
+            }
+            i++;
+        }// for
+        if(index < 0)
+            return null;
+        Iterator<T> iterator= bufferList.iterator();
+        for(i= 0; i<index; i++)
+            iterator.next();
+        T t= iterator.next();
+        iterator.remove();
+        return t;
+    }
+
+    @Override// BufferQueue
+    public synchronized int size() {
+        return bufferList.size();
+    }
+
+    @Override// BufferQueue
+    public int capacity() {
+        return maxCapacity;
+    }
+}
@@ -0,0 +1,57 @@
+package dmq.test.logging.common;
+
+import dmq.test.utils.Converter;
+
+import java.util.function.ToIntFunction;
+
+// 缓存已满时的处理策略
+// 默认策略为DropNewestPolicy，即丢弃新来的数据（TimedBuffer最初的行为）
+// 每种策略都有自己的计数器，可以根据实际的流量调整缓存的容量
+// 通过字符串配置时，可以使用以下名称（不区分大小写）：
+//  drop_newest         丢弃新数据
+//  drop_oldest         丢弃最早写入的数据
+//  drop_lowest_level   优先丢弃级别最低的数据（需要提供优先级，通常是log4j的Level）
+//  block[:timeout]     阻塞写入线程，直到缓存可用或者超时（毫秒，默认1000）
+//  caller_runs         在写入线程内同步处理缓存内的数据
+public interface OverflowPolicy<T> {
+    String DROP_NEWEST= "drop_newest";
+    String DROP_OLDEST= "drop_oldest";
+    String DROP_LOWEST_LEVEL= "drop_lowest_level";
+    String BLOCK= "block";
+    String CALLER_RUNS= "caller_runs";
+
+    // 缓存已满时调用，返回true表示数据已经被接收（写入缓存或者已被处理），返回false表示数据被丢弃
+    boolean overflow(TimedBuffer<T> buffer, T t);
+    // 输出计数器
+    String dump();
+
+    // 根据名称创建策略，无法识别时返回默认策略
+    // priority只用于drop_lowest_level，为null时退化为drop_oldest
+    static <T> OverflowPolicy<T> parse(String spec, ToIntFunction<? super T> priority) {
+        if(spec == null || spec.isEmpty())
+            return new DropNewestPolicy<>();
+
+        String name= spec.trim().toLowerCase();
+        String param= null;
+        int pos= name.indexOf(':');
+        if(pos >= 0) {
+            param= name.substring(pos+1);
+            name= name.substring(0, pos);
+        }
+        switch(name) {
+            case DROP_NEWEST:
+                return new DropNewestPolicy<>();
+            case DROP_OLDEST:
+                return new DropOldestPolicy<>();
+            case DROP_LOWEST_LEVEL:
+                if(priority == null)
+                    return new DropOldestPolicy<>();
+                return new DropLowestPolicy<>(priority);
+            case BLOCK:
+                return new BlockPolicy<>(Converter.parseNumLong(param, BlockPolicy.TIMEOUT));
+            case CALLER_RUNS:
+                return new CallerRunsPolicy<>();
+        }// switch
+        return new DropNewestPolicy<>();
+    }
+}
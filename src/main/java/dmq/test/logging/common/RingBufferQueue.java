@@ -0,0 +1,144 @@
+package dmq.test.logging.common;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+
+// 有界、无锁的环形缓存（多个生产者，一个消费者）
+// 按照maxCapacity一次性分配好所有的槽位，写入数据时不再分配链表节点
+// 每个槽位带有一个序号：
+//  序号 == pos           槽位空闲，可以由取得pos的生产者写入
+//  序号 == pos+1         槽位已写入，可以由消费者读取
+//  序号 == pos+capacity  槽位已读取，留给下一圈的生产者
+// 生产者只通过CAS争抢tail，不使用任何锁；
+// 消费者一侧使用consumerLock，保证同一时刻只有一个消费者（flush与定时处理可能来自不同线程）
+public class RingBufferQueue<T> implements BufferQueue<T> {
+    private final int maxCapacity;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail= new AtomicLong(0);
+    private volatile long head= 0;// 只由持有consumerLock的消费者修改
+    private final Object consumerLock= new Object();
+
+    public RingBufferQueue(int maxCapacity) {
+        if(maxCapacity <= 0)
+            throw new IllegalArgumentException(String.format("Bad capacity (maxCapacity= %d).", maxCapacity));
+        this.maxCapacity= maxCapacity;
+        elements= new AtomicReferenceArray<>(maxCapacity);
+        sequences= new AtomicLongArray(maxCapacity);
+        for(int i=0; i<maxCapacity; i++)
+            sequences.set(i, i);
+    }
+
+    private int indexOf(long pos) {
+        return (int)(pos % maxCapacity);
+    }
+
+    @Override// BufferQueue
+    public boolean offer(T t) {
+        long pos= tail.get();
+        int index;
+        for(;;) {
+            index= indexOf(pos);
+            long delta= sequences.get(index) - pos;
+            if(delta == 0) {
+                if(tail.compareAndSet(pos, pos+1))
+                    break;
+                pos= tail.get();
+            } else if(delta < 0) {
+                // 槽位还没有被消费者释放，缓存已满
+                return false;
+            } else
+                pos= tail.get();
+        }// for
+
+        elements.set(index, t);
+        sequences.lazySet(index, pos+1);
+        return true;
+    }
+
+    @Override// BufferQueue
+    public int drainTo(Collection<? super T> target, int max) {
+        synchronized (consumerLock) {
+            long pos= head;
+            int count= 0;
+            while(count < max) {
+                int index= indexOf(pos);
+                // 生产者已经取得pos，但还没有写完时，不再继续读取（保持顺序）
+                if(sequences.get(index) != pos+1)
+                    break;
+                target.add(elements.get(index));
+                elements.lazySet(index, null);
+                sequences.lazySet(index, pos+maxCapacity);
+                pos++;
+                count++;
+            }// while
+            head= pos;
+            return count;
+        }// synchronized
+    }
+
+    @Override// BufferQueue
+    public T poll() {
+        synchronized (consumerLock) {
+            long pos= head;
+            int index= indexOf(pos);
+            if(sequences.get(index) != pos+1)
+                return null;
+            return release(pos);
+        }// synchronized
+    }
+
+    // 已写入的槽位归消费者所有，所以可以在持有consumerLock的情况下，在这些槽位内移动数据：
+    // 把找到的数据之前的数据依次向后移动一格，再释放最前面的槽位
+    @Override// BufferQueue
+    public T removeLowest(ToIntFunction<? super T> priority, int limit) {
+        synchronized (consumerLock) {
+            long first= head;
+            long found= -1;
+            int lowest= limit;
+            for(long pos= first; pos < first+maxCapacity; pos++) {
+                int index= indexOf(pos);
+                if(sequences.get(index) != pos+1)
+                    break;
+                int value= priority.applyAsInt(elements.get(index));
+                if(value < lowest) {
+                    lowest= value;
+                    found= pos;
+                }
+            }// for
+            if(found < 0)
+                return null;
+
+            T removed= elements.get(indexOf(found));
+            for(long pos= found; pos > first; pos--)
+                elements.set(indexOf(pos), elements.get(indexOf(pos-1)));
+            elements.set(indexOf(first), removed);
+            return release(first);
+        }// synchronized
+    }
+    // 取出head位置的数据并释放槽位，调用者需要持有consumerLock
+    private T release(long pos) {
+        int index= indexOf(pos);
+        T t= elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, pos+maxCapacity);
+        head= pos+1;
+        return t;
+    }
+
+    @Override// BufferQueue
+    public int size() {
+        long size= tail.get() - head;
+        if(size < 0)
+            return 0;
+        return size > maxCapacity? maxCapacity: (int)size;
+    }
+
+    @Override// BufferQueue
+    public int capacity() {
+        return maxCapacity;
+    }
+}
@@ -0,0 +1,327 @@
+package dmq.test.logging.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// 只追加写入的日志文件，由若干个固定大小、内存映射的段文件（segment）组成
+// 数据按照写入顺序读出，读完的段文件不会删除，而是放回空闲列表，下次直接改名复用，稳定状态下不再创建文件
+// 段文件的格式：
+//  [长度(4)][CRC32(4)][数据] [长度(4)][CRC32(4)][数据] ... [0]
+//  长度为0表示后面还没有数据；长度为-1表示这个段文件已经写满，后续数据在下一个段文件
+// 段文件总数不超过 maxBytes/segmentBytes，超出之后append返回false
+// durable模式下（用于Journal），打开时恢复目录中已有的段文件，读取位置通过checkpoint文件保存：
+//  [段文件编号(8)][段内位置(4)]
+// 否则（用于SpillTier），打开时删除目录中已有的段文件
+public class SegmentLog implements Closeable {
+    private static final Logger LOGGER= LoggerFactory.getLogger(SegmentLog.class);
+
+    public static final int SEGMENT_BYTES= 16*1024*1024;// 默认段文件大小
+    private static final String SUFFIX= ".seg";
+    private static final String CHECKPOINT= "checkpoint";
+    private static final int CHECKPOINT_BYTES= 12;
+    private static final int HEADER= 8;     // 长度(4) + CRC32(4)
+    private static final int NONE= 0;       // 后面还没有数据
+    private static final int FULL= -1;      // 段文件已写满
+
+    // 一个段文件
+    private static class Segment {
+        long id;
+        Path path;
+        final MappedByteBuffer buffer;
+        int writePosition= 0;
+        Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id= id;
+            this.path= path;
+            this.buffer= buffer;
+        }
+    }
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentBytes, maxSegments;
+    private final ArrayDeque<Segment> segments= new ArrayDeque<>();     // 正在使用的段文件，最早的在前
+    private final ArrayDeque<Segment> freeSegments= new ArrayDeque<>(); // 已经读完，等待复用的段文件
+    private long nextId= 0;
+    private int readPosition= 0;// 在最早的段文件内的读取位置
+    private long countRecords= 0;// 尚未读取的数据条数
+    private final CRC32 crc= new CRC32();
+    private final MappedByteBuffer checkpoint;// durable模式下保存读取位置
+
+    // 目录中已经存在的同名段文件会被删除
+    public SegmentLog(Path directory, String prefix, int segmentBytes, long maxBytes) throws IOException {
+        this(directory, prefix, segmentBytes, maxBytes, false);
+    }
+    public SegmentLog(Path directory, String prefix, int segmentBytes, long maxBytes, boolean durable)
+            throws IOException {
+        this.directory= directory;
+        this.prefix= prefix;
+        this.segmentBytes= segmentBytes > HEADER*2? segmentBytes: SEGMENT_BYTES;
+        this.maxSegments= (int)Math.max(1, maxBytes/this.segmentBytes);
+        Files.createDirectories(directory);
+        if(durable) {
+            checkpoint= map(directory.resolve(prefix+CHECKPOINT), CHECKPOINT_BYTES);
+            recover();
+        } else {
+            checkpoint= null;
+            deleteSegments();
+        }
+    }
+
+    private String segmentName(long id) {
+        return String.format("%s%016d%s", prefix, id, SUFFIX);
+    }
+    private List<Path> listSegments() throws IOException {
+        List<Path> list= new ArrayList<>();
+        try(DirectoryStream<Path> stream= Files.newDirectoryStream(directory, prefix+"*"+SUFFIX)) {
+            for(Path one: stream)
+                list.add(one);
+        }// try
+        // 文件名中的编号是定长的，按照名称排序即按照编号排序
+        list.sort(null);
+        return list;
+    }
+    private void deleteSegments() throws IOException {
+        for(Path one: listSegments())
+            Files.deleteIfExists(one);
+    }
+    private long segmentId(Path path) {
+        String name= path.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length(), name.length()-SUFFIX.length()));
+    }
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try(FileChannel channel= FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }// try
+    }
+
+    // 恢复已有的段文件：checkpoint之前的段文件放入空闲列表，之后的段文件重新计算写入位置与数据条数
+    // 校验失败的数据（通常是写到一半时进程退出），连同之后的数据一起丢弃
+    private void recover() throws IOException {
+        long readId= checkpoint.getLong(0);
+        int position= checkpoint.getInt(8);
+        for(Path path: listSegments()) {
+            long id= segmentId(path);
+            Segment segment= new Segment(id, path, map(path, segmentBytes));
+            nextId= Math.max(nextId, id+1);
+            if(id < readId) {
+                freeSegments.add(segment);
+                continue;
+            }
+            if(segments.isEmpty())
+                readPosition= (id == readId && position >= 0 && position < segmentBytes)? position: 0;
+            int start= segments.isEmpty()? readPosition: 0;
+            segment.writePosition= scan(segment, start);
+            segments.add(segment);
+        }// for
+        LOGGER.debug("SegmentLog recovered (directory= {}, segments= {}, records= {})",
+                directory, segments.size(), countRecords);
+    }
+    // 从start开始统计完整的数据条数，返回可以继续写入的位置
+    private int scan(Segment segment, int start) {
+        MappedByteBuffer buffer= segment.buffer;
+        int position= 0;
+        // start之前的数据已经读过，只需跳过
+        while(position < start) {
+            int length= buffer.getInt(position);
+            if(length <= NONE)
+                break;
+            position+= HEADER+length;
+        }// while
+        for(;;) {
+            if(position + 4 > segmentBytes)
+                return position;
+            int length= buffer.getInt(position);
+            if(length == FULL)
+                return position;
+            if(length <= NONE || position+HEADER+length+4 > segmentBytes
+                    || !checksum(buffer, position, length)) {
+                buffer.putInt(position, NONE);
+                return position;
+            }
+            position+= HEADER+length;
+            countRecords++;
+        }// for
+    }
+    private boolean checksum(MappedByteBuffer buffer, int position, int length) {
+        byte[] data= new byte[length];
+        buffer.position(position+HEADER);
+        buffer.get(data);
+        crc.reset();
+        crc.update(data, 0, data.length);
+        return (int)crc.getValue() == buffer.getInt(position+4);
+    }
+
+    // 取得一个可写入的段文件：优先复用空闲的段文件，其次创建新文件
+    private Segment nextSegment() throws IOException {
+        long id= nextId++;
+        Path path= directory.resolve(segmentName(id));
+        Segment segment= freeSegments.poll();
+        if(segment != null) {
+            // 先清除旧数据的标记再改名，恢复时不会把旧数据当作新数据
+            segment.buffer.putInt(0, NONE);
+            Files.move(segment.path, path);
+            segment.id= id;
+            segment.path= path;
+        } else {
+            if(segments.size() >= maxSegments)
+                return null;
+            segment= new Segment(id, path, map(path, segmentBytes));
+        }
+        segment.writePosition= 0;
+        segment.buffer.putInt(0, NONE);
+        segments.add(segment);
+        return segment;
+    }
+
+    // 写入一条数据，空间不足或者数据超出段文件大小时返回false
+    public synchronized boolean append(byte[] data) {
+        int need= HEADER + data.length;
+        if(need + 4 > segmentBytes)
+            return false;
+        try {
+            Segment segment= segments.peekLast();
+            if(segment == null || segment.writePosition + need + 4 > segmentBytes) {
+                if(segments.size() >= maxSegments && freeSegments.isEmpty())
+                    return false;
+                if(segment != null)
+                    segment.buffer.putInt(segment.writePosition, FULL);
+                segment= nextSegment();
+                if(segment == null)
+                    return false;
+            }
+
+            MappedByteBuffer buffer= segment.buffer;
+            int position= segment.writePosition;
+            crc.reset();
+            crc.update(data, 0, data.length);
+            buffer.putInt(position+4, (int)crc.getValue());
+            buffer.position(position+HEADER);
+            buffer.put(data);
+            buffer.putInt(position+need, NONE);
+            // 最后写入长度，读取时看到长度就表示数据已经完整
+            buffer.putInt(position, data.length);
+            segment.writePosition= position+need;
+            countRecords++;
+            return true;
+        } catch(IOException x) {
+            LOGGER.error("SegmentLog failed to append data!", x);
+        }
+        return false;
+    }
+
+    // 读出最早的一条数据，没有数据时返回null
+    public synchronized byte[] read() {
+        for(;;) {
+            int length= nextLength();
+            if(length <= NONE)
+                return null;
+
+            Segment segment= segments.peekFirst();
+            MappedByteBuffer buffer= segment.buffer;
+            byte[] data= new byte[length];
+            buffer.position(readPosition+HEADER);
+            buffer.get(data);
+            int checksum= buffer.getInt(readPosition+4);
+            readPosition+= HEADER+length;
+            countRecords--;
+            crc.reset();
+            crc.update(data, 0, data.length);
+            if((int)crc.getValue() != checksum) {
+                LOGGER.warn("SegmentLog found a broken record (segment= {}, length= {})", segment.path, length);
+                continue;
+            }
+            return data;
+        }// for
+    }
+    // 跳过最早的count条数据，返回实际跳过的数量
+    public synchronized int skip(int count) {
+        int skipped= 0;
+        while(skipped < count) {
+            int length= nextLength();
+            if(length <= NONE)
+                break;
+            readPosition+= HEADER+length;
+            countRecords--;
+            skipped++;
+        }// while
+        return skipped;
+    }
+    // 下一条数据的长度，已经读完的段文件放回空闲列表
+    private int nextLength() {
+        for(;;) {
+            Segment segment= segments.peekFirst();
+            if(segment == null)
+                return NONE;
+            int length= readPosition + 4 <= segmentBytes? segment.buffer.getInt(readPosition): FULL;
+            if(length == FULL || (length == NONE && segment != segments.peekLast())) {
+                recycle();
+                continue;
+            }
+            return length;
+        }// for
+    }
+    // 最早的段文件已经读完，放回空闲列表
+    private void recycle() {
+        Segment segment= segments.poll();
+        readPosition= 0;
+        if(segment != null)
+            freeSegments.add(segment);
+    }
+
+    // durable模式下，记录当前的读取位置，重新打开之后从这个位置继续读取
+    public synchronized void checkpoint() {
+        if(checkpoint == null)
+            return;
+        Segment segment= segments.peekFirst();
+        checkpoint.putLong(0, segment == null? nextId: segment.id);
+        checkpoint.putInt(8, segment == null? 0: readPosition);
+    }
+
+    // 将已写入的数据同步到磁盘
+    public synchronized void force() {
+        for(Segment one: segments)
+            one.buffer.force();
+        if(checkpoint != null)
+            checkpoint.force();
+    }
+
+    public synchronized long count() {
+        return countRecords;
+    }
+    public synchronized boolean isEmpty() {
+        return countRecords == 0;
+    }
+    // 占用的磁盘空间（包括空闲的段文件）
+    public synchronized long diskBytes() {
+        return (long)(segments.size()+freeSegments.size())*segmentBytes;
+    }
+
+    // 关闭，durable模式下保留段文件，否则删除所有的段文件
+    @Override// Closeable
+    public synchronized void close() throws IOException {
+        if(checkpoint != null) {
+            checkpoint();
+            force();
+        }
+        segments.clear();
+        freeSegments.clear();
+        countRecords= 0;
+        readPosition= 0;
+        if(checkpoint == null)
+            deleteSegments();
+    }
+}
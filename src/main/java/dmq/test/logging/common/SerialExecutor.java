@@ -0,0 +1,96 @@
+package dmq.test.logging.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 在共享的线程池上依次执行任务，同一个SerialExecutor的任务不会并发执行，并且按照提交的顺序执行
+// 每次只执行一个任务，然后重新排到线程池的队尾，多个SerialExecutor之间轮流使用线程池（公平性）
+// 相当于每个TimedBuffer一个单线程的执行器，但是不占用独立的线程
+public class SerialExecutor implements Executor {
+    private static final Logger LOGGER= LoggerFactory.getLogger(SerialExecutor.class);
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks= new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled= new AtomicBoolean(false);
+    private volatile boolean shutdown= false;
+    private final Runnable drainTask= new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    public SerialExecutor(Executor pool) {
+        this.pool= pool;
+    }
+
+    @Override// Executor
+    public void execute(Runnable task) {
+        if(shutdown)
+            throw new RejectedExecutionException("SerialExecutor has been shut down.");
+        tasks.add(task);
+        schedule();
+    }
+    private void schedule() {
+        if(tasks.isEmpty() || !scheduled.compareAndSet(false, true))
+            return;
+        try {
+            pool.execute(drainTask);
+        } catch(RejectedExecutionException x) {
+            scheduled.set(false);
+            LOGGER.warn("SerialExecutor failed to schedule tasks.", x);
+        }
+    }
+    private void drain() {
+        try {
+            Runnable task= tasks.poll();
+            if(task != null)
+                task.run();
+        } catch(Throwable x) {
+            LOGGER.error("SerialExecutor task failed!", x);
+        } finally {
+            scheduled.set(false);
+            synchronized (this) {
+                notifyAll();
+            }// synchronized
+            schedule();
+        }
+    }
+
+    // 不再接受新任务，已经提交的任务继续执行
+    public void shutdown() {
+        shutdown= true;
+    }
+    // 不再接受新任务，放弃尚未执行的任务
+    public void shutdownNow() {
+        shutdown= true;
+        tasks.clear();
+    }
+    public boolean isShutdown() {
+        return shutdown;
+    }
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty() && !scheduled.get();
+    }
+    // 等待所有已提交的任务执行完成
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline= System.nanoTime() + unit.toNanos(timeout);
+        while(!isTerminated()) {
+            long remain= TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime());
+            if(remain <= 0)
+                return false;
+            wait(remain);
+        }// while
+        return true;
+    }
+    // 尚未执行的任务数量
+    public int pending() {
+        return tasks.size();
+    }
+}
@@ -0,0 +1,7 @@
+package dmq.test.logging.common;
+
+// 将缓存数据转换为字节数组（以及反向转换），用于将数据写入磁盘（见SpillTier）
+public interface Serializer<T> {
+    byte[] serialize(T t);
+    T deserialize(byte[] data);
+}
@@ -0,0 +1,28 @@
+package dmq.test.logging.common;
+
+// 估算缓存数据占用的字节数，用于TimedBuffer按照字节数限制缓存与批量大小
+// 同一条数据在写入与取出时都会估算一次，所以估算结果必须稳定，并且应当足够快
+public interface SizeEstimator<T> {
+    long estimate(T t);
+
+    // 字符串按照UTF-8编码之后的字节数
+    static long utf8Length(CharSequence string) {
+        if(string == null)
+            return 0;
+        long count= 0;
+        int length= string.length();
+        for(int i=0; i<length; i++) {
+            char ch= string.charAt(i);
+            if(ch < 0x80)
+                count++;
+            else if(ch < 0x800)
+                count+= 2;
+            else if(Character.isHighSurrogate(ch) && i+1 < length) {
+                count+= 4;
+                i++;
+            } else
+                count+= 3;
+        }// for
+        return count;
+    }
+}
@@ -0,0 +1,111 @@
+package dmq.test.logging.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+// TimedBuffer的磁盘溢出层
+// 内存中的缓存超过highWater之后，新数据序列化之后写入SegmentLog（内存映射的段文件）
+// 一旦开始写入磁盘，后续的数据都写入磁盘，直到磁盘中的数据全部取出，以保证数据的先后顺序
+// 磁盘空间受maxDiskBytes限制，超出之后由TimedBuffer的OverflowPolicy处理
+// 溢出层不保证程序崩溃之后数据可以恢复，关闭时删除所有的段文件
+public class SpillTier<T> {
+    private static final Logger LOGGER= LoggerFactory.getLogger(SpillTier.class);
+    private static final String PREFIX= "spill-";
+
+    private final SegmentLog segmentLog;
+    private final Serializer<T> serializer;
+    private final int highWater;
+    private volatile boolean spilling= false;
+    private final AtomicLong countSpilled= new AtomicLong(0);
+    private final AtomicLong countReplayed= new AtomicLong(0);
+    private final AtomicLong countRejected= new AtomicLong(0);
+    public SpillTier(Path directory, Serializer<T> serializer, int highWater, long maxDiskBytes, int segmentBytes)
+            throws IOException {
+        this.serializer= serializer;
+        this.highWater= highWater;
+        segmentLog= new SegmentLog(directory, PREFIX, segmentBytes, maxDiskBytes);
+    }
+
+    // 内存中的数据量达到highWater，或者正在写入磁盘时，数据应当写入磁盘
+    boolean shouldSpill(int memorySize) {
+        return spilling || memorySize >= highWater;
+    }
+
+    // 写入磁盘，磁盘空间不足时返回false
+    boolean spill(T t) {
+        byte[] data;
+        try {
+            data= serializer.serialize(t);
+        } catch(Exception x) {
+            LOGGER.error("SpillTier failed to serialize data!", x);
+            countRejected.incrementAndGet();
+            return false;
+        }
+        synchronized (segmentLog) {
+            if(!segmentLog.append(data)) {
+                countRejected.incrementAndGet();
+                return false;
+            }
+            spilling= true;
+        }// synchronized
+        countSpilled.incrementAndGet();
+        return true;
+    }
+
+    // 按照写入的顺序取出最多max条数据，磁盘中的数据全部取出之后，新数据重新写入内存
+    int drainTo(Collection<? super T> target, int max) {
+        int count= 0;
+        synchronized (segmentLog) {
+            while(count < max) {
+                byte[] data= segmentLog.read();
+                if(data == null)
+                    break;
+                try {
+                    target.add(serializer.deserialize(data));
+                    count++;
+                } catch(Exception x) {
+                    LOGGER.error("SpillTier failed to deserialize data!", x);
+                }
+            }// while
+            if(segmentLog.isEmpty())
+                spilling= false;
+        }// synchronized
+        countReplayed.addAndGet(count);
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return segmentLog.isEmpty();
+    }
+    public long count() {
+        return segmentLog.count();
+    }
+    public long countSpilled() {
+        return countSpilled.get();
+    }
+    public long countReplayed() {
+        return countReplayed.get();
+    }
+    public long countRejected() {
+        return countRejected.get();
+    }
+
+    void close() {
+        try {
+            segmentLog.close();
+        } catch(IOException x) {
+            LOGGER.warn("SpillTier failed to delete segments.", x);
+        }
+    }
+
+    public String dump() {
+        return String.format("pending=%d, spilled=%d, replayed=%d, rejected=%d, diskBytes=%d",
+                segmentLog.count(), countSpilled.get(), countReplayed.get(), countRejected.get(),
+                segmentLog.diskBytes());
+    }
+}
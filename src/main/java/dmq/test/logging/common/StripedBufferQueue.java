@@ -0,0 +1,233 @@
+package dmq.test.logging.common;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+// 分段的缓存（多个生产者，一个消费者）
+// 生产者按照线程编号写入各自的分段（stripe），每个分段有独立的锁，不同分段的线程之间不再争抢同一个锁
+// 写入时记录System.nanoTime作为时间戳，消费者取出数据时，先把各分段的数据转入消费者一侧的缓存，
+// 再按照时间戳归并，同一个分段内的数据（同一个线程写入的数据）总是保持写入顺序
+// 容量由所有分段共享，通过一个计数器控制，size与capacity的含义与其他BufferQueue相同
+// 分段的数组按需扩大（最大到maxCapacity），之后不再分配
+public class StripedBufferQueue<T> implements BufferQueue<T> {
+    public static final int STRIPES= stripes(Runtime.getRuntime().availableProcessors());
+    private static final int MAX_STRIPES= 64;
+    private static final int MIN_RING= 16;
+
+    // 不小于CPU核数的2的幂，最多MAX_STRIPES个
+    private static int stripes(int cores) {
+        int n= 1;
+        while(n < cores && n < MAX_STRIPES)
+            n<<= 1;
+        return n;
+    }
+
+    // 带时间戳的环形数组，容量为2的幂，空间不足时扩大一倍
+    private static final class Ring {
+        private Object[] items;
+        private long[] stamps;
+        private int head= 0, size= 0;
+        Ring(int capacity) {
+            int n= MIN_RING;
+            while(n < capacity)
+                n<<= 1;
+            items= new Object[n];
+            stamps= new long[n];
+        }
+        private int indexOf(int offset) {
+            return (head+offset) & (items.length-1);
+        }
+        void add(Object t, long stamp) {
+            if(size == items.length)
+                grow();
+            int index= indexOf(size);
+            items[index]= t;
+            stamps[index]= stamp;
+            size++;
+        }
+        private void grow() {
+            Object[] newItems= new Object[items.length*2];
+            long[] newStamps= new long[items.length*2];
+            for(int i=0; i<size; i++) {
+                newItems[i]= items[indexOf(i)];
+                newStamps[i]= stamps[indexOf(i)];
+            }// for
+            items= newItems;
+            stamps= newStamps;
+            head= 0;
+        }
+        Object get(int offset) {
+            return items[indexOf(offset)];
+        }
+        long stamp(int offset) {
+            return stamps[indexOf(offset)];
+        }
+        Object poll() {
+            Object t= items[head];
+            items[head]= null;
+            head= (head+1) & (items.length-1);
+            size--;
+            return t;
+        }
+        // 移除offset位置的数据，之前的数据依次向后移动一格
+        Object remove(int offset) {
+            Object removed= get(offset);
+            long stamp= stamp(offset);
+            for(int i=offset; i>0; i--) {
+                items[indexOf(i)]= items[indexOf(i-1)];
+                stamps[indexOf(i)]= stamps[indexOf(i-1)];
+            }// for
+            items[head]= removed;
+            stamps[head]= stamp;
+            return poll();
+        }
+        // 把所有数据按顺序转入target
+        void transferTo(Ring target) {
+            while(size > 0) {
+                long stamp= stamps[head];
+                target.add(poll(), stamp);
+            }// while
+        }
+    }
+
+    private final int maxCapacity;
+    private final Ring[] stripes;   // 生产者写入，每个分段使用自己的锁
+    private final Ring[] pending;   // 消费者一侧，持有consumerLock时访问
+    private final AtomicInteger count= new AtomicInteger(0);
+    private final Object consumerLock= new Object();
+
+    public StripedBufferQueue(int maxCapacity) {
+        this(maxCapacity, STRIPES);
+    }
+    public StripedBufferQueue(int maxCapacity, int stripeCount) {
+        if(maxCapacity <= 0)
+            throw new IllegalArgumentException(String.format("Bad capacity (maxCapacity= %d).", maxCapacity));
+        this.maxCapacity= maxCapacity;
+        int n= stripes(Math.max(1, stripeCount));
+        stripes= new Ring[n];
+        pending= new Ring[n];
+        int initial= Math.max(MIN_RING, maxCapacity/n);
+        for(int i=0; i<n; i++) {
+            stripes[i]= new Ring(initial);
+            pending[i]= new Ring(initial);
+        }// for
+    }
+
+    private Ring stripeOf(Thread thread) {
+        long id= thread.getId();
+        return stripes[(int)(id ^ (id >>> 16)) & (stripes.length-1)];
+    }
+
+    @Override// BufferQueue
+    public boolean offer(T t) {
+        if(count.incrementAndGet() > maxCapacity) {
+            count.decrementAndGet();
+            return false;
+        }
+        Ring stripe= stripeOf(Thread.currentThread());
+        long stamp= System.nanoTime();
+        synchronized (stripe) {
+            stripe.add(t, stamp);
+        }// synchronized
+        return true;
+    }
+
+    // 把各分段的数据转入消费者一侧，调用者需要持有consumerLock
+    private void collect() {
+        for(int i=0; i<stripes.length; i++) {
+            Ring stripe= stripes[i];
+            synchronized (stripe) {
+                stripe.transferTo(pending[i]);
+            }// synchronized
+        }// for
+    }
+    // 时间戳最早的分段，没有数据时返回-1，调用者需要持有consumerLock
+    private int earliest() {
+        int found= -1;
+        long stamp= 0;
+        for(int i=0; i<pending.length; i++) {
+            Ring ring= pending[i];
+            if(ring.size == 0)
+                continue;
+            // nanoTime可能溢出，只能比较差值
+            if(found < 0 || ring.stamp(0)-stamp < 0) {
+                found= i;
+                stamp= ring.stamp(0);
+            }
+        }// for
+        return found;
+    }
+
+    @Override// BufferQueue
+    @SuppressWarnings("unchecked")
+    public int drainTo(Collection<? super T> target, int max) {
+        synchronized (consumerLock) {
+            collect();
+            int drained= 0;
+            while(drained < max) {
+                int index= earliest();
+                if(index < 0)
+                    break;
+                target.add((T)pending[index].poll());
+                count.decrementAndGet();
+                drained++;
+            }// while
+            return drained;
+        }// synchronized
+    }
+
+    @Override// BufferQueue
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        synchronized (consumerLock) {
+            collect();
+            int index= earliest();
+            if(index < 0)
+                return null;
+            count.decrementAndGet();
+            return (T)pending[index].poll();
+        }// synchronized
+    }
+
+    // 优先级相同时，移除时间戳最早的一条
+    @Override// BufferQueue
+    @SuppressWarnings("unchecked")
+    public T removeLowest(ToIntFunction<? super T> priority, int limit) {
+        synchronized (consumerLock) {
+            collect();
+            int lowest= limit;
+            int foundRing= -1, foundOffset= -1;
+            long foundStamp= 0;
+            for(int i=0; i<pending.length; i++) {
+                Ring ring= pending[i];
+                for(int j=0; j<ring.size; j++) {
+                    int value= priority.applyAsInt((T)ring.get(j));
+                    if(value < lowest || (value == lowest && foundRing >= 0 && ring.stamp(j)-foundStamp < 0)) {
+                        lowest= value;
+                        foundRing= i;
+                        foundOffset= j;
+                        foundStamp= ring.stamp(j);
+                    }
+                }// for
+            }// for
+            if(foundRing < 0)
+                return null;
+            count.decrementAndGet();
+            return (T)pending[foundRing].remove(foundOffset);
+        }// synchronized
+    }
+
+    @Override// BufferQueue
+    public int size() {
+        int size= count.get();
+        if(size < 0)
+            return 0;
+        return size > maxCapacity? maxCapacity: size;
+    }
+
+    @Override// BufferQueue
+    public int capacity() {
+        return maxCapacity;
+    }
+}
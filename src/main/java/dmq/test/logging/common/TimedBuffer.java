@@ -3,11 +3,17 @@ package dmq.test.logging.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 // 设定定时器，周期性的批量处理数据，直到close
 // 同时，当缓存达到一定数量之后，立刻处理一次
@@ -17,61 +23,156 @@ import java.util.concurrent.TimeUnit;
 //  *** JAVA TIMER BUG ***
 // Java Timer的实现依赖系统时间只能递增的事实。
 // 假如向后调整系统时间（比如测试的时候），就是时间突然向后倒退了一些，这些Timer就开始SB，不知道触发定时任务了！
-// 为避开这一无脑的现象，目前使用ScheduledThreadPoolExecutor提供的定时器的效果
+// 为避开这一无脑的现象，目前使用共享的TimerWheel（只依赖System.nanoTime）驱动定时处理，
+// 所有TimedBuffer共用一个tick线程与一个弹性的线程池，每个TimedBuffer的处理任务通过SerialExecutor依次执行
+// 缓存的存储方式由Engine决定（见BufferQueue）：
+//  LINKED  LinkedList + 对象锁，最初的实现方式
+//  RING    预先分配的无锁环形缓存，多个线程同时写日志时，不再争抢同一个对象锁
+//  STRIPED 按照线程分段的缓存，每个分段独立加锁，取出时按照写入时间归并（适合CPU核数很多的主机）
+// 可以通过构造函数指定，也可以通过系统属性 timedbuffer_engine=ring（或striped） 修改默认值
+// 缓存已满时的处理方式由OverflowPolicy决定，默认丢弃新数据
+// 设置AdaptiveController之后，thresholdSize与thresholdTime只作为初始值，运行时根据处理耗时动态调整
+// 设置SizeEstimator之后，还可以按照字节数限制缓存（maxBytes），并按照累计的字节数触发处理（thresholdBytes），
+// 同时每次交给BufferHandler的一批数据也不超过thresholdBytes（单条数据超出时单独成批）
+// 打开磁盘溢出层（SpillTier）之后，内存中的数据超过highWater时，新数据写入磁盘，等下游处理跟上之后再按顺序取出处理
+// 打开预写日志（Journal）之后，数据写入缓存之前先写入日志，BufferHandler处理完成之后确认，
+// 进程被杀或者内存溢出之后，重新打开时会先处理上次尚未确认的数据（取代了原来没有启用的ShutdownHook）
+// 预写日志按照数量确认，每次取出的数据按照取出的顺序确认（定时处理、flush与CallerRuns可能同时进行），
+// 被丢弃、被淘汰以及由调用线程直接处理的数据，在缓存取空时随当时取出的一批一起确认
+// 设置处理通道（FlushLanes）之后，每批数据按照键分配到N个通道并行处理，同一个键的数据仍然按顺序处理
+// 交给BufferHandler的每批数据是BatchPool分配的Batch，processBuffer返回之后被回收复用，BufferHandler不能保留这个列表
 public class TimedBuffer<T> implements Runnable {
     private static final Logger LOGGER= LoggerFactory.getLogger(TimedBuffer.class);
 
     public static final int MAX_CAPACITY= 10000;    // 缓存最大容量，超出容量的数据自动丢弃
     public static final int THRESHOLD_SIZE= 1000;   // 缓存达到一定数量之后，立刻处理（不影响定时处理）
     public static final int THRESHOLD_TIME= 1000;   // 每隔一定毫秒的时间，定期处理一次
-    public static final int MAX_THREADS= 1;         // 用于定时服务的线程池大小
+    public static final int MAX_THREADS= 1;         // 已经无效（由共享的TimerWheel取代），保留用于兼容，其他值只记录警告
     public static final boolean FIX_DELAY= true;    // 是否使用固定延时（距上次多久再执行），而不是固定频率（每多久执行）
+    public static final int WAIT_SECONDS= 5;        // flush与close时，等待处理完成的最长时间
+    public static final String ENGINE_CONFIG= "timedbuffer_engine";// 用于指定默认Engine的系统属性
+    public static final Engine ENGINE= Engine.parse(System.getProperty(ENGINE_CONFIG), Engine.LINKED);
 
-    private ScheduledExecutorService bufferService= null;
-    private List<T> bufferList= new LinkedList<>();
-    private long countDropped= 0;// 当缓存满载之后，记录丢弃掉数据的次数
-    private BufferHandler bufferHandler;
+    // 缓存的存储方式
+    public enum Engine {
+        LINKED, RING, STRIPED;
+
+        public static Engine parse(String name, Engine def) {
+            if(name == null || name.isEmpty())
+                return def;
+            try {
+                return Engine.valueOf(name.trim().toUpperCase());
+            } catch(IllegalArgumentException x) {
+                LOGGER.warn("Unknown timed buffer engine: {}, using {}.", name, def);
+            }
+            return def;
+        }
+        <T> BufferQueue<T> create(int maxCapacity) {
+            if(this == RING)
+                return new RingBufferQueue<>(maxCapacity);
+            if(this == STRIPED)
+                return new StripedBufferQueue<>(maxCapacity);
+            return new LinkedBufferQueue<>(maxCapacity);
+        }
+    }
+
+    private volatile SerialExecutor bufferService= null;
+    private volatile TimerWheel.Timeout timingTimeout= null;
+    private final BufferQueue<T> bufferQueue;
+    private final AtomicLong countDropped= new AtomicLong(0);// 当缓存满载之后，记录丢弃掉数据的次数
+    private final AtomicBoolean timingFired= new AtomicBoolean(false);// 已经提交了一次尚未执行的处理
+    private BufferHandler<T> bufferHandler;
     private BufferDroppedNotify bufferDroppedNotify;
+    private volatile OverflowPolicy<T> overflowPolicy= new DropNewestPolicy<>();
+    private volatile AdaptiveController adaptiveController= null;
+    private volatile SizeEstimator<T> sizeEstimator= null;
+    private volatile long maxBytes= 0, thresholdBytes= 0;// 0表示不限制
+    private final AtomicLong countBytes= new AtomicLong(0);// 缓存内数据的估算字节数
+    private volatile SpillTier<T> spillTier= null;
+    private volatile Journal<T> journal= null;
+    private final Object journalLock= new Object();// 保证数据写入日志与写入缓存的顺序一致
+    private int deferredAcks= 0;// 由journalLock保护：已写入日志、但不在缓存中的数据，等缓存取空时确认
+    private int overflowing= 0;// 由journalLock保护：已写入日志、正在由OverflowPolicy处理的数据
+    private final ArrayDeque<AckTicket> ackTickets= new ArrayDeque<>();// 由自身加锁，按照取出的顺序排列
+    private volatile FlushLanes<T> flushLanes= null;
+    private final BatchPool<T> batchPool;
+    private final Runnable fireTask= new Runnable() {
+        @Override
+        public void run() {
+            timingFired.set(false);
+            if(lanesSaturated())
+                return;
+            Batch<T> batch= batchPool.acquire();
+            AckTicket ticket= drain(batch);
+            if(batch.size() == 0) {
+                acknowledge(ticket);
+                batch.recycle();
+                return;
+            }
+            process(bufferHandler, batch, ticket);
+            LOGGER.trace("fireTiming: buffered data has been written! (size= {}, threshold= {})",
+                    batch.size(), currentThresholdSize());
+            batch.recycle();
+            replaySpill();
+        }
+    };
     public TimedBuffer(BufferHandler<T> handler) {
         this(MAX_CAPACITY, THRESHOLD_SIZE, THRESHOLD_TIME, MAX_THREADS, FIX_DELAY, handler, null);
     }
     private final int maxCapacity, thresholdSize, thresholdTime;
+    private final boolean fixDelay;
     public TimedBuffer(int maxCapacity, int thresholdSize, int thresholdTime, int maxThreads, boolean fixDelay,
                        BufferHandler<T> handler, BufferDroppedNotify notify) {
+        this(maxCapacity, thresholdSize, thresholdTime, maxThreads, fixDelay, ENGINE, handler, notify);
+    }
+    public TimedBuffer(int maxCapacity, int thresholdSize, int thresholdTime, int maxThreads, boolean fixDelay,
+                       Engine engine, BufferHandler<T> handler, BufferDroppedNotify<?> notify) {
         this.maxCapacity= maxCapacity;
         this.thresholdSize= thresholdSize;
         this.thresholdTime= thresholdTime;
+        this.fixDelay= fixDelay;
+        bufferQueue= (engine != null? engine: ENGINE).create(maxCapacity);
+        batchPool= new BatchPool<>(thresholdSize);
         bufferHandler= handler;
         bufferDroppedNotify= notify;
-        startService(maxThreads, fixDelay);
-        //installShutdownHook();
-    }
-
-    // 当程序退出时，最大程度处理缓存内的数据
-    private void installShutdownHook() {
-        final BufferHandler<T> bufferHandler= this.bufferHandler;
-        final TimedBuffer<T> timedBuffer= this;
-        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
-            @Override
-            public void run() {
-                List<T> list= timedBuffer.take();
-                int size= list.size();
-                if(size > 0) {
-                    //System.out.printf("writing buffered data before shutdown... (size= %d)\n", size);
-                    LOGGER.trace("writing buffered data before shutdown... (size= {})", size);
-                    bufferHandler.processBuffer(list);
-                    //System.out.printf("written %d on shutdown.\n", size);
-                    LOGGER.trace("written {} on shutdown.", size);
-                }
-            }
-        }));
+        startService(maxThreads);
     }
 
     // 关闭定时服务之后，周期性处理数据功能失效
+    // 磁盘溢出层中剩余的数据，在当前线程内处理完
     public void close() {
         LOGGER.debug("Close timed buffer .");
         fireTiming();
-        stopService(false, 5);
+        stopService(false, WAIT_SECONDS);
+        SpillTier<T> spill= spillTier;
+        if(spill != null) {
+            while(bufferHandler != null && !spill.isEmpty()) {
+                awaitCapacity();
+                Batch<T> batch= batchPool.acquire();
+                AckTicket ticket= drain(batch);
+                if(batch.size() == 0) {
+                    acknowledge(ticket);
+                    batch.recycle();
+                    break;
+                }
+                process(bufferHandler, batch, ticket);
+                batch.recycle();
+            }// while
+            spill.close();
+            spillTier= null;
+        }
+        FlushLanes<T> lanes= flushLanes;
+        if(lanes != null)
+            lanes.shutdown(WAIT_SECONDS, TimeUnit.SECONDS);
+        // 关闭之后不再确认（关闭的日志不能再写入checkpoint）
+        synchronized (ackTickets) {
+            Journal<T> log= journal;
+            if(log != null) {
+                journal= null;
+                log.close();
+            }
+            ackTickets.clear();
+        }// synchronized
     }
     public void close(Runnable closeHandler) {
         close();
@@ -80,62 +181,327 @@ public class TimedBuffer<T> implements Runnable {
     }
 
 
-    public synchronized boolean put(T t) {
-        int size= bufferList.size();
-        if(size >= maxCapacity) {
-            countDropped++;
-            //System.out.printf("Buffer is full, dropping data! countDropped= %d\n", countDropped);
-            LOGGER.trace("Buffer is full, dropping data! countDropped= {}", countDropped);
+    public void setOverflowPolicy(OverflowPolicy<T> policy) {
+        overflowPolicy= policy != null? policy: new DropNewestPolicy<>();
+    }
+    public OverflowPolicy<T> getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    // 动态调整批量数量与处理周期，null表示使用固定的thresholdSize与thresholdTime
+    public void setAdaptiveController(AdaptiveController controller) {
+        adaptiveController= controller;
+    }
+    public AdaptiveController getAdaptiveController() {
+        return adaptiveController;
+    }
+    // 按照字节数限制缓存，maxBytes为缓存的上限，thresholdBytes为触发处理的数量以及单批处理的上限
+    // 应当在写入数据之前设置
+    public void setByteBudget(SizeEstimator<T> estimator, long maxBytes, long thresholdBytes) {
+        this.maxBytes= Math.max(0, maxBytes);
+        this.thresholdBytes= Math.max(0, thresholdBytes);
+        sizeEstimator= estimator;
+    }
+    public long countBytes() {
+        return countBytes.get();
+    }
+    private long estimate(SizeEstimator<T> estimator, T t) {
+        return (estimator == null || t == null)? 0: estimator.estimate(t);
+    }
+    // 打开磁盘溢出层，directory为段文件目录（已有的段文件会被删除），highWater为内存中开始溢出的数据量
+    // maxDiskBytes为磁盘空间上限，segmentBytes为单个段文件的大小
+    public boolean enableSpill(Path directory, Serializer<T> serializer, int highWater,
+                               long maxDiskBytes, int segmentBytes) {
+        try {
+            spillTier= new SpillTier<>(directory, serializer, highWater, maxDiskBytes, segmentBytes);
+            return true;
+        } catch(IOException x) {
+            LOGGER.error(String.format("Failed to enable spill tier (directory= %s)", directory), x);
+        }
+        return false;
+    }
+    public SpillTier<T> getSpillTier() {
+        return spillTier;
+    }
+    // 打开预写日志，directory为日志目录，syncInterval为同步到磁盘的周期（毫秒），maxDiskBytes为磁盘空间上限
+    // 打开之前，先在当前线程内重新处理目录中尚未确认的数据（上次异常退出时遗留的数据）
+    public boolean enableJournal(Path directory, Serializer<T> serializer, long syncInterval, long maxDiskBytes) {
+        final Journal<T> log;
+        try {
+            log= new Journal<>(directory, serializer, maxDiskBytes, SegmentLog.SEGMENT_BYTES);
+        } catch(IOException x) {
+            LOGGER.error(String.format("Failed to enable journal (directory= %s)", directory), x);
             return false;
         }
 
-        bufferList.add(t);
-        // 达到限定的数量时，立刻处理
-        if(size+1 >= thresholdSize)
+        BufferHandler<T> handler= bufferHandler;
+        for(;;) {
+            List<T> list= log.recover(maxCapacity);
+            if(list.size() == 0)
+                break;
+            LOGGER.debug("Resending unacknowledged data from journal ... (size= {})", list.size());
+            if(handler != null)
+                handler.processBuffer(list);
+            log.checkpoint();
+        }// for
+        log.sync();
+
+        journal= log;
+        if(syncInterval > 0)
+            scheduleSync(log, syncInterval);
+        return true;
+    }
+    // 按照固定的周期同步预写日志，直到日志被关闭
+    private void scheduleSync(final Journal<T> log, final long syncInterval) {
+        final TimerWheel wheel= TimerWheel.shared();
+        wheel.schedule(wheel.workers(), new Runnable() {
+            @Override
+            public void run() {
+                if(journal != log)
+                    return;
+                log.sync();
+                scheduleSync(log, syncInterval);
+            }
+        }, syncInterval);
+    }
+    public Journal<T> getJournal() {
+        return journal;
+    }
+    // 按照keyExtractor取得的键，将每批数据分配到lanes个通道并行处理，lanes不大于1时恢复为依次处理
+    // 应当在写入数据之前设置
+    public void setFlushLanes(int lanes, Function<? super T, ?> keyExtractor) {
+        FlushLanes<T> old= flushLanes;
+        flushLanes= (lanes > 1 && keyExtractor != null)?
+                new FlushLanes<>(lanes, keyExtractor, maxCapacity, batchPool, this::fireTiming): null;
+        if(old != null)
+            old.shutdown(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+    public FlushLanes<T> getFlushLanes() {
+        return flushLanes;
+    }
+    private int currentThresholdSize() {
+        AdaptiveController controller= adaptiveController;
+        return controller == null? thresholdSize: controller.getThresholdSize();
+    }
+    private long currentThresholdTime() {
+        AdaptiveController controller= adaptiveController;
+        return controller == null? thresholdTime: controller.getThresholdTime();
+    }
+
+    // 是否加锁由bufferQueue决定，RING方式下写入数据不使用任何锁
+    // 打开预写日志之后，写入日志与写入缓存在journalLock内完成，没有写入缓存的数据推迟确认
+    // OverflowPolicy在journalLock之外调用：BlockPolicy等待的定时处理、CallerRunsPolicy的处理都需要取出数据
+    // null不会被写入缓存（LINKED方式使用的ArrayDeque不能保存null）
+    public boolean put(T t) {
+        if(t == null)
+            return false;
+        Journal<T> log= journal;
+        if(log == null)
+            return putBuffer(t) || overflow(t);
+        synchronized (journalLock) {
+            if(!log.append(t)) {
+                long dropped= countDropped.incrementAndGet();
+                LOGGER.trace("Journal is full, dropping data! countDropped= {}", dropped);
+                return false;
+            }
+            if(putBuffer(t))
+                return true;
+            overflowing++;
+        }// synchronized
+        boolean accepted= overflow(t);
+        synchronized (journalLock) {
+            overflowing--;
+            if(!accepted)
+                deferredAcks++;
+        }// synchronized
+        return accepted;
+    }
+    // 写入缓存或者磁盘溢出层，不做溢出处理
+    private boolean putBuffer(T t) {
+        SpillTier<T> spill= spillTier;
+        // 磁盘空间也不足时，交给OverflowPolicy处理（此时不再保证内存与磁盘之间的数据顺序）
+        if(spill != null && spill.shouldSpill(bufferQueue.size()))
+            return spill.spill(t);
+        return offer(t);
+    }
+    private boolean overflow(T t) {
+        if(overflowPolicy.overflow(this, t))
+            return true;
+
+        long dropped= countDropped.incrementAndGet();
+        //System.out.printf("Buffer is full, dropping data! countDropped= %d\n", countDropped);
+        LOGGER.trace("Buffer is full, dropping data! countDropped= {}", dropped);
+        return false;
+    }
+
+    // 以下几个方法供OverflowPolicy使用
+    // 写入缓存，不做溢出处理
+    boolean offer(T t) {
+        SizeEstimator<T> estimator= sizeEstimator;
+        long size= estimate(estimator, t);
+        long bytes= countBytes.addAndGet(size);
+        // 缓存为空时，总是接收超出上限的单条数据
+        long limit= maxBytes;
+        if(limit > 0 && bytes > limit && bytes != size) {
+            countBytes.addAndGet(-size);
+            return false;
+        }
+        if(!bufferQueue.offer(t)) {
+            countBytes.addAndGet(-size);
+            return false;
+        }
+
+        // 达到限定的数量（或字节数）时，立刻处理
+        long threshold= thresholdBytes;
+        if(bufferQueue.size() >= currentThresholdSize() || (threshold > 0 && bytes >= threshold))
             fireTiming();
         return true;
     }
-    public /* synchronized */ List<T> take() {
-        long dropped;
-        BufferDroppedNotify notify;
-        List<T> list;
-        synchronized (this) {
-            dropped= countDropped;
-            notify= bufferDroppedNotify;
-            list = bufferList;
-            bufferList = new LinkedList<>();
-            countDropped = 0;
+    // 移除最早写入的数据，计入丢弃数量
+    T evictOldest() {
+        return evicted(bufferQueue.poll());
+    }
+    // 移除优先级最低的数据，计入丢弃数量
+    T evictLowest(ToIntFunction<? super T> priority, int limit) {
+        return evicted(bufferQueue.removeLowest(priority, limit));
+    }
+    private T evicted(T t) {
+        if(t != null) {
+            countDropped.incrementAndGet();
+            countBytes.addAndGet(-estimate(sizeEstimator, t));
+            if(journal != null) {
+                synchronized (journalLock) {
+                    deferredAcks++;
+                }// synchronized
+            }
+        }
+        return t;
+    }
+    // 在当前线程内，连同t一起处理缓存内的数据，返回处理的数量
+    // 打开预写日志时，t在日志中的位置可能在磁盘溢出层的数据之后，所以t的确认也推迟到缓存取空时
+    int processNow(T t) {
+        BufferHandler<T> handler= bufferHandler;
+        if(handler == null)
+            return 0;
+        Batch<T> batch= batchPool.acquire();
+        if(journal != null) {
+            synchronized (journalLock) {
+                deferredAcks++;
+            }// synchronized
+        }
+        awaitCapacity();
+        AckTicket ticket= drain(batch);
+        batch.add(t);
+        process(handler, batch, ticket);
+        awaitLanes();
+        int count= batch.size();
+        batch.recycle();
+        return count;
+    }
+    // 取出的列表归调用者所有，打开预写日志时视为已经处理，立即确认
+    public List<T> take() {
+        List<T> list= new ArrayList<>(Math.min(bufferQueue.size(), maxCapacity));
+        acknowledge(drain(list));
+        return list;
+    }
+    // 取出数据，返回处理完成之后用于确认的AckTicket（没有打开预写日志时为null）
+    // 打开预写日志时在journalLock内取出，缓存取空之后，推迟确认的数据在日志中的位置都已经在这一批之前
+    // 有数据正在由OverflowPolicy处理时，它在日志中的位置早于这一批，这一批也推迟到缓存取空时确认
+    private AckTicket drain(List<T> list) {
+        Journal<T> log= journal;
+        if(log == null) {
+            drainBuffer(list);
+            return null;
+        }
+        synchronized (journalLock) {
+            drainBuffer(list);
+            int count= list.size();
+            if(overflowing > 0) {
+                deferredAcks+= count;
+                return null;
+            }
+            SpillTier<T> spill= spillTier;
+            if(bufferQueue.size() == 0 && (spill == null || spill.isEmpty())) {
+                count+= deferredAcks;
+                deferredAcks= 0;
+            }
+            if(count == 0)
+                return null;
+            AckTicket ticket= new AckTicket(log, count);
+            synchronized (ackTickets) {
+                ackTickets.add(ticket);
+            }// synchronized
+            return ticket;
         }// synchronized
+    }
+    private void drainBuffer(List<T> list) {
+        int count= bufferQueue.drainTo(list, maxCapacity);
+        SizeEstimator<T> estimator= sizeEstimator;
+        if(estimator != null) {
+            long bytes= 0;
+            for(int i=0; i<count; i++)
+                bytes+= estimate(estimator, list.get(i));
+            countBytes.addAndGet(-bytes);
+        }
+        // 内存中的数据总是早于磁盘中的数据
+        SpillTier<T> spill= spillTier;
+        if(spill != null && count < maxCapacity && !spill.isEmpty())
+            spill.drainTo(list, maxCapacity-count);
+        long dropped= countDropped.getAndSet(0);
+        BufferDroppedNotify notify= bufferDroppedNotify;
 
         // 通常情况下，dropped应当为0，
         if (dropped > 0 && notify != null)
             notify.notifyBufferDroppped(dropped);
-        return list;
     }
 
-    public synchronized int count() {
-        return bufferList.size();
+    // 包括磁盘溢出层中的数据
+    public int count() {
+        SpillTier<T> spill= spillTier;
+        return bufferQueue.size() + (spill == null? 0: (int)spill.count());
     }
-    public synchronized long countDropped() {
-        return countDropped;
+    public long countDropped() {
+        return countDropped.get();
     }
 
     // 打开定时服务，忽略重复打开的情况
-    private synchronized void startService(int threads, boolean fixDelay) {
+    // threads已不再使用：同一个TimedBuffer的处理总是依次执行，线程由共享的TimerWheel提供
+    private synchronized void startService(int threads) {
+        if(threads != MAX_THREADS)
+            LOGGER.warn("TimedBuffer ignored maxThreads={}: buffers run on the shared TimerWheel "
+                    + "(see system property {})", threads, TimerWheel.WORKERS_CONFIG);
         if(bufferService != null)
             return;
         if(bufferHandler == null)
             return;
-        bufferService= Executors.newScheduledThreadPool(threads);
-        if(fixDelay)
-            bufferService.scheduleWithFixedDelay(this, thresholdTime, thresholdTime, TimeUnit.MILLISECONDS);
-        else
-            bufferService.scheduleAtFixedRate(this, thresholdTime, thresholdTime, TimeUnit.MILLISECONDS);
+        SerialExecutor service= new SerialExecutor(TimerWheel.shared().workers());
+        bufferService= service;
+        scheduleTiming(service, thresholdTime);
+    }
+    // 每次定时处理之后，按照当前的处理周期安排下一次（处理周期可能被AdaptiveController调整）
+    private void scheduleTiming(final SerialExecutor service, long delay) {
+        if(service.isShutdown())
+            return;
+        timingTimeout= TimerWheel.shared().schedule(service, new Runnable() {
+            @Override
+            public void run() {
+                long start= System.nanoTime();
+                try {
+                    TimedBuffer.this.run();
+                } finally {
+                    long period= currentThresholdTime();
+                    long spent= TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+                    scheduleTiming(service, fixDelay? period: Math.max(0, period-spent));
+                }
+            }
+        }, delay);
     }
     // 关闭定时服务，忽略重复关闭的情况
     private synchronized void stopService(boolean now, int waitCount) {
         if(bufferService == null)
             return;
+        TimerWheel.Timeout timeout= timingTimeout;
+        if(timeout != null)
+            timeout.cancel();
         if(now)
             bufferService.shutdownNow();
         else {
@@ -155,28 +521,116 @@ public class TimedBuffer<T> implements Runnable {
         bufferService= null;
     }
     // 触发独立的定时器，已经打开的定义服务不受影响
-    private synchronized void fireTiming() {
-        final List<T> list= take();
-        if(bufferHandler == null)
+    // 在处理之前，重复的触发只提交一次，数据在定时服务的线程内取出
+    void fireTiming() {
+        SerialExecutor service= bufferService;
+        if(bufferHandler == null || service == null)
             return;
-        bufferService.submit(new Runnable() {
-            @Override
-            public void run() {
-                bufferHandler.processBuffer(list);
-                LOGGER.trace("fireTiming: buffered data has been written! (size= {}, threshold= {})",
-                        list.size(), thresholdSize);
-            }
-        });
+        if(!timingFired.compareAndSet(false, true))
+            return;
+        try {
+            service.execute(fireTask);
+        } catch(RejectedExecutionException x) {
+            // 定时服务已经关闭
+            timingFired.set(false);
+        }
     }
 
     // 以同步方式立刻刷新（清空）缓存
     public synchronized void flush() {
-         final List<T> list= take();
-        if(bufferHandler != null)
-            bufferHandler.processBuffer(list);
+        awaitCapacity();
+        final Batch<T> batch= batchPool.acquire();
+        AckTicket ticket= drain(batch);
+        if(bufferHandler != null) {
+            process(bufferHandler, batch, ticket);
+            awaitLanes();
+        } else
+            acknowledge(ticket);
+        batch.recycle();
+    }
+    // 处理通道饱和时，定时处理暂不取出数据，不在共享线程上等待（通道有空闲时会重新触发）
+    private boolean lanesSaturated() {
+        FlushLanes<T> lanes= flushLanes;
+        return lanes != null && lanes.isSaturated();
+    }
+    // 在调用线程上等待处理通道不再饱和
+    private void awaitCapacity() {
+        FlushLanes<T> lanes= flushLanes;
+        if(lanes != null)
+            lanes.awaitCapacity(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+    private void awaitLanes() {
+        FlushLanes<T> lanes= flushLanes;
+        if(lanes != null && !lanes.await(WAIT_SECONDS, TimeUnit.SECONDS))
+            LOGGER.warn("Timed out waiting for flush lanes: {}", lanes.dump());
+    }
+
+    // 处理一批数据，设置了处理通道时复制到各个通道的Batch中，处理完成之后在预写日志中确认
+    // 返回之后，调用者可以回收list
+    private void process(final BufferHandler<T> handler, List<T> list, final AckTicket ticket) {
+        FlushLanes<T> lanes= flushLanes;
+        if(lanes != null) {
+            lanes.dispatch(list, part-> processBytes(handler, part), ()-> acknowledge(ticket));
+            return;
+        }
+        processBytes(handler, list);
+        acknowledge(ticket);
+    }
+    // 预写日志按照数量确认，取出的各批数据可能在不同的线程上处理完成，所以按照取出的顺序依次确认
+    private static final class AckTicket {
+        final Journal<?> journal;
+        final int count;
+        boolean done= false;// 由ackTickets保护
+        AckTicket(Journal<?> journal, int count) {
+            this.journal= journal;
+            this.count= count;
+        }
+    }
+    private void acknowledge(AckTicket ticket) {
+        if(ticket == null)
+            return;
+        synchronized (ackTickets) {
+            ticket.done= true;
+            for(AckTicket head= ackTickets.peek(); head != null && head.done; head= ackTickets.peek()) {
+                ackTickets.poll();
+                if(head.journal == journal)
+                    head.journal.ack(head.count);
+            }// for
+        }// synchronized
+    }
+    // 按照thresholdBytes拆分成若干批处理
+    private void processBytes(BufferHandler<T> handler, List<T> list) {
+        SizeEstimator<T> estimator= sizeEstimator;
+        long threshold= thresholdBytes;
+        if(estimator == null || threshold <= 0) {
+            processBatch(handler, list);
+            return;
+        }
+
+        int from= 0;
+        long bytes= 0;
+        for(int i=0; i<list.size(); i++) {
+            long size= estimate(estimator, list.get(i));
+            if(i > from && bytes+size > threshold) {
+                processBatch(handler, list.subList(from, i));
+                from= i;
+                bytes= 0;
+            }
+            bytes+= size;
+        }// for
+        processBatch(handler, from == 0? list: list.subList(from, list.size()));
+    }
+    // 处理一批数据，并记录处理耗时
+    private void processBatch(BufferHandler<T> handler, List<T> list) {
+        AdaptiveController controller= adaptiveController;
+        long start= controller == null? 0: System.nanoTime();
+        handler.processBuffer(list);
+        if(controller != null)
+            controller.onProcessed(list.size(), System.nanoTime()-start, bufferQueue.size());
     }
 
     // 处理缓存的接口，用于生成匿名函数
+    // bufferList在processBuffer返回之后会被复用，需要保留数据时应当复制
     public interface BufferHandler<T> {
         void processBuffer(List<T> bufferList);
     }
@@ -187,11 +641,25 @@ public class TimedBuffer<T> implements Runnable {
 
     @Override// Runnable
     public void run() {
-        List<T> list= take();
-        if(list.size() == 0)
+        if(lanesSaturated())
+            return;
+        Batch<T> batch= batchPool.acquire();
+        AckTicket ticket= drain(batch);
+        if(batch.size() == 0) {
+            acknowledge(ticket);
+            batch.recycle();
             return;
+        }
 
-        bufferHandler.processBuffer(list);
+        process(bufferHandler, batch, ticket);
+        batch.recycle();
+        replaySpill();
+    }
+    // 磁盘中还有数据时，继续触发处理，不必等到下一个周期
+    private void replaySpill() {
+        SpillTier<T> spill= spillTier;
+        if(spill != null && !spill.isEmpty())
+            fireTiming();
     }
 
 }
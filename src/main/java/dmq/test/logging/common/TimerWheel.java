@@ -0,0 +1,166 @@
+package dmq.test.logging.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 整个JVM共享的哈希时间轮，驱动所有TimedBuffer的定时处理
+// 一个tick线程负责推进时间轮，到期的任务交给目标Executor执行（通常是TimedBuffer的SerialExecutor），
+// SerialExecutor运行在共享的线程池上，每个TimedBuffer不再需要独立的定时线程
+// 同一个tick内到期的任务一起派发（合并唤醒），定时精度为TICK毫秒
+// 时间轮只使用System.nanoTime，不受系统时间调整的影响（见TimedBuffer开头的说明）
+// 线程池的任务可能阻塞（mongodb批量写入、kafka等待确认、BlockPolicy等待缓存），所以线程池是弹性的：
+//  没有空闲线程时创建新线程，一个停滞的sink只占用自己的线程，不会耽误其他TimedBuffer的处理
+//  每个SerialExecutor同一时刻最多占用一个线程，线程数量不超过同时在处理的TimedBuffer（以及处理通道）的数量
+//  空闲超过KEEP_ALIVE秒的线程退出，至少保留的线程数可以通过系统属性 timedbuffer_workers 设置，默认为CPU核数的一半（至少2个）
+public class TimerWheel {
+    private static final Logger LOGGER= LoggerFactory.getLogger(TimerWheel.class);
+
+    public static final long TICK= 10;              // 每个tick的毫秒数
+    private static final int WHEEL_SIZE= 512;       // 时间轮的槽数（2的幂）
+    private static final long KEEP_ALIVE= 60;       // 空闲线程保留的秒数
+    public static final String WORKERS_CONFIG= "timedbuffer_workers";
+
+    private static volatile TimerWheel shared= null;
+    public static TimerWheel shared() {
+        if(shared == null) {
+            synchronized (TimerWheel.class) {
+                if(shared == null) {
+                    int def= Math.max(2, Runtime.getRuntime().availableProcessors()/2);
+                    Integer workers= Integer.getInteger(WORKERS_CONFIG, def);
+                    shared= new TimerWheel(workers > 0? workers: def);
+                }
+            }// synchronized
+        }
+        return shared;
+    }
+
+    // 已安排的定时任务，可以取消
+    public static class Timeout {
+        private final Executor target;
+        private final Runnable task;
+        private final long deadline;// 相对于时间轮启动时间的纳秒数
+        private long rounds= 0;
+        private volatile boolean cancelled= false;
+        private Timeout(Executor target, Runnable task, long deadline) {
+            this.target= target;
+            this.task= task;
+            this.deadline= deadline;
+        }
+        public void cancel() {
+            cancelled= true;
+        }
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos= TimeUnit.MILLISECONDS.toNanos(TICK);
+    private final long startNanos= System.nanoTime();
+    private final List<List<Timeout>> wheel= new ArrayList<>(WHEEL_SIZE);// 只由tick线程访问
+    private final Queue<Timeout> added= new ConcurrentLinkedQueue<>();
+    private final ExecutorService workers;
+    private long tick= 0;
+    private TimerWheel(int workerCount) {
+        for(int i=0; i<WHEEL_SIZE; i++)
+            wheel.add(new ArrayList<>());
+        workers= new ThreadPoolExecutor(workerCount, Integer.MAX_VALUE, KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), daemonFactory("timed-buffer-worker-"));
+        Thread thread= daemonFactory("timed-buffer-wheel").newThread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        });
+        thread.start();
+        LOGGER.debug("TimerWheel started (workers= {}, tick= {}ms)", workerCount, TICK);
+    }
+    private static ThreadFactory daemonFactory(final String name) {
+        final AtomicInteger count= new AtomicInteger(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread= new Thread(runnable, name.endsWith("-")? name+count.incrementAndGet(): name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // 共享的弹性线程池，用于创建SerialExecutor，任务可以阻塞
+    public Executor workers() {
+        return workers;
+    }
+
+    // delay毫秒之后，将task交给target执行
+    public Timeout schedule(Executor target, Runnable task, long delay) {
+        long deadline= System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+        Timeout timeout= new Timeout(target, task, deadline);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void loop() {
+        for(;;) {
+            try {
+                waitForNextTick();
+                transferAdded();
+                expire(wheel.get((int)(tick & (WHEEL_SIZE-1))));
+                tick++;
+            } catch(InterruptedException x) {
+                LOGGER.warn("TimerWheel interrupted.", x);
+                return;
+            } catch(Throwable x) {
+                LOGGER.error("TimerWheel tick failed!", x);
+            }
+        }// for
+    }
+    private void waitForNextTick() throws InterruptedException {
+        long deadline= (tick+1)*tickNanos;
+        for(;;) {
+            long remain= deadline - (System.nanoTime()-startNanos);
+            if(remain <= 0)
+                return;
+            TimeUnit.NANOSECONDS.sleep(remain);
+        }// for
+    }
+    private void transferAdded() {
+        for(Timeout timeout= added.poll(); timeout != null; timeout= added.poll()) {
+            if(timeout.cancelled)
+                continue;
+            long ticks= Math.max(timeout.deadline/tickNanos, tick);
+            timeout.rounds= (ticks-tick)/WHEEL_SIZE;
+            wheel.get((int)(ticks & (WHEEL_SIZE-1))).add(timeout);
+        }// for
+    }
+    private void expire(List<Timeout> bucket) {
+        Iterator<Timeout> iterator= bucket.iterator();
+        while(iterator.hasNext()) {
+            Timeout timeout= iterator.next();
+            if(timeout.cancelled) {
+                iterator.remove();
+            } else if(timeout.rounds <= 0) {
+                iterator.remove();
+                try {
+                    timeout.target.execute(timeout.task);
+                } catch(RejectedExecutionException x) {
+                    // 目标已经关闭
+                }
+            } else
+                timeout.rounds--;
+        }// while
+    }
+}
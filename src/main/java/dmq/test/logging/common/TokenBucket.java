@@ -0,0 +1,45 @@
+package dmq.test.logging.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 不加锁的令牌桶
+// 按照GCRA（虚拟调度）实现：只记录“下一个令牌的理论到达时间”，一次CAS完成取令牌
+// 与令牌桶等价：每秒补充rate个令牌，最多积攒burst个
+// 多个线程同时取令牌时，CAS失败的线程重新计算
+public class TokenBucket {
+    private static final long NANOS= 1000*1000*1000L;
+
+    private final double rate;
+    private final long burst;
+    private final long interval;    // 每个令牌的纳秒数
+    private final long capacity;    // burst个令牌对应的纳秒数
+    private final AtomicLong arrival;// 理论到达时间（System.nanoTime）
+    // rate为每秒的令牌数，burst为最多积攒的令牌数（不小于1）
+    public TokenBucket(double rate, long burst) {
+        this.rate= rate;
+        this.burst= Math.max(1, burst);
+        interval= Math.max(1, (long)(NANOS/rate));
+        capacity= this.burst*interval;
+        arrival= new AtomicLong(System.nanoTime());// 初始时令牌是满的
+    }
+
+    public double getRate() {
+        return rate;
+    }
+    public long getBurst() {
+        return burst;
+    }
+
+    // 取一个令牌，没有令牌时立即返回false
+    public boolean tryAcquire() {
+        long now= System.nanoTime();
+        for(;;) {
+            long current= arrival.get();
+            long next= (current-now < 0? now: current) + interval;
+            if(next-now > capacity)
+                return false;
+            if(arrival.compareAndSet(current, next))
+                return true;
+        }// for
+    }
+}
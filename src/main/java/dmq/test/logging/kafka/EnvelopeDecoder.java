@@ -0,0 +1,151 @@
+package dmq.test.logging.kafka;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// 解析KafkaSender以信封模式发送的数据（见KafkaSender.enableEnvelope），用于kafka的消费者
+// 信封模式下，一条kafka消息包含多条日志：
+//  byte    MAGIC（0xE1，普通的日志以'{'开头，不会冲突）
+//  byte    VERSION
+//  byte    CODEC（0为不压缩，1为deflate，2为使用预置字典的deflate）
+//  int     字典的Adler32校验值（不使用字典时为0）
+//  int     日志的数量
+//  int     压缩之前的字节数
+//  byte[]  压缩之后的数据，压缩之前为连续的 (int 字节数, byte[] 日志)
+// 不是信封的数据作为一条日志返回，所以消费者可以同时处理两种数据
+// 使用自定义字典时，发送方与消费者必须使用相同的字典
+public class EnvelopeDecoder {
+    public static final byte MAGIC= (byte)0xE1;
+    public static final byte VERSION= 1;
+    public static final byte CODEC_NONE= 0;
+    public static final byte CODEC_DEFLATE= 1;
+    public static final byte CODEC_DEFLATE_DICT= 2;
+    public static final int HEADER_BYTES= 3+4+4+4;
+
+    // 默认的预置字典，内容是日志中常见的片段，越常见的片段越靠后（deflate优先匹配距离近的内容）
+    public static final byte[] DEFAULT_DICTIONARY= (
+            "\tat java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:"
+            + "\tat java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:"
+            + "\tat sun.reflect.NativeMethodAccessorImpl.invoke(NativeMethodAccessorImpl.java:"
+            + "\tat java.lang.reflect.Method.invoke(Method.java:\n\tat java.lang.Thread.run(Thread.java:"
+            + "\tat org.springframework.\tat org.apache.\tat com.\tat dmq.test.logging.\n"
+            + "Caused by: java.io.IOException: java.lang.NullPointerException"
+            + "java.lang.IllegalStateException: java.lang.IllegalArgumentException: "
+            + ", fingerprint=, repeated=, repeat_count=, first_ts=, last_ts=, cause=null}"
+            + "exception={trace=java.lang.RuntimeException: , name=java.lang., message="
+            + "Jan Feb Mar Apr May Jun Jul Aug Sep Oct Nov Dec Mon Tue Wed Thu Fri Sat Sun UTC CST GMT "
+            + " +0800 +0000, file=?, line=?, class=?, method=?, exception=null, save_time="
+            + "{level=TRACE, message={level=DEBUG, message={level=ERROR, message={level=WARN, message="
+            + ".java, line=, class=, method=, exception=null}, timetext=20, timestamp="
+            + "{level=INFO, message=").getBytes(StandardCharsets.UTF_8);
+
+    public static boolean isEnvelope(byte[] value) {
+        return value != null && value.length >= HEADER_BYTES && value[0] == MAGIC && value[1] == VERSION;
+    }
+    // Adler32校验值，与zlib记录在压缩数据中的值相同
+    public static int dictionaryId(byte[] dictionary) {
+        if(dictionary == null)
+            return 0;
+        Adler32 adler= new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return (int)adler.getValue();
+    }
+
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    public EnvelopeDecoder(byte[] dictionary) {
+        this.dictionary= dictionary;
+        this.dictionaryId= dictionaryId(dictionary);
+    }
+    public EnvelopeDecoder() {
+        this(DEFAULT_DICTIONARY);
+    }
+
+    // 返回其中的每一条日志，数据损坏或者字典不一致时抛出DataFormatException
+    public List<byte[]> decode(byte[] value) throws DataFormatException {
+        if(value == null)
+            return Collections.emptyList();
+        if(!isEnvelope(value))
+            return Collections.singletonList(value);
+
+        ByteBuffer header= ByteBuffer.wrap(value);
+        header.position(2);
+        byte codec= header.get();
+        int dictId= header.getInt();
+        int count= header.getInt();
+        int rawBytes= header.getInt();
+        if(count < 0 || rawBytes < 0)
+            throw new DataFormatException("Bad envelope header");
+
+        byte[] raw;
+        switch(codec) {
+            case CODEC_NONE:
+                raw= new byte[value.length-HEADER_BYTES];
+                System.arraycopy(value, HEADER_BYTES, raw, 0, raw.length);
+                break;
+            case CODEC_DEFLATE:
+            case CODEC_DEFLATE_DICT:
+                if(codec == CODEC_DEFLATE_DICT && dictId != dictionaryId)
+                    throw new DataFormatException(String.format("Dictionary mismatch (expected= %08x, actual= %08x)",
+                            dictionaryId, dictId));
+                raw= inflate(value, rawBytes, codec == CODEC_DEFLATE_DICT);
+                break;
+            default:
+                throw new DataFormatException("Unknown envelope codec "+codec);
+        }// switch
+
+        ByteBuffer buffer= ByteBuffer.wrap(raw);
+        List<byte[]> list= new ArrayList<>(count);
+        for(int i=0; i<count; i++) {
+            if(buffer.remaining() < 4)
+                throw new DataFormatException("Truncated envelope");
+            int size= buffer.getInt();
+            if(size < 0 || size > buffer.remaining())
+                throw new DataFormatException("Truncated envelope");
+            byte[] one= new byte[size];
+            buffer.get(one);
+            list.add(one);
+        }// for
+        return list;
+    }
+    // 日志按照UTF-8解码
+    public List<String> decodeStrings(byte[] value) throws DataFormatException {
+        List<byte[]> list= decode(value);
+        List<String> result= new ArrayList<>(list.size());
+        for(byte[] one: list)
+            result.add(new String(one, StandardCharsets.UTF_8));
+        return result;
+    }
+
+    private byte[] inflate(byte[] value, int rawBytes, boolean useDictionary) throws DataFormatException {
+        Inflater inflater= new Inflater();
+        try {
+            inflater.setInput(value, HEADER_BYTES, value.length-HEADER_BYTES);
+            byte[] raw= new byte[rawBytes];
+            int offset= 0;
+            while(offset < rawBytes) {
+                int n= inflater.inflate(raw, offset, rawBytes-offset);
+                if(n == 0) {
+                    if(inflater.needsDictionary() && useDictionary && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                        continue;
+                    }
+                    if(inflater.finished() || inflater.needsInput() || inflater.needsDictionary())
+                        break;
+                }
+                offset+= n;
+            }// while
+            if(offset != rawBytes)
+                throw new DataFormatException("Truncated envelope");
+            return raw;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package dmq.test.logging.kafka;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -7,10 +12,11 @@ import java.util.regex.Pattern;
 // 提供kafka uri，可以简化配置方式
 // 典型的uri例如：kafka://192.168.56.211:9092/demo
 // 其中“kafka://”是前缀，“192.168.56.211”是服务地址，“9092”是端口，“demo”是topic
+// topic之后可以附带参数（如：kafka://192.168.56.211:9092/demo?linger.ms=20&batch.size=256k），见KafkaSender
 public class KafkaURI {
     public static String KAFKA= "kafka://";
     public static int PORT= 9092;
-    private static String PATTERN= "^"+KAFKA+"([^\\s/]+)/([^\\s/]+)\\??(.*)$";
+    private static String PATTERN= "^"+KAFKA+"([^\\s/]+)/([^\\s/?]+)\\??(.*)$";
     private static int GROUPS= 3;
     private static int GROUP_HOSTS= 1;
     private static int GROUP_TOPIC= 2;
@@ -32,6 +38,7 @@ public class KafkaURI {
 
     private String uriString;
     private String serverHosts, topicName, queryString;
+    private Map<String, String> queryParams;
     public KafkaURI(String uri) throws KafkaURIException {
         uriString= uri;
         try {
@@ -44,7 +51,7 @@ public class KafkaURI {
         }
     }
 
-    private void parseUri(String uri) throws KafkaURIException {
+    private void parseUri(String uri) throws KafkaURIException, UnsupportedEncodingException {
         Pattern pattern= Pattern.compile(PATTERN);
         Matcher matcher= pattern.matcher(uri);
 
@@ -56,6 +63,7 @@ public class KafkaURI {
         queryString= matcher.group(GROUP_QUERY);
 
         resolvePort();
+        parseQuery();
     }
     private void resolvePort() {
         if(serverHosts == null || serverHosts.isEmpty())
@@ -66,6 +74,22 @@ public class KafkaURI {
             serverHosts= String.format("%s:%s", serverHosts, PORT);
     }
 
+    // 参数以'&'分隔，每个参数为name=value，同名的参数以后面的为准
+    private void parseQuery() throws UnsupportedEncodingException {
+        Map<String, String> params= new LinkedHashMap<>();
+        if(queryString != null) {
+            for(String item: queryString.split("&")) {
+                if(item.isEmpty())
+                    continue;
+                int pos= item.indexOf('=');
+                String name= pos < 0? item: item.substring(0, pos);
+                String value= pos < 0? "": item.substring(pos+1);
+                params.put(URLDecoder.decode(name, "UTF-8").trim(), URLDecoder.decode(value, "UTF-8").trim());
+            }// for
+        }
+        queryParams= Collections.unmodifiableMap(params);
+    }
+
     private void checkKafkaURI() throws KafkaURIException {
         if(serverHosts == null || serverHosts.length() == 0)
             throw new KafkaURIException(uriString, "Bad server hosts!");
@@ -83,6 +107,12 @@ public class KafkaURI {
     public String getQueryString() {
         return queryString;
     }
+    public Map<String, String> getQueryParams() {
+        return queryParams;
+    }
+    public String getQueryParam(String name) {
+        return queryParams.get(name);
+    }
 
     @Override
     public String toString() {
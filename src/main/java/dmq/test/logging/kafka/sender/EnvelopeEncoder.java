@@ -0,0 +1,121 @@
+package dmq.test.logging.kafka.sender;
+
+import dmq.test.logging.kafka.EnvelopeDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// 信封模式（见KafkaSender.enableEnvelope），格式见EnvelopeDecoder
+// 每批数据按照key分组（同一个key的数据保持顺序，进入同一个分区），每组按照压缩之前的字节数拆分成若干个信封
+// 每个信封是一条kafka消息，key与组内的数据相同，优先级取组内最高的（信封在TimedBuffer之后生成，优先级只用于统计）
+final class EnvelopeEncoder {
+    public static final long MAX_BYTES= 256*1024L;  // 默认的信封大小（压缩之前），低于max.request.size的默认值1M
+    private static final int LENGTH_BYTES= 4;
+
+    private final long maxBytes;
+    private final int level;            // 压缩级别，0表示不压缩
+    private final byte[] dictionary;    // 为null时不使用字典
+    private final int dictionaryId;
+    private final LongAdder countEnvelopes= new LongAdder();
+    private final LongAdder countRecords= new LongAdder();
+    private final LongAdder countRawBytes= new LongAdder();
+    private final LongAdder countPackedBytes= new LongAdder();
+    EnvelopeEncoder(long maxBytes, int level, byte[] dictionary) {
+        this.maxBytes= maxBytes > 0? maxBytes: MAX_BYTES;
+        this.level= Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.dictionary= this.level == Deflater.NO_COMPRESSION? null: dictionary;
+        this.dictionaryId= EnvelopeDecoder.dictionaryId(this.dictionary);
+    }
+
+    // 返回新的列表，不会修改list
+    List<KafkaRecord> pack(List<KafkaRecord> list) {
+        Map<String, List<KafkaRecord>> groups= new LinkedHashMap<>();
+        for(KafkaRecord record: list)
+            groups.computeIfAbsent(record.getKey(), x-> new ArrayList<>()).add(record);
+
+        List<KafkaRecord> envelopes= new ArrayList<>();
+        for(Map.Entry<String, List<KafkaRecord>> entry: groups.entrySet()) {
+            List<KafkaRecord> group= entry.getValue();
+            int from= 0;
+            long bytes= 0;
+            for(int i=0; i<group.size(); i++) {
+                long size= group.get(i).getValue().length+LENGTH_BYTES;
+                if(i > from && bytes+size > maxBytes) {
+                    envelopes.add(envelope(entry.getKey(), group.subList(from, i)));
+                    from= i;
+                    bytes= 0;
+                }
+                bytes+= size;
+            }// for
+            envelopes.add(envelope(entry.getKey(), group.subList(from, group.size())));
+        }// for
+        return envelopes;
+    }
+    private KafkaRecord envelope(String key, List<KafkaRecord> records) {
+        int priority= Integer.MIN_VALUE;
+        for(KafkaRecord record: records)
+            priority= Math.max(priority, record.getPriority());
+        return new KafkaRecord(key, encode(records), priority, null);
+    }
+
+    byte[] encode(List<KafkaRecord> records) {
+        int rawBytes= 0;
+        for(KafkaRecord record: records)
+            rawBytes+= record.getValue().length+LENGTH_BYTES;
+        ByteBuffer raw= ByteBuffer.allocate(rawBytes);
+        for(KafkaRecord record: records) {
+            byte[] value= record.getValue();
+            raw.putInt(value.length);
+            raw.put(value);
+        }// for
+
+        byte codec= level == Deflater.NO_COMPRESSION? EnvelopeDecoder.CODEC_NONE:
+                dictionary == null? EnvelopeDecoder.CODEC_DEFLATE: EnvelopeDecoder.CODEC_DEFLATE_DICT;
+        ByteArrayOutputStream output= new ByteArrayOutputStream(EnvelopeDecoder.HEADER_BYTES+rawBytes/4+64);
+        ByteBuffer header= ByteBuffer.allocate(EnvelopeDecoder.HEADER_BYTES);
+        header.put(EnvelopeDecoder.MAGIC).put(EnvelopeDecoder.VERSION).put(codec)
+                .putInt(dictionaryId).putInt(records.size()).putInt(rawBytes);
+        output.write(header.array(), 0, EnvelopeDecoder.HEADER_BYTES);
+        if(codec == EnvelopeDecoder.CODEC_NONE)
+            output.write(raw.array(), 0, rawBytes);
+        else
+            deflate(raw.array(), output);
+
+        byte[] value= output.toByteArray();
+        countEnvelopes.increment();
+        countRecords.add(records.size());
+        countRawBytes.add(rawBytes);
+        countPackedBytes.add(value.length);
+        return value;
+    }
+    private void deflate(byte[] raw, ByteArrayOutputStream output) {
+        Deflater deflater= new Deflater(level);
+        try {
+            if(dictionary != null)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] chunk= new byte[8*1024];
+            while(!deflater.finished()) {
+                int n= deflater.deflate(chunk);
+                output.write(chunk, 0, n);
+            }// while
+        } finally {
+            deflater.end();
+        }
+    }
+
+    String dump() {
+        long raw= countRawBytes.sum(), packed= countPackedBytes.sum();
+        return String.format("EnvelopeEncoder(maxBytes= %d, level= %d, dictionary= %08x, envelopes= %d, records= %d, "
+                        + "rawBytes= %d, packedBytes= %d, ratio= %.2f)",
+                maxBytes, level, dictionaryId, countEnvelopes.sum(), countRecords.sum(), raw, packed,
+                packed == 0? 0.0: (double)raw/packed);
+    }
+}
@@ -0,0 +1,124 @@
+package dmq.test.logging.kafka.sender;
+
+import dmq.test.logging.common.Serializer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// KafkaSender缓存的一条数据
+// value是已经编码好的字节，发送时不再转换；priority用于缓存溢出时按照优先级丢弃（OverflowPolicy），
+// group用于并行发送时划分通道（FlushLanes），同一个group的数据保持顺序
+// key为null时使用KafkaSender.KEY
+// 子类可以重写getValue与size，在发送线程上才编码value（见EventRecord）
+public class KafkaRecord {
+    public static final int DEFAULT_PRIORITY= 0;
+
+    private final String key;
+    private final byte[] value;
+    private final int priority;
+    private final String group;
+    private final int keyBytes;// key的UTF-8字节数
+    public KafkaRecord(String key, byte[] value, int priority, String group) {
+        this.key= key;
+        this.keyBytes= key == null? 0: utf8Length(key);
+        this.value= value;
+        this.priority= priority;
+        this.group= group;
+    }
+    public KafkaRecord(byte[] value) {
+        this(null, value, DEFAULT_PRIORITY, null);
+    }
+    // value由子类的getValue提供
+    protected KafkaRecord(String key, int priority, String group) {
+        this(key, null, priority, group);
+    }
+
+    public String getKey() {
+        return key;
+    }
+    public byte[] getValue() {
+        return value;
+    }
+    public int getPriority() {
+        return priority;
+    }
+    public String getGroup() {
+        return group;
+    }
+    // 用于按照字节数限制缓存（以及SendPipeline发送中的字节数），key按照UTF-8的字节数计算
+    public long size() {
+        return getValue().length + keyBytes;
+    }
+    // 与key.getBytes(UTF_8).length相同，不创建数组
+    private static int utf8Length(String string) {
+        int length= 0;
+        for(int i=0; i<string.length(); i++) {
+            char c= string.charAt(i);
+            if(c < 0x80)
+                length++;
+            else if(c < 0x800)
+                length+= 2;
+            else if(Character.isHighSurrogate(c) && i+1 < string.length() && Character.isLowSurrogate(string.charAt(i+1))) {
+                length+= 4;
+                i++;
+            } else if(Character.isSurrogate(c))
+                length++;// 不成对的代理字符输出为'?'
+            else
+                length+= 3;
+        }// for
+        return length;
+    }
+
+    // 磁盘溢出层与预写日志使用的格式：
+    //  [VERSION(1)][priority(4)][key长度(4)][key][group长度(4)][group][value]
+    //  长度为-1表示null；第一个字节不是VERSION时，按照旧的格式（UTF-8的json）读取整个数据
+    private static final byte VERSION= (byte)0xA1;
+    static final Serializer<KafkaRecord> SERIALIZER= new Serializer<KafkaRecord>() {
+        @Override// Serializer
+        public byte[] serialize(KafkaRecord record) {
+            byte[] key= bytes(record.key);
+            byte[] group= bytes(record.group);
+            byte[] value= record.getValue();
+            ByteBuffer buffer= ByteBuffer.allocate(1+4+4+length(key)+4+length(group)+value.length);
+            buffer.put(VERSION);
+            buffer.putInt(record.priority);
+            put(buffer, key);
+            put(buffer, group);
+            buffer.put(value);
+            return buffer.array();
+        }
+        @Override// Serializer
+        public KafkaRecord deserialize(byte[] data) {
+            if(data.length == 0 || data[0] != VERSION)
+                return new KafkaRecord(data);
+            ByteBuffer buffer= ByteBuffer.wrap(data);
+            buffer.get();
+            int priority= buffer.getInt();
+            String key= string(buffer);
+            String group= string(buffer);
+            byte[] value= new byte[buffer.remaining()];
+            buffer.get(value);
+            return new KafkaRecord(key, value, priority, group);
+        }
+
+        private byte[] bytes(String string) {
+            return string == null? null: string.getBytes(StandardCharsets.UTF_8);
+        }
+        private int length(byte[] data) {
+            return data == null? 0: data.length;
+        }
+        private void put(ByteBuffer buffer, byte[] data) {
+            buffer.putInt(data == null? -1: data.length);
+            if(data != null)
+                buffer.put(data);
+        }
+        private String string(ByteBuffer buffer) {
+            int length= buffer.getInt();
+            if(length < 0)
+                return null;
+            String string= new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position()+length);
+            return string;
+        }
+    };
+}
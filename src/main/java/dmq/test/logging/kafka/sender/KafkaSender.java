@@ -1,21 +1,36 @@
 package dmq.test.logging.kafka.sender;
 
+import dmq.test.logging.common.AdaptiveController;
+import dmq.test.logging.common.OverflowPolicy;
+import dmq.test.logging.common.SegmentLog;
 import dmq.test.logging.common.TimedBuffer;
+import dmq.test.logging.kafka.EnvelopeDecoder;
 import dmq.test.logging.kafka.KafkaURI;
 import dmq.test.logging.kafka.KafkaURIException;
-import org.apache.kafka.clients.producer.KafkaProducer;
-import org.apache.kafka.clients.producer.Producer;
-import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.clients.producer.RecordMetadata;
+import dmq.test.utils.Converter;
+import org.apache.kafka.clients.producer.Callback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Future;
+import java.util.function.Function;
 
 
-public class KafkaSender implements ISendJson, TimedBuffer.BufferHandler<String>, TimedBuffer.BufferDroppedNotify<String> {
+// 缓存的数据是KafkaRecord，value是已经编码好的字节，直接交给ByteArraySerializer发送
+// sendJson只是把json按照UTF-8编码之后调用send
+// processBuffer通过SendPipeline异步发送，每条数据附带回调，限制发送中的数量与字节数，可重试的异常按照退避重试
+// 打开预写日志或者动态调整时，processBuffer等待本批数据全部确认之后再返回，预写日志的确认不会早于kafka的确认
+// 动态调整最多等待ackTimeout；打开预写日志时超过ackTimeout也继续等待（只输出警告），直到kafka确认或者回调失败
+// 信封模式（enableEnvelope）把每批数据压缩成少量的kafka消息发送，消费者使用EnvelopeDecoder解析
+// 可以使用多个KafkaProducer并行发送（uri参数pool.size与pool.route，见ProducerPool）
+public class KafkaSender implements ISendJson, TimedBuffer.BufferHandler<KafkaRecord>,
+        TimedBuffer.BufferDroppedNotify<KafkaRecord> {
     private static final Logger LOGGER = LoggerFactory.getLogger(KafkaSender.class);
     public static final String KEY= "json";
 
@@ -25,102 +40,295 @@ public class KafkaSender implements ISendJson, TimedBuffer.BufferHandler<String>
     private int timedBufferThresholdTime= 5000; // 每N毫秒触发一次定时事件
     private int timedBufferThreads= 1;          // 定时器线程数量
     private boolean timedBufferFixDelay= true;  // 固定延时（忽略定时事件占用的时长）
+    private int timedBufferMinTime= 10;         // 动态调整时，最短的定时周期（毫秒）
+    private static final int ENVELOPE_LEVEL= 6; // 信封模式默认的压缩级别（见Deflater）
+    private long ackTimeout= 30*1000L;          // 等待确认的最长时间（毫秒）
 
-    private TimedBuffer<String> timedBuffer;
-    private Producer<String, String> producer;
+    private TimedBuffer<KafkaRecord> timedBuffer;
+    private volatile ProducerPool producer;// 默认只有一个KafkaProducer（见pool.size参数）
+    private int poolSize= 1;
+    private String poolRoute= ProducerPool.ROUTE_KEY;
+    private final SendPipeline pipeline= new SendPipeline(this::transport);
     private final String servers, topic;
+    private final Map<String, String> producerParams= new LinkedHashMap<>();// 来自uri参数，覆盖customProducer的默认值
+    private volatile EnvelopeEncoder envelope= null;// 为null时每条数据单独发送
+    private volatile String defaultKey= KEY;// 数据没有key时使用，为null时由kafka轮流选择分区
+    private volatile boolean journaled= false;// 打开了预写日志，processBuffer一直等到kafka确认
     public KafkaSender(String servers, String topic) {
-        this.servers= servers;
-        this.topic= topic;
-        timedBuffer= null;
-        producer= null;
-        open();
+        this(servers, topic, Collections.emptyMap(), 0);
     }
     public KafkaSender(KafkaURI uri) {
-        this(uri.getServerHosts(), uri.getTopicName());
+        this(uri, 0);
     }
     public KafkaSender(String uri) throws KafkaURIException {
         this(new KafkaURI(uri));
     }
+    // thresholdSize为默认的批量数量，uri中的timed.size参数优先
     public KafkaSender(String uri, int thresholdSize)
             throws KafkaURIException {
-        this.timedBufferThresholdSize= thresholdSize;
+        this(new KafkaURI(uri), thresholdSize);
+    }
+    private KafkaSender(KafkaURI uri, int thresholdSize) {
+        this(uri.getServerHosts(), uri.getTopicName(), uri.getQueryParams(), thresholdSize);
+    }
+    private KafkaSender(String servers, String topic, Map<String, String> params, int thresholdSize) {
+        this.servers= servers;
+        this.topic= topic;
+        if(thresholdSize > 0)
+            this.timedBufferThresholdSize= thresholdSize;
+        applyParams(params);
         // init and open
-        KafkaURI kafkaURI= new KafkaURI(uri);
-        this.servers= kafkaURI.getServerHosts();
-        this.topic= kafkaURI.getTopicName();
         timedBuffer= null;
         producer= null;
         open();
     }
 
+    // uri参数（见KafkaURI），timed.与pipeline.开头的参数用于KafkaSender自身：
+    //  timed.capacity, timed.size, timed.time, timed.min.time   TimedBuffer的缓存容量、批量数量、定时周期等
+    //  （timed.threads已经无效，TimedBuffer由共享的TimerWheel驱动，设置时只记录警告）
+    //  pipeline.records, pipeline.bytes    发送中的数据上限（见setInFlightLimit）
+    //  pipeline.retries, pipeline.backoff  重试次数与第一次重试的间隔（见setRetry）
+    //  pipeline.ack.timeout                flush、close以及等待确认的最长时间（毫秒），打开预写日志时等待确认超时只输出警告
+    //  envelope.bytes, envelope.level      打开信封模式，信封大小（压缩之前）与压缩级别（见enableEnvelope）
+    //  envelope.dictionary                 none表示不使用预置字典，默认使用EnvelopeDecoder.DEFAULT_DICTIONARY
+    //  pool.size, pool.route               KafkaProducer的数量，以及按照key或者partition分配数据（见ProducerPool）
+    // 其他参数全部交给KafkaProducer（如linger.ms, batch.size, compression.type, acks, buffer.memory）
+    // 数值可以带有后缀：以.ms结尾的参数按照1k=1000解析，以.size/.memory/.bytes结尾的参数按照1k=1024解析
+    private void applyParams(Map<String, String> params) {
+        int records= -1, retries= SendPipeline.MAX_RETRIES;
+        long bytes= -1, backoff= SendPipeline.BACKOFF;
+        long envelopeBytes= -1;
+        int envelopeLevel= ENVELOPE_LEVEL;
+        byte[] envelopeDictionary= EnvelopeDecoder.DEFAULT_DICTIONARY;
+        for(Map.Entry<String, String> entry: params.entrySet()) {
+            String name= entry.getKey(), value= entry.getValue();
+            switch(name) {
+                case "timed.capacity":
+                    timedBufferCapacity= (int)Converter.parseNumLong(value, timedBufferCapacity);
+                    break;
+                case "timed.size":
+                    timedBufferThresholdSize= (int)Converter.parseNumLong(value, timedBufferThresholdSize);
+                    break;
+                case "timed.time":
+                    timedBufferThresholdTime= (int)Converter.parseNumLong(value, timedBufferThresholdTime);
+                    break;
+                case "timed.threads":
+                    LOGGER.warn("KafkaSender ignored {}={}: TimedBuffer runs on the shared TimerWheel "
+                            + "(see system property timedbuffer_workers)", name, value);
+                    break;
+                case "timed.min.time":
+                    timedBufferMinTime= (int)Converter.parseNumLong(value, timedBufferMinTime);
+                    break;
+                case "pipeline.records":
+                    records= (int)Converter.parseNumLong(value, records);
+                    break;
+                case "pipeline.bytes":
+                    bytes= Converter.parseSizeLong(value, bytes);
+                    break;
+                case "pipeline.retries":
+                    retries= Converter.parseInt(value, retries);
+                    break;
+                case "pipeline.backoff":
+                    backoff= Converter.parseNumLong(value, backoff);
+                    break;
+                case "pipeline.ack.timeout":
+                    ackTimeout= Converter.parseNumLong(value, ackTimeout);
+                    break;
+                case "envelope.bytes":
+                    envelopeBytes= Converter.parseSizeLong(value, EnvelopeEncoder.MAX_BYTES);
+                    break;
+                case "envelope.level":
+                    envelopeLevel= Converter.parseInt(value, envelopeLevel);
+                    break;
+                case "envelope.dictionary":
+                    envelopeDictionary= "none".equalsIgnoreCase(value)? null: EnvelopeDecoder.DEFAULT_DICTIONARY;
+                    break;
+                case "pool.size":
+                    poolSize= Converter.parseInt(value, poolSize);
+                    break;
+                case "pool.route":
+                    if(ProducerPool.ROUTE_KEY.equalsIgnoreCase(value) || ProducerPool.ROUTE_PARTITION.equalsIgnoreCase(value))
+                        poolRoute= value;
+                    else
+                        LOGGER.warn("KafkaSender ignored an unknown parameter ({}={})", name, value);
+                    break;
+                case "bootstrap.servers":
+                case "key.serializer":
+                case "value.serializer":
+                    LOGGER.warn("KafkaSender ignored the reserved parameter ({}={})", name, value);
+                    break;
+                default:
+                    if(name.startsWith("timed.") || name.startsWith("pipeline.") || name.startsWith("envelope.")
+                            || name.startsWith("pool."))
+                        LOGGER.warn("KafkaSender ignored an unknown parameter ({}={})", name, value);
+                    else
+                        producerParams.put(name, producerValue(name, value));
+            }// switch
+        }// for
+        pipeline.setInFlightLimit(records, bytes);
+        pipeline.setRetry(retries, backoff);
+        if(envelopeBytes > 0)
+            enableEnvelope(envelopeBytes, envelopeLevel, envelopeDictionary);
+    }
+    // KafkaProducer不识别数值后缀，转换成十进制的字符串，无法识别的保持原样
+    private static String producerValue(String name, String value) {
+        long parsed;
+        if(name.endsWith(".ms") || name.equals("retries") || name.equals("max.in.flight.requests.per.connection"))
+            parsed= Converter.parseNumLong(value, Long.MIN_VALUE);
+        else if(name.endsWith(".size") || name.endsWith(".memory") || name.endsWith(".bytes"))
+            parsed= Converter.parseSizeLong(value, Long.MIN_VALUE);
+        else
+            return value;
+        return parsed == Long.MIN_VALUE? value: Long.toString(parsed);
+    }
+
     public void open() {
         if(producer != null)
             return;
         if(timedBuffer == null)
-            timedBuffer= new TimedBuffer<String>(timedBufferCapacity, timedBufferThresholdSize,
+            timedBuffer= new TimedBuffer<KafkaRecord>(timedBufferCapacity, timedBufferThresholdSize,
                     timedBufferThresholdTime, timedBufferThreads, timedBufferFixDelay, this, this);
-        producer= new KafkaProducer<String, String>(customProducer(servers));
+        producer= new ProducerPool(topic, customProducer(servers), poolSize, poolRoute);
+    }
+    // 缓存已满时的处理策略，默认丢弃新数据
+    public void setOverflowPolicy(OverflowPolicy<KafkaRecord> policy) {
+        if(timedBuffer != null)
+            timedBuffer.setOverflowPolicy(policy);
+    }
+    // 根据发送耗时动态调整批量数量与定时周期，targetLatency为目标延时（毫秒）
+    // 批量数量在 [thresholdSize, capacity/2] 之间调整，定时周期在 [10ms, thresholdTime] 之间调整
+    public void enableAdaptive(long targetLatency) {
+        if(timedBuffer != null)
+            timedBuffer.setAdaptiveController(new AdaptiveController(timedBufferThresholdSize,
+                    timedBufferCapacity/2, timedBufferMinTime, timedBufferThresholdTime, targetLatency));
+    }
+    // 按照字节数限制缓存，maxBytes为缓存上限，thresholdBytes为触发发送的累计字节数
+    // thresholdBytes通常不超过max.request.size
+    public void setByteBudget(long maxBytes, long thresholdBytes) {
+        if(timedBuffer != null)
+            timedBuffer.setByteBudget(KafkaRecord::size, maxBytes, thresholdBytes);
+    }
+    // kafka不可用或者发送过慢时，缓存数量超过80%之后，将超出的数据暂存到磁盘（见SpillTier）
+    public boolean enableSpill(String directory, long maxDiskBytes) {
+        if(timedBuffer == null)
+            return false;
+        return timedBuffer.enableSpill(Paths.get(directory), KafkaRecord.SERIALIZER, timedBufferCapacity*8/10,
+                maxDiskBytes, SegmentLog.SEGMENT_BYTES);
+    }
+    // 数据先写入预写日志，异常退出之后重新打开时，补发尚未确认的数据（见Journal）
+    // 补发在enableJournal内完成，所以在打开之前设置journaled，补发的数据同样等到kafka确认之后才在日志中确认
+    public boolean enableJournal(String directory, long syncInterval, long maxDiskBytes) {
+        if(timedBuffer == null)
+            return false;
+        journaled= true;
+        boolean enabled= timedBuffer.enableJournal(Paths.get(directory), KafkaRecord.SERIALIZER, syncInterval, maxDiskBytes);
+        journaled= enabled;
+        return enabled;
+    }
+    // 按照keyExtractor分成lanes个通道并行发送，同一个键的数据保持顺序（KafkaProducer本身是线程安全的）
+    public void setFlushLanes(int lanes, Function<KafkaRecord, ?> keyExtractor) {
+        if(timedBuffer != null)
+            timedBuffer.setFlushLanes(lanes, keyExtractor);
+    }
+    // records与bytes为发送中（尚未确认）的数据上限，超出时processBuffer等待，不大于0时使用默认值
+    public void setInFlightLimit(int records, long bytes) {
+        pipeline.setInFlightLimit(records, bytes);
+    }
+    // 可重试的异常最多重试retries次，backoff为第一次重试的间隔（毫秒），之后每次加倍
+    public void setRetry(int retries, long backoff) {
+        pipeline.setRetry(retries, backoff);
+    }
+    // 数据没有key时使用的key，默认为KEY（所有数据进入同一个分区），null表示不使用key（轮流进入所有分区）
+    public void setDefaultKey(String key) {
+        defaultKey= key;
+    }
+    public String getDefaultKey() {
+        return defaultKey;
+    }
+    // 信封模式：每批数据按照key分组，每组按照maxBytes（压缩之前）拆分，每个信封作为一条kafka消息发送
+    // level为deflate的压缩级别（0表示不压缩），dictionary为预置字典（null表示不使用），消费者需要使用相同的字典
+    // 信封的格式见EnvelopeDecoder，预写日志与磁盘暂存仍然按照单条数据处理
+    public void enableEnvelope(long maxBytes, int level, byte[] dictionary) {
+        envelope= new EnvelopeEncoder(maxBytes, level, dictionary);
+    }
+    public void enableEnvelope(long maxBytes) {
+        enableEnvelope(maxBytes, ENVELOPE_LEVEL, EnvelopeDecoder.DEFAULT_DICTIONARY);
+    }
+    public void disableEnvelope() {
+        envelope= null;
+    }
+    public String dumpPipeline() {
+        EnvelopeEncoder encoder= envelope;
+        return encoder == null? pipeline.dump(): pipeline.dump()+", "+encoder.dump();
+    }
+    // 每个KafkaProducer发送的数量、字节数以及主要的kafka指标
+    public String dumpProducers() {
+        ProducerPool pool= producer;
+        return pool == null? "ProducerPool(closed)": pool.dump();
     }
     public void flush() {
         if(timedBuffer != null)
             timedBuffer.flush();
-        if(producer != null)
-            producer.flush();
+        ProducerPool pool= producer;
+        if(pool != null)
+            pool.flush();
+        if(!pipeline.awaitIdle(ackTimeout))
+            LOGGER.error("KafkaSender flush timeout ({})", pipeline.dump());
     }
     public void close() {
+        ProducerPool pool= producer;
         if(timedBuffer != null) {
             timedBuffer.close(()-> {
-                if(producer != null)
-                    producer.close();
+                if(!pipeline.awaitIdle(ackTimeout))
+                    LOGGER.error("KafkaSender close timeout ({})", pipeline.dump());
+                pipeline.close();
+                if(pool != null)
+                    pool.close();
             });
             timedBuffer = null;
         }
         producer= null;
     }
-    private Future<RecordMetadata> send(String key, String value) {
-        if(producer == null)
-            return null;
-        ProducerRecord<String, String> record= new ProducerRecord<>(topic, key, value);
-        return producer.send(record);
-    }
-
-    private boolean doSendJson(String json) {
-        if(producer == null)
-            return false;
-
-        try {
-            //Future<RecordMetadata> future =
-            send(KEY, json);
-
-            return true;
-        } catch(Exception x) {
-            //x.printStackTrace();
-            String message= String.format("KafkaSender sendJson error!\njson= %s", json);
-            LOGGER.error(message, x);
-        }
-        return false;
+    // SendPipeline实际的发送，同步的异常由SendPipeline处理
+    private void transport(KafkaRecord record, Callback callback) {
+        ProducerPool pool= producer;
+        if(pool == null)
+            throw new IllegalStateException("KafkaSender is closed");
+        pool.send(record.getKey() == null? defaultKey: record.getKey(), record.getValue(), callback);
     }
 
     @Override// ISendJson
     public boolean sendJson(String json) {
+        if(json == null)
+            return false;
+        return send(new KafkaRecord(json.getBytes(StandardCharsets.UTF_8)));
+    }
+    // value为已经编码好的字节，priority与group见KafkaRecord
+    public boolean send(byte[] value, int priority, String group) {
+        return send(null, value, priority, group);
+    }
+    // key决定数据进入的分区，为null时使用defaultKey
+    public boolean send(String key, byte[] value, int priority, String group) {
+        if(value == null)
+            return false;
+        return send(new KafkaRecord(key, value, priority, group));
+    }
+    public boolean send(KafkaRecord record) {
         if(producer == null)
             return false;
 
         // 将数据写入缓存中，避免阻塞主线程
-        return timedBuffer.put(json);
+        return timedBuffer.put(record);
     }
 
     @Override// TimedBuffer.BufferHandler
-    public void processBuffer(List<String> bufferList) {
-        int count= 0;
-        for(String one: bufferList) {
-            if(!doSendJson(one)) {
-                LOGGER.error("KafkaSender failed to send the report (total={}, count={})", bufferList.size(), count);
-                return;
-            }
-            count++;
-        }// for
+    public void processBuffer(List<KafkaRecord> bufferList) {
+        TimedBuffer<KafkaRecord> buffer= timedBuffer;
+        boolean journaled= this.journaled;
+        boolean awaitAcks= journaled || (buffer != null && buffer.getAdaptiveController() != null);
+        EnvelopeEncoder encoder= envelope;
+        if(!pipeline.process(encoder == null? bufferList: encoder.pack(bufferList), awaitAcks, ackTimeout, journaled))
+            LOGGER.warn("KafkaSender timed out waiting for acknowledgements ({})", pipeline.dump());
     }
 
     @Override// TimedBuffer.BufferDroppedNotify
@@ -137,7 +345,8 @@ public class KafkaSender implements ISendJson, TimedBuffer.BufferHandler<String>
         properties.put("max.block.ms", 1000);
         properties.put("metadata.fetch.timeout.ms", 5000);
         properties.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        properties.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        properties.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+        properties.putAll(producerParams);
         return properties;
     }
 
@@ -0,0 +1,156 @@
+package dmq.test.logging.kafka.sender;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// KafkaSender使用的一组KafkaProducer（见KafkaSender的pool.size参数）
+// 一个KafkaProducer只有一个发送线程与一个累积器的锁，多核的机器上发送量很大时会成为瓶颈
+// 数据按照路由规则分配到其中一个producer，同一个key的数据总是使用同一个producer，保持顺序：
+//  key         按照key的哈希值选择producer，分区由producer自己选择（默认）
+//  partition   按照kafka默认的分区规则（murmur2）计算分区，每个分区只由一个producer发送，批次更大
+//              没有key的数据轮流使用所有分区，无法取得分区数量时按照key路由
+// 每个producer单独占用buffer.memory，内存上限是buffer.memory乘以producer的数量
+final class ProducerPool {
+    private static final Logger LOGGER= LoggerFactory.getLogger(ProducerPool.class);
+    public static final String ROUTE_KEY= "key";
+    public static final String ROUTE_PARTITION= "partition";
+    private static final long PARTITIONS_REFRESH= 60*1000L;// 重新取得分区数量的周期（毫秒）
+    private static final String[] METRICS= {"record-send-rate", "request-latency-avg", "batch-size-avg",
+            "record-queue-time-avg", "buffer-available-bytes", "record-error-rate"};
+
+    // 一个producer与它的统计数据
+    private static final class Member {
+        final Producer<String, byte[]> producer;
+        final LongAdder countRecords= new LongAdder();
+        final LongAdder countBytes= new LongAdder();
+        Member(Producer<String, byte[]> producer) {
+            this.producer= producer;
+        }
+    }
+
+    private final String topic;
+    private final Member[] members;
+    private final boolean byPartition;
+    private final AtomicInteger roundRobin= new AtomicInteger(0);
+    private volatile int partitions= 0;
+    private volatile long partitionsTime= 0;
+    ProducerPool(String topic, Properties properties, int size, String route) {
+        this(topic, createProducers(properties, Math.max(1, size)), route);
+    }
+    // producers不能为空
+    ProducerPool(String topic, List<? extends Producer<String, byte[]>> producers, String route) {
+        this.topic= topic;
+        this.members= new Member[producers.size()];
+        this.byPartition= ROUTE_PARTITION.equalsIgnoreCase(route);
+        for(int i=0; i<members.length; i++)
+            members[i]= new Member(producers.get(i));
+    }
+    private static List<Producer<String, byte[]>> createProducers(Properties properties, int size) {
+        List<Producer<String, byte[]>> list= new ArrayList<>(size);
+        String clientId= properties.getProperty("client.id", KafkaSender.class.getSimpleName());
+        for(int i=0; i<size; i++) {
+            Properties one= new Properties();
+            one.putAll(properties);
+            if(size > 1)
+                one.put("client.id", clientId+"-"+i);
+            list.add(new KafkaProducer<String, byte[]>(one));
+        }// for
+        return list;
+    }
+
+    // 同步的异常直接抛出（见SendPipeline）
+    void send(String key, byte[] value, Callback callback) {
+        Integer partition= null;
+        int index;
+        if(members.length == 1) {
+            index= 0;
+        } else if(byPartition && (partition= partition(key)) != null) {
+            index= partition % members.length;
+        } else if(key != null) {
+            index= Utils.toPositive(key.hashCode()) % members.length;
+        } else {
+            index= Utils.toPositive(roundRobin.getAndIncrement()) % members.length;
+        }
+        Member member= members[index];
+        member.producer.send(new ProducerRecord<>(topic, partition, key, value), callback);
+        member.countRecords.increment();
+        member.countBytes.add(value.length);
+    }
+    // 与kafka默认的分区规则相同，返回null表示无法取得分区数量
+    private Integer partition(String key) {
+        int count= partitionCount();
+        if(count <= 0)
+            return null;
+        if(key == null)
+            return Utils.toPositive(roundRobin.getAndIncrement()) % count;
+        return Utils.toPositive(Utils.murmur2(key.getBytes(StandardCharsets.UTF_8))) % count;
+    }
+    private int partitionCount() {
+        long now= System.currentTimeMillis();
+        if(partitions > 0 && now-partitionsTime < PARTITIONS_REFRESH)
+            return partitions;
+        partitionsTime= now;// 失败时也等到下一个周期再重试
+        try {
+            partitions= members[0].producer.partitionsFor(topic).size();
+        } catch(Exception x) {
+            LOGGER.warn("ProducerPool can NOT get partitions of topic {}: {}", topic, x.toString());
+        }
+        return partitions;
+    }
+
+    // 依次flush，flush期间其他producer的发送线程照常发送
+    void flush() {
+        for(Member member: members) {
+            try {
+                member.producer.flush();
+            } catch(Exception x) {
+                LOGGER.error("ProducerPool flush error!", x);
+            }
+        }// for
+    }
+    void close() {
+        for(Member member: members) {
+            try {
+                member.producer.close();
+            } catch(Exception x) {
+                LOGGER.error("ProducerPool close error!", x);
+            }
+        }// for
+    }
+
+    String dump() {
+        StringBuilder builder= new StringBuilder(String.format("ProducerPool(size= %d, route= %s, partitions= %d",
+                members.length, byPartition? ROUTE_PARTITION: ROUTE_KEY, partitions));
+        for(int i=0; i<members.length; i++) {
+            Member member= members[i];
+            builder.append(String.format("; #%d records= %d, bytes= %d", i,
+                    member.countRecords.sum(), member.countBytes.sum()));
+            Map<String, Object> values= new HashMap<>();
+            for(Map.Entry<MetricName, ? extends Metric> entry: member.producer.metrics().entrySet()) {
+                if("producer-metrics".equals(entry.getKey().group()))
+                    values.put(entry.getKey().name(), entry.getValue().metricValue());
+            }// for
+            for(String one: METRICS) {
+                if(values.containsKey(one))
+                    builder.append(", ").append(one).append("= ").append(values.get(one));
+            }// for
+        }// for
+        return builder.append(")").toString();
+    }
+}
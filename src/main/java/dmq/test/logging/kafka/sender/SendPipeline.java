@@ -0,0 +1,339 @@
+package dmq.test.logging.kafka.sender;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RetriableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// KafkaSender的异步发送流水线
+// 原来的processBuffer逐条发送并丢弃Future，只有同步的异常才算失败，而且出错之后放弃整批剩余的数据
+// 这里每条数据都附带回调：
+//  1. 发送中（包括等待重试）的数量与字节数有上限，超出时阻塞processBuffer（缓存由TimedBuffer的溢出策略处理）
+//  2. 可重试的异常（RetriableException）按照指数退避重试，超过次数之后计为失败
+//  3. 同步发送出错、并且可以重试时，本批剩余的数据直接进入重试，避免每条都阻塞
+//     kafka-clients 2.2在max.block.ms超时等情况下不抛出异常，而是在调用线程上直接回调，所以两种情况都算同步出错
+//  4. 每批数据全部确认之后，统计确认耗时与失败数量
+//  5. 重试在自己的线程上执行，不使用TimerWheel的共享线程池
+//     processBuffer在共享线程池上等待发送中的数量，等待重试的数据占用着这个数量，重试也使用共享线程池时会互相等待
+//     重试的发送也可能阻塞max.block.ms，不影响其他的TimedBuffer
+// awaitAcks为true时，processBuffer等待本批数据全部确认之后再返回（预写日志与动态调整需要真实的确认）
+// 预写日志需要一直等到确认：kafka在delivery.timeout.ms之内总会回调，重试的次数也有限，所以等待总会结束
+final class SendPipeline {
+    private static final Logger LOGGER= LoggerFactory.getLogger(SendPipeline.class);
+
+    public static final int MAX_RECORDS= 10000;             // 默认的发送中数量上限
+    public static final long MAX_BYTES= 32*1024*1024L;      // 默认的发送中字节数上限（与buffer.memory相同）
+    public static final int MAX_RETRIES= 3;                 // 默认的重试次数
+    public static final long BACKOFF= 100;                  // 默认的第一次重试间隔（毫秒）
+    private static final long MAX_BACKOFF= 10*1000L;
+    private static final long WAIT_STEP= 100;               // 等待时检查是否关闭的周期（毫秒）
+
+    // 实际的发送，出错时可以直接抛出异常
+    interface Transport {
+        void send(KafkaRecord record, Callback callback);
+    }
+
+    // 一次发送的回调，记录回调是否在调用线程上同步发生
+    private final class Submission implements Callback {
+        final BatchState batch;
+        final KafkaRecord record;
+        final int attempt;
+        final Thread caller= Thread.currentThread();
+        volatile boolean sending= true;
+        volatile Exception inlineFailure= null;
+        Submission(BatchState batch, KafkaRecord record, int attempt) {
+            this.batch= batch;
+            this.record= record;
+            this.attempt= attempt;
+        }
+        @Override// Callback
+        public void onCompletion(RecordMetadata metadata, Exception x) {
+            if(x != null && sending && Thread.currentThread() == caller)
+                inlineFailure= x;
+            complete(batch, record, attempt, x);
+        }
+    }
+
+    // 一批数据（一次processBuffer）的确认情况
+    private final class BatchState {
+        final long start= System.nanoTime();
+        final AtomicInteger pending;
+        final AtomicInteger failed= new AtomicInteger(0);
+        BatchState(int size) {
+            pending= new AtomicInteger(size);
+        }
+        void done(boolean failure) {
+            if(failure)
+                failed.incrementAndGet();
+            if(pending.decrementAndGet() != 0)
+                return;
+            long latency= TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+            completeBatch(latency, failed.get());
+            synchronized(this) {
+                notifyAll();
+            }// synchronized
+        }
+        // 返回false表示超时
+        synchronized boolean await(long timeout) throws InterruptedException {
+            long deadline= System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+            while(pending.get() > 0) {
+                long remain= TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime());
+                if(remain <= 0)
+                    return false;
+                wait(remain);
+            }// while
+            return true;
+        }
+    }
+
+    private final Transport transport;
+    private final ScheduledThreadPoolExecutor retryService;
+    private volatile int maxRecords= MAX_RECORDS;
+    private volatile long maxBytes= MAX_BYTES;
+    private volatile int maxRetries= MAX_RETRIES;
+    private volatile long backoff= BACKOFF;
+    private volatile boolean closed= false;
+
+    private final Object lock= new Object();
+    private int inFlightRecords= 0;     // 由lock保护
+    private long inFlightBytes= 0;      // 由lock保护
+
+    private final LongAdder countSent= new LongAdder();
+    private final LongAdder countAcked= new LongAdder();
+    private final LongAdder countRetried= new LongAdder();
+    private final LongAdder countFailed= new LongAdder();
+    private final AtomicLong countBatches= new AtomicLong(0);
+    private final AtomicLong countFailedBatches= new AtomicLong(0);
+    private final LongAdder totalLatency= new LongAdder();
+    private final AtomicLong maxLatency= new AtomicLong(0);
+    private volatile long lastLatency= 0;
+    SendPipeline(Transport transport) {
+        this.transport= transport;
+        // 只有一个线程，第一次重试时才启动
+        this.retryService= new ScheduledThreadPoolExecutor(1, runnable-> {
+            Thread thread= new Thread(runnable, "kafka-sender-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // records与bytes为发送中的上限，不大于0时使用默认值
+    void setInFlightLimit(int records, long bytes) {
+        maxRecords= records > 0? records: MAX_RECORDS;
+        maxBytes= bytes > 0? bytes: MAX_BYTES;
+        synchronized(lock) {
+            lock.notifyAll();
+        }// synchronized
+    }
+    // retries为重试次数（0表示不重试），backoff为第一次重试的间隔（毫秒），之后每次加倍
+    void setRetry(int retries, long backoff) {
+        maxRetries= Math.max(0, retries);
+        this.backoff= backoff > 0? backoff: BACKOFF;
+    }
+
+    // 发送一批数据，list在返回之后会被复用，回调中只能引用单条数据
+    // awaitAcks为true时最多等待timeout毫秒，返回false表示超时或者被中断时仍有数据没有确认
+    boolean process(List<KafkaRecord> list, boolean awaitAcks, long timeout) {
+        return process(list, awaitAcks, timeout, false);
+    }
+    // untilAcked为true时一直等到本批数据全部确认（或者失败），每隔timeout毫秒输出一次警告，中断也不放弃等待
+    boolean process(List<KafkaRecord> list, boolean awaitAcks, long timeout, boolean untilAcked) {
+        if(list.isEmpty())
+            return true;
+        BatchState batch= new BatchState(list.size());
+        boolean blocked= false;
+        for(int i=0; i<list.size(); i++) {
+            KafkaRecord record= list.get(i);
+            if(!acquire(record.size())) {
+                // 已经关闭，剩余的数据计为失败
+                for(int j=i; j<list.size(); j++) {
+                    countFailed.increment();
+                    batch.done(true);
+                }// for
+                break;
+            }
+            if(blocked)
+                retry(batch, record, 0);
+            else
+                blocked= !submit(batch, record, 0);
+        }// for
+        if(!awaitAcks)
+            return true;
+
+        boolean interrupted= false;
+        try {
+            for(;;) {
+                try {
+                    if(batch.await(timeout))
+                        return true;
+                    if(!untilAcked)
+                        return false;
+                    LOGGER.warn("KafkaSender is still waiting for acknowledgements (pending={}, {})",
+                            batch.pending.get(), dump());
+                } catch(InterruptedException x) {
+                    interrupted= true;
+                    if(!untilAcked)
+                        return false;
+                }
+            }// for
+        } finally {
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    // 返回false表示本批剩余的数据应当直接进入重试：同步发送出错（抛出异常，或者在调用线程上回调了异常），并且可以重试
+    private boolean submit(BatchState batch, KafkaRecord record, int attempt) {
+        Submission submission= new Submission(batch, record, attempt);
+        try {
+            countSent.increment();
+            transport.send(record, submission);
+        } catch(Exception x) {
+            submission.sending= false;
+            complete(batch, record, attempt, x);
+            return !shouldDivert(x);
+        }
+        submission.sending= false;
+        Exception x= submission.inlineFailure;
+        return x == null || !shouldDivert(x);
+    }
+    // 不可重试的异常（或者不重试时），剩余的数据仍然逐条发送
+    private boolean shouldDivert(Exception x) {
+        return maxRetries > 0 && isRetriable(x);
+    }
+    private void complete(BatchState batch, KafkaRecord record, int attempt, Exception x) {
+        if(x == null) {
+            countAcked.increment();
+            release(record.size());
+            batch.done(false);
+            return;
+        }
+        if(!closed && attempt < maxRetries && isRetriable(x)) {
+            LOGGER.debug("KafkaSender retry (attempt={}): {}", attempt+1, x.toString());
+            retry(batch, record, attempt);
+            return;
+        }
+        fail(batch, record, attempt, x);
+    }
+    private void fail(BatchState batch, KafkaRecord record, int attempt, Exception x) {
+        countFailed.increment();
+        release(record.size());
+        LOGGER.error("KafkaSender failed to send a record (attempt={}, size={})", attempt+1, record.size(), x);
+        batch.done(true);
+    }
+    // 发送中的数量不释放，重试之前一直占用（重试线程不会等待这个数量，总能释放）
+    private void retry(BatchState batch, KafkaRecord record, int attempt) {
+        countRetried.increment();
+        long delay= Math.min(MAX_BACKOFF, backoff << Math.min(attempt, 16));
+        try {
+            retryService.schedule(()-> submit(batch, record, attempt+1), delay, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException x) {
+            // 已经关闭
+            fail(batch, record, attempt, x);
+        }
+    }
+    private static boolean isRetriable(Throwable x) {
+        for(int depth=0; x != null && depth < 4; depth++, x= x.getCause())
+            if(x instanceof RetriableException)
+                return true;
+        return false;
+    }
+
+    // 超出上限时等待，单条数据超过字节数上限时，等到没有其他发送中的数据之后发送；返回false表示已经关闭
+    // 被中断时不再等待，直接占用（可以暂时超出上限），数据照常发送，中断状态留给调用者
+    private boolean acquire(long bytes) {
+        synchronized(lock) {
+            while(!closed && inFlightRecords > 0
+                    && (inFlightRecords >= maxRecords || inFlightBytes+bytes > maxBytes)) {
+                try {
+                    lock.wait(WAIT_STEP);
+                } catch(InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }// while
+            if(closed)
+                return false;
+            inFlightRecords++;
+            inFlightBytes+= bytes;
+            return true;
+        }// synchronized
+    }
+    private void release(long bytes) {
+        synchronized(lock) {
+            inFlightRecords--;
+            inFlightBytes-= bytes;
+            lock.notifyAll();
+        }// synchronized
+    }
+
+    private void completeBatch(long latency, int failed) {
+        countBatches.incrementAndGet();
+        if(failed > 0)
+            countFailedBatches.incrementAndGet();
+        totalLatency.add(latency);
+        lastLatency= latency;
+        maxLatency.accumulateAndGet(latency, Math::max);
+        if(failed > 0)
+            LOGGER.error("KafkaSender batch acknowledged with failures (latency={}ms, failed={})", latency, failed);
+        else
+            LOGGER.trace("KafkaSender batch acknowledged (latency={}ms)", latency);
+    }
+
+    // 等待发送中（包括等待重试）的数据全部完成，返回false表示超时
+    boolean awaitIdle(long timeout) {
+        long deadline= System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized(lock) {
+            while(inFlightRecords > 0) {
+                long remain= TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime());
+                if(remain <= 0)
+                    return false;
+                try {
+                    lock.wait(Math.min(remain, WAIT_STEP));
+                } catch(InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }// while
+        }// synchronized
+        return true;
+    }
+    // 关闭之后不再重试，等待中的processBuffer立即返回
+    // 已经安排的重试照常执行一次（closed之后出错直接计为失败），释放占用的发送中数量
+    void close() {
+        closed= true;
+        retryService.shutdown();
+        synchronized(lock) {
+            lock.notifyAll();
+        }// synchronized
+    }
+
+    int inFlightRecords() {
+        synchronized(lock) {
+            return inFlightRecords;
+        }// synchronized
+    }
+    long inFlightBytes() {
+        synchronized(lock) {
+            return inFlightBytes;
+        }// synchronized
+    }
+
+    String dump() {
+        long batches= countBatches.get();
+        return String.format("SendPipeline(inFlight= %d/%d records, %d/%d bytes, sent= %d, acked= %d, retried= %d, failed= %d, "
+                        + "batches= %d, failedBatches= %d, latency(last/avg/max)= %d/%d/%d ms)",
+                inFlightRecords(), maxRecords, inFlightBytes(), maxBytes,
+                countSent.sum(), countAcked.sum(), countRetried.sum(), countFailed.sum(),
+                batches, countFailedBatches.get(), lastLatency, batches == 0? 0: totalLatency.sum()/batches, maxLatency.get());
+    }
+}
@@ -0,0 +1,182 @@
+package dmq.test.logging.log4j;
+
+import dmq.test.logging.common.TimerWheel;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// 合并短时间内重复的日志（见ConcurrentAppenderSkeleton.setCoalesce）
+// 重试循环等场景下，同一个logger、级别、消息的日志可能连续出现成千上万次
+// 按照(logger, level, message)的签名保存最近的日志，签名按照哈希值放入固定数量的槽位，冲突时替换旧的签名
+// 一个窗口（interval毫秒）内第一次出现的日志照常写入，之后重复的日志不再写入，只累计次数与时间
+// 窗口结束时（同一个签名在窗口之后再次出现、被其他签名替换、或者定时检查时），把重复的日志合并成一条写入：
+//  repeat_count    窗口内被合并的次数（不包括第一次）
+//  first_ts        第一次被合并的时间
+//  last_ts         最后一次被合并的时间
+// 合并的日志使用第一次被合并的日志的快照（位置信息在调用线程上获取），之后的重复只需要比较签名
+public class Coalescer {
+    public static final String REPEAT_COUNT= "repeat_count";
+    public static final String FIRST_TS= "first_ts";
+    public static final String LAST_TS= "last_ts";
+    public static final int SLOTS= 256;    // 默认的槽位数量
+    private static final int MAX_SLOTS= 64*1024;
+
+    // 合并之后的输出
+    public interface Emitter {
+        void emit(EventSnapshot snapshot, long repeatCount, long firstTs, long lastTs);
+    }
+
+    // 一个槽位，由自身的锁保护
+    private static final class Slot {
+        String loggerName= null;
+        Level level= null;
+        String message= null;
+        long windowStart= 0;
+        EventSnapshot snapshot= null;// 第一次被合并的日志
+        long count= 0;
+        long firstTs= 0, lastTs= 0;
+
+        boolean matches(String loggerName, Level level, String message) {
+            return this.level == level && Objects.equals(this.loggerName, loggerName)
+                    && Objects.equals(this.message, message);
+        }
+        void reset(String loggerName, Level level, String message, long windowStart) {
+            this.loggerName= loggerName;
+            this.level= level;
+            this.message= message;
+            this.windowStart= windowStart;
+            snapshot= null;
+            count= 0;
+        }
+    }
+
+    private final long interval;
+    private final Slot[] slots;
+    private final Function<LoggingEvent, EventSnapshot> snapshots;
+    private final Emitter emitter;
+    private final AtomicInteger pending= new AtomicInteger(0);// 有合并数量的槽位
+    private final AtomicBoolean sweepScheduled= new AtomicBoolean(false);
+    private volatile TimerWheel.Timeout sweepTimeout= null;
+    private volatile boolean closed= false;
+    private final LongAdder countCoalesced= new LongAdder();
+    private final LongAdder countEmitted= new LongAdder();
+    // snapshots在调用线程上获取日志的快照，emitter输出合并之后的日志
+    public Coalescer(long interval, int slots, Function<LoggingEvent, EventSnapshot> snapshots, Emitter emitter) {
+        this.interval= interval;
+        int size= 1;
+        while(size < Math.min(Math.max(slots, 1), MAX_SLOTS))
+            size<<= 1;
+        this.slots= new Slot[size];
+        for(int i=0; i<size; i++)
+            this.slots[i]= new Slot();
+        this.snapshots= snapshots;
+        this.emitter= emitter;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    // 返回false表示日志被合并，不需要写入
+    public boolean offer(LoggingEvent event) {
+        if(closed)
+            return true;
+        String loggerName= event.getLoggerName();
+        Level level= event.getLevel();
+        String message= event.getRenderedMessage();
+        long time= event.getTimeStamp();
+        int hash= Objects.hashCode(loggerName)*31*31 + Objects.hashCode(level)*31 + Objects.hashCode(message);
+        Slot slot= slots[(hash ^ (hash >>> 16)) & (slots.length-1)];
+
+        EventSnapshot snapshot= null;
+        long count= 0, firstTs= 0, lastTs= 0;
+        synchronized(slot) {
+            if(slot.matches(loggerName, level, message) && time-slot.windowStart < interval) {
+                if(slot.count == 0) {
+                    // 只为第一次被合并的日志获取快照
+                    slot.snapshot= snapshots.apply(event);
+                    slot.firstTs= time;
+                    pending.incrementAndGet();
+                }
+                slot.count++;
+                slot.lastTs= time;
+                countCoalesced.increment();
+                scheduleSweep();
+                return false;
+            }
+            // 窗口结束或者被替换，先输出原来的合并结果
+            if(slot.count > 0) {
+                snapshot= slot.snapshot;
+                count= slot.count;
+                firstTs= slot.firstTs;
+                lastTs= slot.lastTs;
+                pending.decrementAndGet();
+            }
+            slot.reset(loggerName, level, message, time);
+        }// synchronized
+        if(snapshot != null)
+            emit(snapshot, count, firstTs, lastTs);
+        return true;
+    }
+
+    // 输出所有窗口已经结束的合并结果，force为true时输出全部
+    public void flush(boolean force) {
+        long now= System.currentTimeMillis();
+        for(Slot slot: slots) {
+            EventSnapshot snapshot;
+            long count, firstTs, lastTs;
+            synchronized(slot) {
+                if(slot.count == 0 || (!force && now-slot.windowStart < interval))
+                    continue;
+                snapshot= slot.snapshot;
+                count= slot.count;
+                firstTs= slot.firstTs;
+                lastTs= slot.lastTs;
+                slot.reset(null, null, null, 0);
+                pending.decrementAndGet();
+            }// synchronized
+            emit(snapshot, count, firstTs, lastTs);
+        }// for
+    }
+    private void emit(EventSnapshot snapshot, long count, long firstTs, long lastTs) {
+        countEmitted.increment();
+        try {
+            emitter.emit(snapshot, count, firstTs, lastTs);
+        } catch(Exception x) {
+            LogLog.error("Coalescer emit failed!", x);
+        }
+    }
+
+    // 有合并数量时才定时检查
+    private void scheduleSweep() {
+        if(closed || !sweepScheduled.compareAndSet(false, true))
+            return;
+        sweepTimeout= TimerWheel.shared().schedule(TimerWheel.shared().workers(), this::sweep, interval);
+    }
+    private void sweep() {
+        flush(false);
+        sweepScheduled.set(false);
+        if(pending.get() > 0)
+            scheduleSweep();
+    }
+
+    // 关闭时输出全部的合并结果
+    public void close() {
+        closed= true;
+        TimerWheel.Timeout timeout= sweepTimeout;
+        if(timeout != null)
+            timeout.cancel();
+        flush(true);
+    }
+
+    public String dump() {
+        return String.format("Coalescer(interval= %d, slots= %d, pending= %d, coalesced= %d, emitted= %d)",
+                interval, slots.length, pending.get(), countCoalesced.sum(), countEmitted.sum());
+    }
+}
@@ -0,0 +1,180 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.TimeZone;
+
+// 不加锁的AppenderSkeleton
+// AppenderSkeleton.doAppend是synchronized方法，格式化日志、转换JSON等操作都在同一个对象锁内完成，
+// 多个线程同时写日志时，只能一个一个的执行
+// 这里重写doAppend：级别与过滤器的检查不加锁，append可以被多个线程同时调用，子类需要保证append是线程安全的
+// Helper.formatTime需要修改Calendar，所以timetext由线程安全的TimeTextFormatter生成（timeFormatter()）
+// 级别、过滤器等配置通常只在初始化时设置，这里不再加锁读取
+// AppenderSkeleton.closed不是volatile，子类在close()中调用markClosed()，不加锁的doAppend只读取appenderClosed
+// 位置信息按照LocationPolicy获取，默认总是获取
+// 启用异常去重（setThrowableDedup）时，重复的异常只保存指纹与次数（见ThrowableDeduper）
+// logger名称的过滤（setLoggerFilter）在级别之后、过滤器之前执行（见LoggerNameFilter）
+// 子类的默认规则（通常是过滤驱动程序的日志，避免驱动程序的日志再写回自己）单独检查，用户的规则不能放开
+// 重复日志的合并（setCoalesce）在限流之前执行，合并之后的日志由子类的appendCoalesced写入（见Coalescer）
+// 按照logger前缀与级别限流、采样（setRateLimit）在过滤器之后、格式化之前执行，被抑制的数量定时通过notifySuppressed输出
+// 启用延迟格式化（setDeferredFormat）时，append只保存日志的快照，格式化交给刷新线程（见EventSnapshot）
+public abstract class ConcurrentAppenderSkeleton extends AppenderSkeleton {
+    private volatile TimeTextFormatter timeFormatter= new TimeTextFormatter(TimeZone.getDefault());
+    private volatile LocationPolicy locationPolicy= LocationPolicy.ALWAYS;
+    private volatile boolean deferredFormat= false;
+    private volatile ThrowableDeduper throwableDeduper= null;// 默认不去重
+    private volatile EventLimiter eventLimiter= null;// 默认不限流
+    private volatile Coalescer coalescer= null;// 默认不合并
+    private final LoggerNameFilter defaultFilter;// 子类默认的规则，总是先检查
+    private volatile LoggerNameFilter loggerFilter= null;// 用户的规则，默认不过滤
+    private volatile boolean appenderClosed= false;
+    // defaultLoggerRules为子类默认的过滤规则，见LoggerNameFilter
+    protected ConcurrentAppenderSkeleton(String defaultLoggerRules) {
+        defaultFilter= defaultLoggerRules == null? null: new LoggerNameFilter(defaultLoggerRules);
+    }
+    protected ConcurrentAppenderSkeleton() {
+        this(null);
+    }
+
+    // 子类的close()开始时调用，同时设置AppenderSkeleton.closed
+    protected void markClosed() {
+        appenderClosed= true;
+        closed= true;
+    }
+    protected boolean isClosed() {
+        return appenderClosed;
+    }
+
+    protected TimeTextFormatter timeFormatter() {
+        return timeFormatter;
+    }
+    protected TimeZone getTimeZone() {
+        return timeFormatter.getTimeZone();
+    }
+    protected void setTimeZone(TimeZone timeZone) {
+        timeFormatter= new TimeTextFormatter(timeZone);
+    }
+    public LocationPolicy getLocationPolicy() {
+        return locationPolicy;
+    }
+    public void setLocationPolicy(LocationPolicy policy) {
+        locationPolicy= policy != null? policy: LocationPolicy.ALWAYS;
+    }
+    // always, never, level[:LEVEL]（见LocationPolicy）
+    public void setLocationPolicy(String spec) {
+        setLocationPolicy(LocationPolicy.parse(spec));
+    }
+    public boolean getDeferredFormat() {
+        return deferredFormat;
+    }
+    public void setDeferredFormat(boolean deferred) {
+        deferredFormat= deferred;
+    }
+    protected ThrowableDeduper throwableDeduper() {
+        return throwableDeduper;
+    }
+    // window为窗口长度（毫秒），maxEntries为缓存的指纹数量，window不大于0时关闭去重
+    public void setThrowableDedup(long window, int maxEntries) {
+        throwableDeduper= window > 0? new ThrowableDeduper(window, maxEntries): null;
+    }
+    public void setThrowableDedup(long window) {
+        setThrowableDedup(window, ThrowableDeduper.MAX_ENTRIES);
+    }
+    // 规则见EventLimiter，reportInterval为输出抑制数量的周期（毫秒），spec为空时关闭限流
+    public synchronized void setRateLimit(String spec, long reportInterval) {
+        EventLimiter old= eventLimiter;
+        eventLimiter= EventLimiter.parse(spec, this::notifySuppressed, reportInterval);
+        if(old != null)
+            old.close();
+    }
+    public void setRateLimit(String spec) {
+        setRateLimit(spec, EventLimiter.REPORT_INTERVAL);
+    }
+    public EventLimiter getRateLimit() {
+        return eventLimiter;
+    }
+    // 子类关闭时调用
+    protected void closeRateLimit() {
+        EventLimiter limiter= eventLimiter;
+        if(limiter != null)
+            limiter.close();
+    }
+    // 用户的规则，只在默认规则允许的日志上生效（不能放开默认规则过滤掉的日志），rules为空时不过滤
+    public void setLoggerFilter(String rules) {
+        loggerFilter= (rules == null || rules.isEmpty())? null: new LoggerNameFilter(rules);
+    }
+    // 没有设置时返回null
+    public LoggerNameFilter getLoggerFilter() {
+        return loggerFilter;
+    }
+    // interval为合并的窗口长度（毫秒），slots为保存签名的槽位数量，interval不大于0时关闭合并
+    public synchronized void setCoalesce(long interval, int slots) {
+        Coalescer old= coalescer;
+        coalescer= interval > 0? new Coalescer(interval, slots, this::snapshot, this::appendCoalesced): null;
+        if(old != null)
+            old.close();
+    }
+    public void setCoalesce(long interval) {
+        setCoalesce(interval, Coalescer.SLOTS);
+    }
+    public Coalescer getCoalesce() {
+        return coalescer;
+    }
+    // 子类关闭时调用，在关闭缓存之前输出尚未输出的合并结果
+    protected void closeCoalesce() {
+        Coalescer current= coalescer;
+        if(current != null)
+            current.close();
+    }
+    // 写入合并之后的日志，需要添加repeat_count、first_ts、last_ts（见Coalescer）
+    protected abstract void appendCoalesced(EventSnapshot snapshot, long repeatCount, long firstTs, long lastTs);
+    // 定时输出被抑制的数量，默认作为一条WARN日志写入（不经过限流）
+    protected void notifySuppressed(String message) {
+        if(appenderClosed)
+            return;
+        append(new LoggingEvent(EventLimiter.class.getName(), Logger.getLogger(EventLimiter.class), Level.WARN,
+                message, null));
+    }
+    // 在调用日志的线程上获取快照（包括位置信息）
+    protected EventSnapshot snapshot(LoggingEvent event) {
+        return EventSnapshot.capture(timeFormatter, throwableDeduper, event, locationPolicy.capture(event));
+    }
+
+    @Override// AppenderSkeleton
+    public void doAppend(LoggingEvent event) {
+        if(appenderClosed) {
+            LogLog.error("Attempted to append to closed appender named ["+name+"].");
+            return;
+        }
+        if(!isAsSevereAsThreshold(event.getLevel()))
+            return;
+        // 过虑掉不期望看到的日志，比如来自驱动程序的日志等
+        if(defaultFilter != null && !defaultFilter.accept(event))
+            return;
+        LoggerNameFilter nameFilter= loggerFilter;
+        if(nameFilter != null && !nameFilter.accept(event))
+            return;
+
+        Filter filter= getFirstFilter();
+        while(filter != null) {
+            int decision= filter.decide(event);
+            if(decision == Filter.DENY)
+                return;
+            if(decision == Filter.ACCEPT)
+                break;
+            filter= filter.getNext();
+        }// while
+        Coalescer current= coalescer;
+        if(current != null && !current.offer(event))
+            return;
+        EventLimiter limiter= eventLimiter;
+        if(limiter != null && !limiter.allow(event))
+            return;
+        append(event);
+    }
+}
@@ -0,0 +1,194 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+// KafkaAppender使用的编码器，把日志直接编码成UTF-8字节
+// 输出与原来的 formatEvent + putAll(extraElements) + put(saveTime) 之后的 BSONObject.toString() 完全相同
+//  *** 注意 ***
+// 这个版本的BasicBSONObject没有重写toString，原来发送到kafka的实际上是LinkedHashMap.toString的格式：
+//  {level=INFO, message=..., timestamp=Tue Nov 14 22:13:20 CST 2023, ...}
+// 而不是json，kafka的消费者依赖这个格式，所以这里保持不变：
+//  键名与formatEvent相同的额外键值，替换原来位置上的值；其他额外键值按照Map的顺序追加在后面，saveTime最后
+// 编码时不再创建BSONObject与中间字符串，每个线程复用自己的字节数组，最后只复制出一个byte[]
+public class EventEncoder {
+    private static final String[] FIELDS= {"level", "message", "timestamp", "timetext",
+            "file", "line", "class", "method", "exception"};
+    private static final int TIMESTAMP= 2;
+    private static final int BUFFER_BYTES= 1024;
+    private static final int MAX_RETAINED_BYTES= 64*1024;// 超出之后不再保留，避免个别很长的日志一直占用内存
+
+    // 每个线程的编码状态
+    private static final class State {
+        final Object[] values= new Object[FIELDS.length];
+        final boolean[] replaced= new boolean[FIELDS.length];
+        byte[] buffer= new byte[BUFFER_BYTES];
+        int length= 0;
+    }
+    private static final ThreadLocal<State> STATES= ThreadLocal.withInitial(State::new);
+
+    // 最近一秒的Date.toString，同一秒内的日志直接使用
+    private static final class DateText {
+        final long second;
+        final String text;
+        DateText(long second, String text) {
+            this.second= second;
+            this.text= text;
+        }
+    }
+    private static volatile DateText lastDate= null;
+    static String dateText(long time) {
+        long second= Math.floorDiv(time, 1000L);
+        DateText last= lastDate;
+        if(last != null && last.second == second)
+            return last.text;
+        String text= new Date(time).toString();
+        lastDate= new DateText(second, text);
+        return text;
+    }
+
+    private EventEncoder() {
+    }
+
+    // info为null时，位置字段为null；deduper为null时不去重；saveTime为null时，不写入保存时间
+    public static byte[] encode(TimeTextFormatter formatter, ThrowableDeduper deduper, LocationInfo info,
+                                LoggingEvent event, Map<String, Object> extraElements, String saveTime, long saveMillis) {
+        return encode(formatter, event.getLevel(), event.getMessage(), event.getTimeStamp(),
+                Helper.formatThrowable(event.getThrowableInformation(), deduper, event.getTimeStamp()),
+                info, extraElements, saveTime, saveMillis);
+    }
+    // 延迟格式化的日志，由刷新线程调用（见EventSnapshot）
+    public static byte[] encode(EventSnapshot snapshot, Map<String, Object> extraElements, String saveTime, long saveMillis) {
+        return encode(snapshot.getTimeFormatter(), snapshot.getLevel(), snapshot.getMessage(), snapshot.getTimeStamp(),
+                snapshot.formatThrowable(), snapshot.getLocation(), extraElements, saveTime, saveMillis);
+    }
+    private static byte[] encode(TimeTextFormatter formatter, Level level, Object message, long timestamp,
+                                 BSONObject exception, LocationInfo info,
+                                 Map<String, Object> extraElements, String saveTime, long saveMillis) {
+        State state= STATES.get();
+        Object[] values= state.values;
+        boolean[] replaced= state.replaced;
+        Arrays.fill(replaced, false);
+        values[0]= level.toString();
+        values[1]= message;
+        values[2]= null;// 时间戳最后按照timestamp输出，避免创建Date
+        values[3]= formatter.format(timestamp);
+        values[4]= info == null? null: info.getFileName();
+        values[5]= info == null? null: info.getLineNumber();
+        values[6]= info == null? null: info.getClassName();
+        values[7]= info == null? null: info.getMethodName();
+        values[8]= exception;
+
+        boolean saveTimeReplaced= false;
+        if(extraElements != null) {
+            for(Map.Entry<String, Object> entry: extraElements.entrySet()) {
+                int index= indexOf(entry.getKey());
+                if(index >= 0) {
+                    values[index]= entry.getValue();
+                    replaced[index]= true;
+                }
+            }// for
+            saveTimeReplaced= saveTime != null && extraElements.containsKey(saveTime) && indexOf(saveTime) < 0;
+        }
+        int saveIndex= saveTime == null? -1: indexOf(saveTime);
+        Object saveValue= null;
+        if(saveTime != null)
+            saveValue= dateText(saveMillis);
+
+        state.length= 0;
+        write(state, '{');
+        for(int i=0; i<FIELDS.length; i++) {
+            if(i > 0)
+                write(state, ", ");
+            write(state, FIELDS[i]);
+            write(state, '=');
+            if(i == saveIndex)
+                write(state, (String)saveValue);
+            else if(replaced[i])
+                write(state, String.valueOf(values[i]));
+            else if(i == TIMESTAMP)
+                write(state, dateText(timestamp));
+            else
+                write(state, String.valueOf(values[i]));
+        }// for
+        if(extraElements != null) {
+            for(Map.Entry<String, Object> entry: extraElements.entrySet()) {
+                if(indexOf(entry.getKey()) >= 0)
+                    continue;
+                write(state, ", ");
+                write(state, entry.getKey());
+                write(state, '=');
+                if(saveTimeReplaced && saveTime.equals(entry.getKey()))
+                    write(state, (String)saveValue);
+                else
+                    write(state, String.valueOf(entry.getValue()));
+            }// for
+        }
+        if(saveTime != null && saveIndex < 0 && !saveTimeReplaced) {
+            write(state, ", ");
+            write(state, saveTime);
+            write(state, '=');
+            write(state, (String)saveValue);
+        }
+        write(state, '}');
+
+        byte[] data= Arrays.copyOf(state.buffer, state.length);
+        if(state.buffer.length > MAX_RETAINED_BYTES)
+            state.buffer= new byte[BUFFER_BYTES];
+        Arrays.fill(values, null);
+        return data;
+    }
+    private static int indexOf(String key) {
+        for(int i=0; i<FIELDS.length; i++)
+            if(FIELDS[i].equals(key))
+                return i;
+        return -1;
+    }
+
+    private static void ensure(State state, int more) {
+        if(state.length+more > state.buffer.length)
+            state.buffer= Arrays.copyOf(state.buffer, Math.max(state.buffer.length*2, state.length+more));
+    }
+    private static void write(State state, char c) {
+        ensure(state, 1);
+        state.buffer[state.length++]= (byte)c;
+    }
+    // 与String.getBytes(UTF_8)相同，不成对的代理字符输出为'?'
+    private static void write(State state, String string) {
+        if(string == null)
+            string= "null";
+        int count= string.length();
+        ensure(state, count*3);
+        byte[] buffer= state.buffer;
+        int position= state.length;
+        for(int i=0; i<count; i++) {
+            char c= string.charAt(i);
+            if(c < 0x80) {
+                buffer[position++]= (byte)c;
+            } else if(c < 0x800) {
+                buffer[position++]= (byte)(0xC0 | (c >> 6));
+                buffer[position++]= (byte)(0x80 | (c & 0x3F));
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i+1 < count && Character.isLowSurrogate(string.charAt(i+1))) {
+                    int code= Character.toCodePoint(c, string.charAt(++i));
+                    buffer[position++]= (byte)(0xF0 | (code >> 18));
+                    buffer[position++]= (byte)(0x80 | ((code >> 12) & 0x3F));
+                    buffer[position++]= (byte)(0x80 | ((code >> 6) & 0x3F));
+                    buffer[position++]= (byte)(0x80 | (code & 0x3F));
+                } else
+                    buffer[position++]= (byte)'?';
+            } else {
+                buffer[position++]= (byte)(0xE0 | (c >> 12));
+                buffer[position++]= (byte)(0x80 | ((c >> 6) & 0x3F));
+                buffer[position++]= (byte)(0x80 | (c & 0x3F));
+            }
+        }// for
+        state.length= position;
+    }
+}
@@ -0,0 +1,199 @@
+package dmq.test.logging.log4j;
+
+import dmq.test.logging.common.TimerWheel;
+import dmq.test.logging.common.TokenBucket;
+import dmq.test.utils.Converter;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// 按照logger名称的前缀与日志级别限流、采样（见ConcurrentAppenderSkeleton.setRateLimit）
+// 在格式化之前执行，被抑制的日志不占用缓存
+// 每条规则限制不高于LEVEL的日志（通常用于DEBUG/INFO），更高级别的日志不受影响
+// 一条日志按照最长的前缀匹配规则，同一个前缀有多条规则时，使用LEVEL最低的那一条
+// 被抑制的数量按照规则累计，定时通过reporter输出（类似MongoAppender.notifyBufferDroppped），没有抑制时不再定时
+// 通过字符串配置时，多条规则以';'分隔，每条规则为：
+//  prefix:LEVEL:rate=N,burst=N,sample=F
+//  prefix为logger名称的前缀（按照'.'分段匹配），*表示所有logger
+//  rate为每秒允许的数量（令牌桶，见TokenBucket），burst为允许的突发数量（默认等于rate）
+//  sample为采样比例（0~1），先采样再限流
+// 如：com.example.noisy:INFO:rate=100,burst=500;*:DEBUG:sample=0.01
+public class EventLimiter {
+    public static final long REPORT_INTERVAL= 10*1000L;// 默认输出抑制数量的周期（毫秒）
+    public static final String ANY= "*";
+
+    // 一条限流规则
+    static final class Rule {
+        final String prefix;
+        final Level level;
+        final TokenBucket bucket;   // 为null时不限流
+        final double sample;        // 不小于1时不采样
+        final LongAdder suppressed= new LongAdder();
+        final LongAdder countSuppressed= new LongAdder();
+        Rule(String prefix, Level level, TokenBucket bucket, double sample) {
+            this.prefix= prefix;
+            this.level= level;
+            this.bucket= bucket;
+            this.sample= sample;
+        }
+        boolean matches(String name) {
+            return prefix.isEmpty() || name.equals(prefix)
+                    || (name.startsWith(prefix) && name.charAt(prefix.length()) == '.');
+        }
+        boolean allow() {
+            if(sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample)
+                return false;
+            return bucket == null || bucket.tryAcquire();
+        }
+        @Override// Object
+        public String toString() {
+            return String.format("%s:%s:rate=%s,burst=%s,sample=%s", prefix.isEmpty()? ANY: prefix, level,
+                    bucket == null? "-": bucket.getRate(), bucket == null? "-": bucket.getBurst(), sample);
+        }
+    }
+    private static final Rule[] NO_RULES= new Rule[0];
+
+    private final Rule[] rules;// 按照前缀从长到短、级别从低到高排序
+    private final ConcurrentHashMap<String, Rule[]> cache= new ConcurrentHashMap<>();// logger名称匹配的规则
+    private final Consumer<String> reporter;
+    private final long reportInterval;
+    private final AtomicBoolean reportScheduled= new AtomicBoolean(false);
+    private volatile TimerWheel.Timeout reportTimeout= null;
+    private volatile boolean closed= false;
+    EventLimiter(List<Rule> list, Consumer<String> reporter, long reportInterval) {
+        list.sort(Comparator.<Rule>comparingInt(x-> -x.prefix.length()).thenComparingInt(x-> x.level.toInt()));
+        this.rules= list.toArray(new Rule[0]);
+        this.reporter= reporter;
+        this.reportInterval= reportInterval > 0? reportInterval: REPORT_INTERVAL;
+    }
+
+    // 无法识别的规则被忽略，没有规则时返回null
+    public static EventLimiter parse(String spec, Consumer<String> reporter, long reportInterval) {
+        if(spec == null || spec.trim().isEmpty())
+            return null;
+        List<Rule> list= new ArrayList<>();
+        for(String item: spec.split(";")) {
+            String[] parts= item.trim().split(":", 3);
+            if(parts.length < 3) {
+                if(!item.trim().isEmpty())
+                    LogLog.warn("Ignored rate limit rule ["+item+"].");
+                continue;
+            }
+            String prefix= parts[0].trim();
+            if(prefix.equals(ANY))
+                prefix= "";
+            Level level= Level.toLevel(parts[1].trim(), Level.INFO);
+            double rate= -1, sample= 1;
+            long burst= -1;
+            for(String param: parts[2].split(",")) {
+                int pos= param.indexOf('=');
+                if(pos < 0)
+                    continue;
+                String name= param.substring(0, pos).trim().toLowerCase();
+                String value= param.substring(pos+1).trim();
+                switch(name) {
+                    case "rate":
+                        rate= Converter.parseDouble(value, -1);
+                        break;
+                    case "burst":
+                        burst= Converter.parseNumLong(value, -1);
+                        break;
+                    case "sample":
+                        sample= Converter.parseDouble(value, 1);
+                        break;
+                }// switch
+            }// for
+            TokenBucket bucket= rate > 0? new TokenBucket(rate, burst > 0? burst: (long)Math.ceil(rate)): null;
+            list.add(new Rule(prefix, level, bucket, sample));
+        }// for
+        return list.isEmpty()? null: new EventLimiter(list, reporter, reportInterval);
+    }
+    public static EventLimiter parse(String spec, Consumer<String> reporter) {
+        return parse(spec, reporter, REPORT_INTERVAL);
+    }
+
+    // 返回false表示日志被抑制
+    public boolean allow(LoggingEvent event) {
+        Rule rule= match(event.getLoggerName(), event.getLevel());
+        if(rule == null || rule.allow())
+            return true;
+        rule.suppressed.increment();
+        rule.countSuppressed.increment();
+        scheduleReport();
+        return false;
+    }
+    private Rule match(String name, Level level) {
+        if(name == null || level == null)
+            return null;
+        Rule[] matched= cache.get(name);
+        if(matched == null) {
+            List<Rule> list= new ArrayList<>();
+            for(Rule rule: rules)
+                if(rule.matches(name))
+                    list.add(rule);
+            matched= list.isEmpty()? NO_RULES: list.toArray(new Rule[0]);
+            cache.put(name, matched);
+        }
+        int value= level.toInt();
+        for(Rule rule: matched)
+            if(value <= rule.level.toInt())
+                return rule;
+        return null;
+    }
+
+    private void scheduleReport() {
+        if(closed || !reportScheduled.compareAndSet(false, true))
+            return;
+        reportTimeout= TimerWheel.shared().schedule(TimerWheel.shared().workers(), this::report, reportInterval);
+    }
+    private void report() {
+        for(Rule rule: rules) {
+            long count= rule.suppressed.sumThenReset();
+            if(count <= 0)
+                continue;
+            if(reporter != null && !closed) {
+                try {
+                    reporter.accept(String.format("notifySuppressed: something suppressed by the rate limiter. (rule= %s, count= %d)",
+                            rule, count));
+                } catch(Exception x) {
+                    LogLog.error("EventLimiter report failed!", x);
+                }
+            }
+        }// for
+        reportScheduled.set(false);
+        // 输出期间可能又有新的抑制
+        for(Rule rule: rules) {
+            if(rule.suppressed.sum() > 0) {
+                scheduleReport();
+                break;
+            }
+        }// for
+    }
+
+    // 关闭之后不再定时输出
+    public void close() {
+        closed= true;
+        TimerWheel.Timeout timeout= reportTimeout;
+        if(timeout != null)
+            timeout.cancel();
+    }
+
+    public String dump() {
+        StringBuilder builder= new StringBuilder("EventLimiter(");
+        for(int i=0; i<rules.length; i++) {
+            if(i > 0)
+                builder.append("; ");
+            builder.append(rules[i]).append(", suppressed= ").append(rules[i].countSuppressed.sum());
+        }// for
+        return builder.append(")").toString();
+    }
+}
@@ -0,0 +1,33 @@
+package dmq.test.logging.log4j;
+
+import dmq.test.logging.kafka.sender.KafkaRecord;
+
+import java.util.Map;
+
+// KafkaAppender延迟格式化时发送的数据（见EventSnapshot）
+// 第一次getValue时由EventEncoder编码，通常是在KafkaSender的发送线程上，保存时间也是编码时的时间
+// key、优先级与分组在创建时就已确定，不需要编码
+final class EventRecord extends KafkaRecord {
+    private final EventSnapshot snapshot;
+    private final Map<String, Object> extraElements;
+    private final String saveTime;
+    private byte[] value= null;// 由this保护
+    EventRecord(String key, EventSnapshot snapshot, Map<String, Object> extraElements, String saveTime) {
+        super(key, snapshot.getLevel().toInt(), snapshot.getClassName());
+        this.snapshot= snapshot;
+        this.extraElements= extraElements;
+        this.saveTime= saveTime;
+    }
+
+    @Override// KafkaRecord
+    public synchronized byte[] getValue() {
+        if(value == null)
+            value= EventEncoder.encode(snapshot, extraElements, saveTime, System.currentTimeMillis());
+        return value;
+    }
+    // TimedBuffer在写入与取出时都会调用，编码前后必须相同，所以总是使用估算的字节数
+    @Override// KafkaRecord
+    public long size() {
+        return snapshot.estimateSize();
+    }
+}
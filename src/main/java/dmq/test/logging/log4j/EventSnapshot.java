@@ -0,0 +1,158 @@
+package dmq.test.logging.log4j;
+
+import dmq.test.logging.common.SizeEstimator;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.bson.BSONObject;
+
+import java.util.Map;
+import java.util.Set;
+
+// 延迟格式化的日志（见ConcurrentAppenderSkeleton.setDeferredFormat）
+// append只在调用日志的线程上保存最少的信息：时间、级别、logger、消息的引用、异常、线程名、MDC的副本、位置信息
+// 位置信息、线程名与MDC只能在调用线程上获取，其他的格式化（timetext、异常的展开、BSONObject）都交给刷新线程
+// 作为BSONObject使用时，第一次访问才调用Helper.formatEvent，之后的访问都使用格式化的结果
+// 级别与类名直接从快照读取（溢出策略、并行通道不需要格式化）
+// 异常只格式化一次（去重计数也只计一次，见ThrowableDeduper），估算字节数与编码使用同一个结果
+//  *** 注意 ***
+// 消息保存的是引用，消息对象的toString在刷新线程上调用；启用预写日志（Journal）时，写入日志的线程仍然需要格式化
+public final class EventSnapshot implements BSONObject {
+    // 没有异常时的估算：9个字段的键名与固定长度的值（见Helper.estimateSize）
+    private static final int FIXED_BYTES= 136;
+    private static final int LOCATION_BYTES= 4*5;
+
+    private final TimeTextFormatter timeFormatter;
+    private final ThrowableDeduper throwableDeduper;
+    private final String loggerName;
+    private final Level level;
+    private final long timeStamp;
+    private final Object message;
+    private final ThrowableInformation throwableInformation;
+    private final String threadName;
+    private final Map<?, ?> mdc;
+    private final LocationInfo location;
+    private BSONObject formatted= null;// 由this保护
+    private BSONObject exception= null;// 由this保护
+    private boolean exceptionFormatted= false;
+    private EventSnapshot(TimeTextFormatter timeFormatter, ThrowableDeduper throwableDeduper,
+                          LoggingEvent event, LocationInfo location) {
+        this.timeFormatter= timeFormatter;
+        this.throwableDeduper= throwableDeduper;
+        this.loggerName= event.getLoggerName();
+        this.level= event.getLevel();
+        this.timeStamp= event.getTimeStamp();
+        this.message= event.getMessage();
+        this.throwableInformation= event.getThrowableInformation();
+        this.threadName= event.getThreadName();
+        this.mdc= event.getProperties();// MDC的副本（不可修改）
+        this.location= location;
+    }
+    // 在调用日志的线程上执行，location由LocationPolicy获取，可以为null；throwableDeduper为null时不去重
+    public static EventSnapshot capture(TimeTextFormatter timeFormatter, ThrowableDeduper throwableDeduper,
+                                        LoggingEvent event, LocationInfo location) {
+        return new EventSnapshot(timeFormatter, throwableDeduper, event, location);
+    }
+
+    public TimeTextFormatter getTimeFormatter() {
+        return timeFormatter;
+    }
+    public String getLoggerName() {
+        return loggerName;
+    }
+    public Level getLevel() {
+        return level;
+    }
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+    public Object getMessage() {
+        return message;
+    }
+    public ThrowableInformation getThrowableInformation() {
+        return throwableInformation;
+    }
+    public String getThreadName() {
+        return threadName;
+    }
+    public Map<?, ?> getMDC() {
+        return mdc;
+    }
+    public LocationInfo getLocation() {
+        return location;
+    }
+    public String getClassName() {
+        return location == null? null: location.getClassName();
+    }
+
+    // 估算格式化之后的BSON字节数，没有异常并且消息是字符串时不需要格式化
+    public long estimateSize() {
+        if(throwableInformation != null || !(message instanceof CharSequence))
+            return Helper.estimateSize(formatted());
+        long size= FIXED_BYTES + SizeEstimator.utf8Length((CharSequence)message);
+        if(location != null)
+            size+= LOCATION_BYTES + SizeEstimator.utf8Length(location.getFileName())
+                    + SizeEstimator.utf8Length(location.getLineNumber())
+                    + SizeEstimator.utf8Length(location.getClassName())
+                    + SizeEstimator.utf8Length(location.getMethodName());
+        return size;
+    }
+
+    // 格式化之后的异常（见Helper.formatThrowable）
+    synchronized BSONObject formatThrowable() {
+        if(!exceptionFormatted) {
+            exception= Helper.formatThrowable(throwableInformation, throwableDeduper, timeStamp);
+            exceptionFormatted= true;
+        }
+        return exception;
+    }
+    private synchronized BSONObject formatted() {
+        if(formatted == null)
+            formatted= Helper.formatEvent(this);
+        return formatted;
+    }
+
+    @Override// BSONObject
+    public Object put(String key, Object v) {
+        return formatted().put(key, v);
+    }
+    @Override// BSONObject
+    public void putAll(BSONObject o) {
+        formatted().putAll(o);
+    }
+    @Override// BSONObject
+    @SuppressWarnings("rawtypes")// BSONObject的接口使用原始类型
+    public void putAll(Map m) {
+        formatted().putAll(m);
+    }
+    @Override// BSONObject
+    public Object get(String key) {
+        return formatted().get(key);
+    }
+    @Override// BSONObject
+    public Map<?, ?> toMap() {
+        return formatted().toMap();
+    }
+    @Override// BSONObject
+    public Object removeField(String key) {
+        return formatted().removeField(key);
+    }
+    @Override// BSONObject
+    @Deprecated
+    public boolean containsKey(String s) {
+        return formatted().containsField(s);
+    }
+    @Override// BSONObject
+    public boolean containsField(String s) {
+        return formatted().containsField(s);
+    }
+    @Override// BSONObject
+    public Set<String> keySet() {
+        return formatted().keySet();
+    }
+    @Override// Object
+    public String toString() {
+        return formatted().toString();
+    }
+}
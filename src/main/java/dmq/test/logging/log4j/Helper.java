@@ -1,10 +1,15 @@
 package dmq.test.logging.log4j;
 
+import dmq.test.logging.common.Serializer;
+import dmq.test.logging.common.SizeEstimator;
 import org.apache.log4j.Appender;
+import org.apache.log4j.Level;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
 import org.bson.BasicBSONObject;
 
 import java.util.*;
@@ -33,7 +38,61 @@ public class Helper {
         });
     }
 
+    // 日志级别对应的优先级，用于缓存溢出时优先丢弃低级别的日志（OverflowPolicy）
+    public static int levelPriority(BSONObject object) {
+        if(object instanceof EventSnapshot)
+            return ((EventSnapshot)object).getLevel().toInt();
+        Object level= object == null? null: object.get("level");
+        return Level.toLevel(level == null? null: level.toString(), Level.DEBUG).toInt();
+    }
+    // 日志所在的类名，用于TimedBuffer的处理通道（FlushLanes），同一个类的日志保持顺序
+    public static Object eventClass(BSONObject object) {
+        if(object instanceof EventSnapshot)
+            return ((EventSnapshot)object).getClassName();
+        return object == null? null: object.get("class");
+    }
+
+    // 估算formatEvent输出的数据按照BSON编码之后的字节数（用于TimedBuffer的字节数限制）
+    // 每个字段按照：类型(1) + 键名 + 结尾(1) + 值 计算
+    private static final int BSON_DOCUMENT= 5;// 长度(4) + 结尾(1)
+    private static final int BSON_STRING= 5;// 长度(4) + 结尾(1)
+    private static final int BSON_NUMBER= 8;
+    public static long estimateSize(BSONObject object) {
+        if(object == null)
+            return 0;
+        if(object instanceof EventSnapshot)
+            return ((EventSnapshot)object).estimateSize();
+        long size= BSON_DOCUMENT;
+        for(String key: object.keySet())
+            size+= 2 + key.length() + estimateValue(object.get(key));
+        return size;
+    }
+    private static long estimateValue(Object value) {
+        if(value == null)
+            return 0;
+        if(value instanceof BSONObject)
+            return estimateSize((BSONObject)value);
+        if(value instanceof CharSequence)
+            return BSON_STRING + SizeEstimator.utf8Length((CharSequence)value);
+        if(value instanceof Number || value instanceof Date || value instanceof Boolean)
+            return BSON_NUMBER;
+        return BSON_STRING + SizeEstimator.utf8Length(value.toString());
+    }
+
+    // 按照BSON格式读写formatEvent输出的数据（用于TimedBuffer的磁盘溢出层）
+    static final Serializer<BSONObject> BSON_SERIALIZER= new Serializer<BSONObject>() {
+        @Override// Serializer
+        public byte[] serialize(BSONObject object) {
+            return new BasicBSONEncoder().encode(object);
+        }
+        @Override// Serializer
+        public BSONObject deserialize(byte[] data) {
+            return new BasicBSONDecoder().readObject(data);
+        }
+    };
+
     // 只转换一些常用的信息
+    // 日志路径上使用TimeTextFormatter（带缓存，输出相同），这里是它完整格式化时使用的实现
     static String formatTime(Calendar calendar, long time) {
         calendar.setTimeInMillis(time);
         int offset= calendar.get(Calendar.ZONE_OFFSET);
@@ -48,24 +107,58 @@ public class Helper {
                 Math.abs(offset)%3600000/60000);
     }
 
-    static BSONObject formatEvent(Calendar calendar, LoggingEvent event) {
+    // 按照locationPolicy获取位置信息，不获取时位置字段为null；deduper为null时不去重
+    static BSONObject formatEvent(TimeTextFormatter formatter, LocationPolicy locationPolicy,
+                                  ThrowableDeduper deduper, LoggingEvent event) {
+        return formatEvent(event.getLevel(), event.getMessage(), event.getTimeStamp(),
+                formatter.format(event.getTimeStamp()), locationPolicy.capture(event),
+                formatThrowable(event.getThrowableInformation(), deduper, event.getTimeStamp()));
+    }
+    // 延迟格式化的日志，由刷新线程调用（见EventSnapshot）
+    static BSONObject formatEvent(EventSnapshot snapshot) {
+        return formatEvent(snapshot.getLevel(), snapshot.getMessage(), snapshot.getTimeStamp(),
+                snapshot.getTimeFormatter().format(snapshot.getTimeStamp()), snapshot.getLocation(),
+                snapshot.formatThrowable());
+    }
+    private static BSONObject formatEvent(Level level, Object message, long timestamp, String timetext,
+                                          LocationInfo info, BSONObject exception) {
         BasicBSONObject object= new BasicBSONObject();
-        object.put("level", event.getLevel().toString());
-        object.put("message", event.getMessage());
+        object.put("level", level.toString());
+        object.put("message", message);
 
-        object.put("timestamp", new Date(event.getTimeStamp()));
-        object.put("timetext", formatTime(calendar, event.getTimeStamp()));
+        object.put("timestamp", new Date(timestamp));
+        object.put("timetext", timetext);
 
-        LocationInfo info= event.getLocationInformation();
-        object.put("file", info.getFileName());
-        object.put("line", info.getLineNumber());
-        object.put("class", info.getClassName());
-        object.put("method", info.getMethodName());
+        object.put("file", info == null? null: info.getFileName());
+        object.put("line", info == null? null: info.getLineNumber());
+        object.put("class", info == null? null: info.getClassName());
+        object.put("method", info == null? null: info.getMethodName());
 
-        object.put("exception", formatThrowable(event.getThrowableInformation()));
+        object.put("exception", exception);
 
         return object;
     }
+    // 重复的异常只保存名称、消息、指纹与窗口内的次数（见ThrowableDeduper）
+    // 窗口内第一次出现时保存完整的信息，并添加指纹
+    static BSONObject formatThrowable(ThrowableInformation info, ThrowableDeduper deduper, long timestamp) {
+        if(info == null || deduper == null)
+            return formatThrowable(info);
+
+        String fingerprint= ThrowableDeduper.fingerprint(info);
+        long count= deduper.occur(fingerprint, timestamp);
+        if(count == 1) {
+            BSONObject object= formatThrowable(info);
+            object.put("fingerprint", fingerprint);
+            return object;
+        }
+        BasicBSONObject object= new BasicBSONObject();
+        Throwable throwable= info.getThrowable();
+        object.put("name", throwable == null? null: throwable.getClass().getCanonicalName());
+        object.put("message", throwable == null? null: throwable.getMessage());
+        object.put("fingerprint", fingerprint);
+        object.put("repeated", count);
+        return object;
+    }
     static BSONObject formatThrowable(ThrowableInformation info) {
         if(info == null)
             return null;
@@ -1,10 +1,11 @@
 package dmq.test.logging.log4j;
 
+import dmq.test.logging.common.OverflowPolicy;
 import dmq.test.logging.kafka.KafkaURIException;
+import dmq.test.logging.kafka.sender.KafkaRecord;
 import dmq.test.logging.kafka.sender.KafkaSender;
-import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
-import org.bson.BSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,16 +17,35 @@ import static dmq.test.logging.log4j.Helper.SAVE_TIME;
 // 为log4j定制的KafkaAppender
 // 为满足KafkaSink的特殊需求，添加几个特殊控制
 //  1. putExtraElement(String, Object)  是插入数据的时候，可以添加额外的键名与键值（添加到存档JSON中）
-public class KafkaAppender extends AppenderSkeleton implements ICloseAppender {
+//  2. setOverflowPolicy(String)    缓存已满时的处理策略（见OverflowPolicy），drop_lowest_level按照日志级别丢弃
+//  3. enableAdaptive(long)         根据kafka的响应耗时动态调整批量数量与定时周期（见AdaptiveController）
+//  4. setByteBudget(long, long)    按照字节数限制缓存，并按照累计的字节数触发发送
+//  5. enableSpill(String, long)    kafka不可用或者发送过慢时，将超出的日志暂存到磁盘（见SpillTier）
+//  6. enableJournal(String, long, long)    日志先写入预写日志，异常退出之后重新打开时补发未确认的日志（见Journal）
+//  7. setFlushLanes(int)           按照日志所在的类分成多个通道并行发送，同一个类的日志保持顺序（见FlushLanes）
+//  8. setLocationPolicy(String)   获取日志位置信息的策略，level:WARN表示只为WARN以上的日志获取（见LocationPolicy）
+//  9. setDeferredFormat(boolean)   只在调用线程上保存日志的快照，由发送线程编码（见EventSnapshot）
+// 10. setThrowableDedup(long, int) 窗口内重复的异常只保存指纹与次数，不再保存完整的trace（见ThrowableDeduper）
+// 11. setRateLimit(String)         按照logger前缀与级别限流、采样，被抑制的数量定时作为WARN日志发送（见EventLimiter）
+// 12. setCoalesce(long)            合并窗口内重复的日志，发送一条带有repeat_count、first_ts、last_ts的日志（见Coalescer）
+// 13. setLoggerFilter(String)      按照logger名称的前缀过滤或者设置最低级别，kafka驱动程序的日志总是被过滤（见LoggerNameFilter）
+// 14. setKeyStrategy(String)       日志的key，决定日志进入的分区，如logger、thread、mdc:NAME（见KeyStrategy）
+// 15. enableEnvelope(long)         每批日志压缩成少量的kafka消息发送，消费者使用EnvelopeDecoder解析
+// append不加锁（见ConcurrentAppenderSkeleton），多个线程可以同时格式化日志并写入TimedBuffer
+// 日志由EventEncoder直接编码成字节发送，不再经过BSONObject.toString()，输出的格式保持不变
+public class KafkaAppender extends ConcurrentAppenderSkeleton implements ICloseAppender {
     private static final Logger LOGGER= LoggerFactory.getLogger(KafkaAppender.class);
 
     //  *** 重要 ***
     // 过虑kafka驱动程序包的前缀
-    private static final String KAFKA_PREFIX= "org.apache.kafka.";
+    private static final String KAFKA_PREFIX= "org.apache.kafka";
 
 
-    private KafkaSender kafkaSender;// KafkaSender已提供TimedBuffer缓冲策略
+    private volatile KafkaSender kafkaSender;// KafkaSender已提供TimedBuffer缓冲策略
+    // uri可以附带KafkaProducer与TimedBuffer的参数（见KafkaSender.applyParams）
+    // 如：kafka://192.168.56.211:9092/demo?linger.ms=20&batch.size=256k&compression.type=lz4&acks=1&timed.size=500
     public KafkaAppender(String uri) {
+        super(KAFKA_PREFIX+":"+LoggerNameFilter.EXCLUDE);
         setName(this.getName());
         try {
             kafkaSender = new KafkaSender(uri, 50);
@@ -35,55 +55,114 @@ public class KafkaAppender extends AppenderSkeleton implements ICloseAppender {
         }// try/catch
     }
 
-    private Calendar defaultCalendar= Calendar.getInstance();// 默认日历，用于统一时区
+    // 默认日历，用于统一时区（每个线程使用自己的日历，只保留时区）
     public void resetCalendar(Calendar calendar) {
-        defaultCalendar= calendar != null? calendar: Calendar.getInstance();
+        setTimeZone(calendar != null? calendar.getTimeZone(): null);
     }
     public void resetCalendar(TimeZone timezone) {
-        defaultCalendar= timezone != null? Calendar.getInstance(timezone): Calendar.getInstance();
+        setTimeZone(timezone);
     }
     public void resetCalendar(String timezone) {
         resetCalendar((timezone == null || timezone.isEmpty())? TimeZone.getDefault(): TimeZone.getTimeZone(timezone));
     }
 
-    private Map<String, Object> extraElements= new HashMap<String, Object>();
-    public void putExtraElement(String key, Object val) {
-        extraElements.put(key, val);
+    // 写入时复制，append读取时不需要加锁
+    private volatile Map<String, Object> extraElements= new HashMap<String, Object>();
+    public synchronized void putExtraElement(String key, Object val) {
+        Map<String, Object> map= new HashMap<String, Object>(extraElements);
+        map.put(key, val);
+        extraElements= map;
     }
-    private String saveTime= SAVE_TIME;
+    public void setOverflowPolicy(OverflowPolicy<KafkaRecord> policy) {
+        if(kafkaSender != null)
+            kafkaSender.setOverflowPolicy(policy);
+    }
+    public void setOverflowPolicy(String spec) {
+        setOverflowPolicy(OverflowPolicy.parse(spec, KafkaRecord::getPriority));
+    }
+    public void enableAdaptive(long targetLatency) {
+        if(kafkaSender != null)
+            kafkaSender.enableAdaptive(targetLatency);
+    }
+    public void setByteBudget(long maxBytes, long thresholdBytes) {
+        if(kafkaSender != null)
+            kafkaSender.setByteBudget(maxBytes, thresholdBytes);
+    }
+    public boolean enableSpill(String directory, long maxDiskBytes) {
+        return kafkaSender != null && kafkaSender.enableSpill(directory, maxDiskBytes);
+    }
+    public boolean enableJournal(String directory, long syncInterval, long maxDiskBytes) {
+        return kafkaSender != null && kafkaSender.enableJournal(directory, syncInterval, maxDiskBytes);
+    }
+    public void enableEnvelope(long maxBytes) {
+        if(kafkaSender != null)
+            kafkaSender.enableEnvelope(maxBytes);
+    }
+    public void setFlushLanes(int lanes) {
+        if(kafkaSender != null)
+            kafkaSender.setFlushLanes(lanes, KafkaRecord::getGroup);
+    }
+    // 为null时保持原来的行为，所有日志使用KafkaSender.KEY
+    private volatile KeyStrategy keyStrategy= null;
+    public void setKeyStrategy(KeyStrategy strategy) {
+        keyStrategy= strategy;
+        if(kafkaSender != null)
+            kafkaSender.setDefaultKey(strategy == null? KafkaSender.KEY: null);
+    }
+    public void setKeyStrategy(String spec) {
+        setKeyStrategy(KeyStrategy.parse(spec));
+    }
+    public KeyStrategy getKeyStrategy() {
+        return keyStrategy;
+    }
+    private volatile String saveTime= SAVE_TIME;
     public void renameSaveTime(String name) {
         saveTime= (name == null || name.isEmpty())?
                 SAVE_TIME: name;
     }
-    private boolean writeSaveTime= true;
+    private volatile boolean writeSaveTime= true;
     public void disableSaveTime() {
         writeSaveTime= false;
     }
 
-    // 过虑掉不必要的event时返回true
-    private boolean filterEvent(LoggingEvent loggingEvent) {
-        String name= loggingEvent.getLoggerName();
-        return name.startsWith(KAFKA_PREFIX);
-    }
-
     @Override// AppenderSkeleton
     protected void append(LoggingEvent loggingEvent) {
-        if(kafkaSender == null)
+        KafkaSender sender= kafkaSender;
+        if(sender == null)
             return;
 
-        // 过虑掉不期望看到的日志，比如来自驱动程序的日志等
-        if(filterEvent(loggingEvent))
+        KeyStrategy strategy= keyStrategy;
+        String key= strategy == null? null: strategy.key(loggingEvent);
+        if(getDeferredFormat()) {
+            sender.send(new EventRecord(key, snapshot(loggingEvent), extraElements, writeSaveTime? saveTime: null));
             return;
-
-        BSONObject object= Helper.formatEvent(defaultCalendar, loggingEvent);
-        object.putAll(extraElements);
-        if(writeSaveTime)
-            object.put(saveTime, new Date());
-        kafkaSender.sendJson(object.toString());
+        }
+        // 日志级别作为溢出时的优先级，所在的类作为并行发送的分组
+        LocationInfo info= getLocationPolicy().capture(loggingEvent);
+        byte[] value= EventEncoder.encode(timeFormatter(), throwableDeduper(), info, loggingEvent, extraElements,
+                writeSaveTime? saveTime: null, System.currentTimeMillis());
+        sender.send(key, value, loggingEvent.getLevel().toInt(), info == null? null: info.getClassName());
+    }
+    // 合并的次数与时间作为额外的键值编码（见EventEncoder）
+    @Override// ConcurrentAppenderSkeleton
+    protected void appendCoalesced(EventSnapshot snapshot, long repeatCount, long firstTs, long lastTs) {
+        KafkaSender sender= kafkaSender;
+        if(sender == null)
+            return;
+        Map<String, Object> elements= new HashMap<String, Object>(extraElements);
+        elements.put(Coalescer.REPEAT_COUNT, repeatCount);
+        elements.put(Coalescer.FIRST_TS, new Date(firstTs));
+        elements.put(Coalescer.LAST_TS, new Date(lastTs));
+        KeyStrategy strategy= keyStrategy;
+        sender.send(new EventRecord(strategy == null? null: strategy.key(snapshot), snapshot, elements,
+                writeSaveTime? saveTime: null));
     }
     @Override// AppenderSkeleton
-    public void close() {
+    public synchronized void close() {
         LOGGER.debug("Close mongo appender .");
+        markClosed();
+        closeRateLimit();
+        closeCoalesce();
         if(kafkaSender != null) {
             kafkaSender.close();
             kafkaSender= null;
@@ -0,0 +1,127 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.net.InetAddress;
+import java.util.Map;
+
+// KafkaAppender发送日志时使用的key（见KafkaAppender.setKeyStrategy）
+// kafka默认的分区策略按照key的哈希值选择分区，key相同的日志总是进入同一个分区，并且保持顺序
+// 原来所有日志的key都是常量"json"，一个topic无论有多少分区，日志都只进入其中的一个
+// key在调用线程上获取（线程名称与MDC只在调用线程上有效），返回null时由kafka轮流选择分区
+// 通过字符串配置时：
+//  none            不使用key，日志轮流进入所有分区，不保证顺序
+//  constant:VALUE  固定的key（默认相当于constant:json，所有日志进入同一个分区）
+//  hostname        本机名称，同一台主机的日志保持顺序
+//  logger          logger名称，同一个logger的日志保持顺序
+//  thread          线程名称，同一个线程的日志保持顺序
+//  mdc:NAME        MDC中NAME的值，没有这个值时不使用key
+//  class:FQCN      自定义的KeyStrategy实现类（需要无参数的构造函数）
+// 注意：SendPipeline重试的数据会排在之后发送的数据后面，严格要求顺序时需要关闭重试（pipeline.retries=0）
+public interface KeyStrategy {
+    String key(LoggingEvent event);
+    // 合并之后的日志（见Coalescer）只有快照，没有实现时不使用key
+    default String key(EventSnapshot snapshot) {
+        return null;
+    }
+
+    KeyStrategy NONE= event-> null;
+
+    KeyStrategy LOGGER= new KeyStrategy() {
+        @Override// KeyStrategy
+        public String key(LoggingEvent event) {
+            return event.getLoggerName();
+        }
+        @Override// KeyStrategy
+        public String key(EventSnapshot snapshot) {
+            return snapshot.getLoggerName();
+        }
+    };
+
+    KeyStrategy THREAD= new KeyStrategy() {
+        @Override// KeyStrategy
+        public String key(LoggingEvent event) {
+            return event.getThreadName();
+        }
+        @Override// KeyStrategy
+        public String key(EventSnapshot snapshot) {
+            return snapshot.getThreadName();
+        }
+    };
+
+    static KeyStrategy constant(String value) {
+        return new KeyStrategy() {
+            @Override// KeyStrategy
+            public String key(LoggingEvent event) {
+                return value;
+            }
+            @Override// KeyStrategy
+            public String key(EventSnapshot snapshot) {
+                return value;
+            }
+        };
+    }
+
+    static KeyStrategy hostname() {
+        String name;
+        try {
+            name= InetAddress.getLocalHost().getHostName();
+        } catch(Exception x) {
+            LogLog.warn("Can NOT resolve the local hostname, no key will be used.", x);
+            name= null;
+        }
+        return constant(name);
+    }
+
+    static KeyStrategy mdc(String name) {
+        return new KeyStrategy() {
+            @Override// KeyStrategy
+            public String key(LoggingEvent event) {
+                Object value= event.getMDC(name);
+                return value == null? null: value.toString();
+            }
+            @Override// KeyStrategy
+            public String key(EventSnapshot snapshot) {
+                Map<?, ?> mdc= snapshot.getMDC();
+                Object value= mdc == null? null: mdc.get(name);
+                return value == null? null: value.toString();
+            }
+        };
+    }
+
+    // 无法识别时返回null
+    static KeyStrategy parse(String spec) {
+        if(spec == null || spec.trim().isEmpty())
+            return null;
+        spec= spec.trim();
+        int pos= spec.indexOf(':');
+        String name= (pos < 0? spec: spec.substring(0, pos)).trim().toLowerCase();
+        String param= pos < 0? "": spec.substring(pos+1).trim();
+        switch(name) {
+            case "none":
+                return NONE;
+            case "constant":
+                return constant(param.isEmpty()? null: param);
+            case "hostname":
+                return hostname();
+            case "logger":
+                return LOGGER;
+            case "thread":
+                return THREAD;
+            case "mdc":
+                if(!param.isEmpty())
+                    return mdc(param);
+                break;
+            case "class":
+                try {
+                    return (KeyStrategy)Class.forName(param).getDeclaredConstructor().newInstance();
+                } catch(Exception x) {
+                    LogLog.error("Can NOT create the key strategy ["+param+"].", x);
+                    return null;
+                }
+        }// switch
+        LogLog.warn("Ignored key strategy ["+spec+"].");
+        return null;
+    }
+}
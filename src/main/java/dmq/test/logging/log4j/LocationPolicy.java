@@ -0,0 +1,90 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+// 日志位置信息（file/line/class/method）的获取策略
+// log4j 1.x的getLocationInformation每次都要创建Throwable并解析调用栈，代价很高
+// 通过字符串配置时，可以使用以下名称（不区分大小写）：
+//  always          总是获取（默认，与原来的行为相同）
+//  never           从不获取，位置字段为null
+//  level[:LEVEL]   只在日志级别不低于LEVEL时获取（默认WARN）
+// 运行在Java 9以上时，使用StackWalker只遍历需要的栈帧，否则使用log4j原来的方式
+public class LocationPolicy {
+    public static final String ALWAYS_NAME= "always";
+    public static final String NEVER_NAME= "never";
+    public static final String LEVEL_NAME= "level";
+
+    public static final LocationPolicy ALWAYS= new LocationPolicy(Level.ALL);
+    public static final LocationPolicy NEVER= new LocationPolicy(Level.OFF);
+
+    private static final boolean STACK_WALKER= StackWalkerLocator.AVAILABLE;
+
+    private final Level threshold;
+    private LocationPolicy(Level threshold) {
+        this.threshold= threshold;
+    }
+    // 只在级别不低于threshold时获取位置信息
+    public static LocationPolicy level(Level threshold) {
+        if(threshold == null)
+            return ALWAYS;
+        if(threshold.equals(Level.ALL))
+            return ALWAYS;
+        if(threshold.equals(Level.OFF))
+            return NEVER;
+        return new LocationPolicy(threshold);
+    }
+
+    // 无法识别时返回ALWAYS
+    public static LocationPolicy parse(String spec) {
+        if(spec == null || spec.isEmpty())
+            return ALWAYS;
+
+        String name= spec.trim().toLowerCase();
+        String param= null;
+        int pos= name.indexOf(':');
+        if(pos >= 0) {
+            param= name.substring(pos+1);
+            name= name.substring(0, pos);
+        }
+        switch(name) {
+            case ALWAYS_NAME:
+                return ALWAYS;
+            case NEVER_NAME:
+                return NEVER;
+            case LEVEL_NAME:
+                return level(Level.toLevel(param, Level.WARN));
+        }// switch
+        return ALWAYS;
+    }
+
+    public boolean shouldCapture(LoggingEvent event) {
+        if(threshold.equals(Level.ALL))
+            return true;
+        if(threshold.equals(Level.OFF))
+            return false;
+        return event.getLevel() != null && event.getLevel().isGreaterOrEqual(threshold);
+    }
+
+    // 不需要位置信息时返回null
+    // 其他appender已经获取过位置信息时，直接使用
+    public LocationInfo capture(LoggingEvent event) {
+        if(!shouldCapture(event))
+            return null;
+        if(STACK_WALKER && !event.locationInformationExists()) {
+            LocationInfo info= StackWalkerLocator.locate(event.getFQNOfLoggerClass());
+            if(info != null)
+                return info;
+        }
+        return event.getLocationInformation();
+    }
+
+    public String dump() {
+        if(threshold.equals(Level.ALL))
+            return ALWAYS_NAME;
+        if(threshold.equals(Level.OFF))
+            return NEVER_NAME;
+        return LEVEL_NAME+":"+threshold;
+    }
+}
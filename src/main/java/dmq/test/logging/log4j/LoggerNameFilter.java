@@ -0,0 +1,141 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 按照logger名称的前缀过滤日志
+// 规则编译成按照'.'分段的前缀树，一个logger名称按照最长的前缀匹配，得到这个logger允许的最低级别
+// 每个logger名称的结果保存在缓存中，之后的判断只需要查一次缓存
+// 多条规则以';'或','分隔，每条规则为：
+//  prefix:include  允许所有级别
+//  prefix:exclude  全部过滤
+//  prefix:LEVEL    只允许不低于LEVEL的日志
+//  prefix为*时表示所有logger（没有匹配任何规则的logger默认允许），同一个prefix以后面的规则为准
+// 如：*:exclude;com.example:include;com.example.noisy:WARN
+// 也可以作为log4j的Filter在log4j.properties中配置，不允许的日志返回DENY，其他返回NEUTRAL：
+//  log4j.appender.X.filter.1=dmq.test.logging.log4j.LoggerNameFilter
+//  log4j.appender.X.filter.1.Rules=org.apache.kafka:exclude;com.example.noisy:WARN
+public class LoggerNameFilter extends Filter {
+    public static final String ANY= "*";
+    public static final String INCLUDE= "include";
+    public static final String EXCLUDE= "exclude";
+    private static final int MAX_CACHED= 64*1024;// 超出之后清空缓存，避免动态生成的logger名称占满内存
+
+    // 前缀树的一个节点，编译之后不再修改
+    private static final class Node {
+        final Map<String, Node> children= new HashMap<>();
+        Level level= null;// 为null时使用上一级的结果
+    }
+
+    private String rules= null;
+    private volatile Node root= new Node();
+    private final ConcurrentHashMap<String, Level> cache= new ConcurrentHashMap<>();
+    // 用于log4j.properties，需要设置Rules并调用activateOptions
+    public LoggerNameFilter() {
+    }
+    public LoggerNameFilter(String rules) {
+        setRules(rules);
+        activateOptions();
+    }
+
+    public String getRules() {
+        return rules;
+    }
+    public void setRules(String rules) {
+        this.rules= rules;
+    }
+    @Override// OptionHandler
+    public void activateOptions() {
+        root= compile(rules);
+        cache.clear();
+    }
+
+    private static Node compile(String rules) {
+        Node root= new Node();
+        if(rules == null)
+            return root;
+        for(String item: rules.split("[;,]")) {
+            item= item.trim();
+            if(item.isEmpty())
+                continue;
+            int pos= item.lastIndexOf(':');
+            if(pos < 0) {
+                LogLog.warn("Ignored logger filter rule ["+item+"].");
+                continue;
+            }
+            String prefix= item.substring(0, pos).trim();
+            String action= item.substring(pos+1).trim();
+            Level level;
+            if(action.equalsIgnoreCase(INCLUDE))
+                level= Level.ALL;
+            else if(action.equalsIgnoreCase(EXCLUDE))
+                level= Level.OFF;
+            else
+                level= Level.toLevel(action, null);
+            if(level == null) {
+                LogLog.warn("Ignored logger filter rule ["+item+"].");
+                continue;
+            }
+
+            Node node= root;
+            if(!prefix.isEmpty() && !prefix.equals(ANY)) {
+                for(String segment: prefix.split("\\."))
+                    node= node.children.computeIfAbsent(segment, x-> new Node());
+            }
+            node.level= level;
+        }// for
+        return root;
+    }
+
+    // 这个logger允许的最低级别
+    public Level threshold(String name) {
+        if(name == null)
+            return Level.ALL;
+        Level level= cache.get(name);
+        if(level == null) {
+            level= match(root, name);
+            if(cache.size() >= MAX_CACHED)
+                cache.clear();
+            cache.put(name, level);
+        }
+        return level;
+    }
+    private static Level match(Node root, String name) {
+        Level level= root.level != null? root.level: Level.ALL;
+        Node node= root;
+        int begin= 0;
+        while(begin <= name.length()) {
+            int end= name.indexOf('.', begin);
+            if(end < 0)
+                end= name.length();
+            node= node.children.get(name.substring(begin, end));
+            if(node == null)
+                break;
+            if(node.level != null)
+                level= node.level;
+            begin= end+1;
+        }// while
+        return level;
+    }
+
+    // 返回false表示过滤掉这条日志
+    public boolean accept(LoggingEvent event) {
+        Level threshold= threshold(event.getLoggerName());
+        if(threshold == Level.ALL)
+            return true;
+        if(threshold == Level.OFF)
+            return false;
+        return event.getLevel() != null && event.getLevel().isGreaterOrEqual(threshold);
+    }
+
+    @Override// Filter
+    public int decide(LoggingEvent event) {
+        return accept(event)? NEUTRAL: DENY;
+    }
+}
@@ -1,28 +1,44 @@
 package dmq.test.logging.log4j;
 
+import dmq.test.logging.common.AdaptiveController;
+import dmq.test.logging.common.OverflowPolicy;
+import dmq.test.logging.common.SegmentLog;
 import dmq.test.logging.common.TimedBuffer;
 import dmq.test.logging.mongo.MongoSink;
-import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.LoggingEvent;
 import org.bson.BSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Calendar;
+import java.nio.file.Paths;
+import java.util.Date;
 import java.util.List;
 
 // 为log4j定制的MongoAppender
 // 为满足MongoSink的特殊需求，添加几个特殊控制
 //  1. putExtraElement(String, Object)  是插入数据的时候，可以添加额外的键名与键值（添加到存档JSON中）
 //  2. ignoreException(false)   在构造mongodb连接时，确认连接可用性并忽略底层异常（配置为放弃数据）。默认false，用于构造函数
-public class MongoAppender extends AppenderSkeleton
+//  3. setOverflowPolicy(String)    缓存已满时的处理策略（见OverflowPolicy），drop_lowest_level按照日志级别丢弃
+//  4. enableAdaptive(long)         根据mongodb的写入耗时动态调整批量数量与定时周期（见AdaptiveController）
+//  5. setByteBudget(long, long)    按照字节数限制缓存与单批写入的数据量（单批不超过insertMany的48M上限）
+//  6. enableSpill(String, long)    mongodb不可用或者写入过慢时，将超出的日志暂存到磁盘（见SpillTier）
+//  7. enableJournal(String, long, long)    日志先写入预写日志，异常退出之后重新打开时补写未确认的日志（见Journal）
+//  8. setFlushLanes(int)           按照日志所在的类分成多个通道并行写入mongodb，同一个类的日志保持顺序（见FlushLanes）
+//  9. setLocationPolicy(String)   获取日志位置信息的策略，level:WARN表示只为WARN以上的日志获取（见LocationPolicy）
+// 10. setDeferredFormat(boolean)   只在调用线程上保存日志的快照，由写入mongodb的线程格式化（见EventSnapshot）
+// 11. setThrowableDedup(long, int) 窗口内重复的异常只保存指纹与次数，不再保存完整的trace（见ThrowableDeduper）
+// 12. setRateLimit(String)         按照logger前缀与级别限流、采样，被抑制的数量定时写入mongodb（见EventLimiter）
+// 13. setCoalesce(long)            合并窗口内重复的日志，写入一条带有repeat_count、first_ts、last_ts的日志（见Coalescer）
+// 14. setLoggerFilter(String)      按照logger名称的前缀过滤或者设置最低级别，mongodb驱动程序的日志总是被过滤（见LoggerNameFilter）
+// append不加锁（见ConcurrentAppenderSkeleton），多个线程可以同时格式化日志并写入TimedBuffer
+public class MongoAppender extends ConcurrentAppenderSkeleton
         implements TimedBuffer.BufferHandler<BSONObject>, TimedBuffer.BufferDroppedNotify<BSONObject>, ICloseAppender{
     private static final Logger LOGGER= LoggerFactory.getLogger(MongoAppender.class);
 
 
     //  *** 重要 ***
-    // 过虑mongodb驱动程序包的前缀
-    private static final String MONGO_PREFIX= "org.mongodb.";
+    // 过虑mongodb驱动程序包的前缀（来自mongodb驱动程序的日志，通常是TRACE, DEBUG, INFO等）
+    private static final String MONGO_PREFIX= "org.mongodb";
 
 
     // 缓存多一些的时候，IO性能会好一些
@@ -32,18 +48,22 @@ public class MongoAppender extends AppenderSkeleton
     private static final int TIME_IN_BULK= TimedBuffer.THRESHOLD_TIME;  // 定时写入的周期，默认1000 (ms)
     private static final int SIZE_POOL= TimedBuffer.MAX_THREADS;        // 定时服务线程池大小
     private static final boolean PER_DELAY= TimedBuffer.FIX_DELAY;      // 使用两次调用之间的间隔时间计算延时
+    private static final int MIN_SIZE_IN_BULK= SIZE_IN_BULK/10;         // 动态调整时，批量写入的最小数量
+    private static final int MIN_TIME_IN_BULK= 10;                      // 动态调整时，定时写入的最短周期 (ms)
+    private static final long MAX_BYTES_IN_BULK= 48*1024*1024L;         // insertMany单批写入的字节数上限
+    private static final int SPILL_HIGH_WATER= SIZE_BUFFER*8/10;        // 缓存数量超过80%时开始写入磁盘
 
-    private MongoSink mongoSink;
-    private TimedBuffer<BSONObject> timedBuffer;
+    private volatile MongoSink mongoSink;
+    private volatile TimedBuffer<BSONObject> timedBuffer;
     private final boolean usingTimedBuffer;// 是否启用timedBuffer，默认true
-    private final Calendar defaultCalendar;// 默认日历，根据MongoSink的timezone设置默认日历
     // 启用了timedBuffer的appender，写入mongoSink的数据是异步完成的，因此底层mongodb的响应效率，不会影响logging的执行效率
     // 但是mongoSink的写入平均效率低于logging的平均执行效率时，notifyBufferDroppped应该会有所通报
     public MongoAppender(String uri, boolean usingTimedBuffer, boolean ignoreException) {
+        super(MONGO_PREFIX+":"+LoggerNameFilter.EXCLUDE);
         this.usingTimedBuffer= usingTimedBuffer;
         setName(this.getName());
         mongoSink= new MongoSink(uri, ignoreException);
-        defaultCalendar= Calendar.getInstance(mongoSink.getCollectionTimezone());
+        setTimeZone(mongoSink.getCollectionTimezone());// 根据MongoSink的timezone设置默认日历
         if(usingTimedBuffer)
             timedBuffer= new TimedBuffer<BSONObject>(SIZE_BUFFER, SIZE_IN_BULK, TIME_IN_BULK, SIZE_POOL, PER_DELAY,
                     this, this);
@@ -61,31 +81,79 @@ public class MongoAppender extends AppenderSkeleton
     public void renameSaveTime(String name) {
         mongoSink.renameSaveTime(name);
     }
+    public void setOverflowPolicy(OverflowPolicy<BSONObject> policy) {
+        if(timedBuffer != null)
+            timedBuffer.setOverflowPolicy(policy);
+    }
+    public void setOverflowPolicy(String spec) {
+        setOverflowPolicy(OverflowPolicy.parse(spec, Helper::levelPriority));
+    }
+    // targetLatency为目标延时（毫秒），批量数量在 [100, 5000] 之间调整，定时周期在 [10ms, 1000ms] 之间调整
+    public void enableAdaptive(long targetLatency) {
+        if(timedBuffer != null)
+            timedBuffer.setAdaptiveController(new AdaptiveController(MIN_SIZE_IN_BULK, SIZE_BUFFER/2,
+                    MIN_TIME_IN_BULK, TIME_IN_BULK, targetLatency));
+    }
+
+
+    // maxBytes为缓存的字节数上限，thresholdBytes为批量写入的字节数（不超过MAX_BYTES_IN_BULK）
+    public void setByteBudget(long maxBytes, long thresholdBytes) {
+        if(timedBuffer == null)
+            return;
+        if(thresholdBytes <= 0 || thresholdBytes > MAX_BYTES_IN_BULK)
+            thresholdBytes= MAX_BYTES_IN_BULK;
+        timedBuffer.setByteBudget(Helper::estimateSize, maxBytes, thresholdBytes);
+    }
+
+
+    // directory为段文件目录，maxDiskBytes为磁盘空间上限
+    public boolean enableSpill(String directory, long maxDiskBytes) {
+        if(timedBuffer == null)
+            return false;
+        return timedBuffer.enableSpill(Paths.get(directory), Helper.BSON_SERIALIZER, SPILL_HIGH_WATER,
+                maxDiskBytes, SegmentLog.SEGMENT_BYTES);
+    }
+
+
+    // directory为日志目录，syncInterval为同步到磁盘的周期（毫秒），maxDiskBytes为磁盘空间上限
+    // 打开时会先将上次遗留的日志写入mongodb
+    public boolean enableJournal(String directory, long syncInterval, long maxDiskBytes) {
+        if(timedBuffer == null)
+            return false;
+        return timedBuffer.enableJournal(Paths.get(directory), Helper.BSON_SERIALIZER, syncInterval, maxDiskBytes);
+    }
 
 
-    // 过虑来自mongodb驱动程序的日志，通常是TRACE, DEBUG, INFO等
-    private boolean filterEvent(LoggingEvent loggingEvent) {
-        String name= loggingEvent.getLoggerName();
-        return name.startsWith(MONGO_PREFIX);
+    // lanes为同时写入mongodb的批次数量，不大于1时依次写入
+    public void setFlushLanes(int lanes) {
+        if(timedBuffer != null)
+            timedBuffer.setFlushLanes(lanes, Helper::eventClass);
     }
 
 
     @Override// AppenderSkeleton
     protected void append(LoggingEvent loggingEvent) {
-        // 过虑掉不期望看到的日志，比如来自mongodb驱动程序的日志等
-        if(filterEvent(loggingEvent))
-            return;
-
-        BSONObject object= Helper.formatEvent(defaultCalendar, loggingEvent);
         // TimedBuffer可以改善连续向mongodb写入数据的性能
-        if(usingTimedBuffer)
-            timedBuffer.put(object);
-        else
-            mongoSink.write(object);
+        TimedBuffer<BSONObject> buffer= timedBuffer;
+        MongoSink sink= mongoSink;
+        if(usingTimedBuffer && getDeferredFormat()) {
+            if(buffer != null)
+                buffer.put(snapshot(loggingEvent));
+            return;
+        }
+        BSONObject object= Helper.formatEvent(timeFormatter(), getLocationPolicy(), throwableDeduper(), loggingEvent);
+        if(usingTimedBuffer) {
+            if(buffer != null)
+                buffer.put(object);
+        } else if(sink != null)
+            sink.write(object);
     }
     @Override// AppenderSkeleton
-    public void close() {
+    public synchronized void close() {
         LOGGER.debug("Close mongo appender .");
+        markClosed();
+        closeRateLimit();
+        closeCoalesce();
         if(timedBuffer != null) {
             timedBuffer.close(() -> mongoSink.close());
             timedBuffer= null;
@@ -119,6 +187,29 @@ public class MongoAppender extends AppenderSkeleton
         mongoSink.message(message);
     }
 
+    @Override// ConcurrentAppenderSkeleton
+    protected void appendCoalesced(EventSnapshot snapshot, long repeatCount, long firstTs, long lastTs) {
+        snapshot.put(Coalescer.REPEAT_COUNT, repeatCount);
+        snapshot.put(Coalescer.FIRST_TS, new Date(firstTs));
+        snapshot.put(Coalescer.LAST_TS, new Date(lastTs));
+        TimedBuffer<BSONObject> buffer= timedBuffer;
+        MongoSink sink= mongoSink;
+        if(usingTimedBuffer) {
+            if(buffer != null)
+                buffer.put(snapshot);
+        } else if(sink != null)
+            sink.write(snapshot);
+    }
+
+    // 与notifyBufferDroppped相同，作为一种特殊日志信息写入mongoSink
+    @Override// ConcurrentAppenderSkeleton
+    protected void notifySuppressed(String message) {
+        LOGGER.trace(message);
+        MongoSink sink= mongoSink;
+        if(sink != null && !isClosed())
+            sink.message(message);
+    }
+
     @Override// ICloseAppender
     public void close(boolean flush) {
         close();
@@ -0,0 +1,98 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.spi.LocationInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// 使用StackWalker（Java 9以上）获取调用日志的位置
+// 项目仍然按照Java 8编译，所以StackWalker只通过反射（MethodHandle）访问，Java 8下AVAILABLE为false
+// 与log4j的LocationInfo相同，调用位置是fqnOfLoggerClass的栈帧之后的第一个栈帧
+final class StackWalkerLocator {
+    private static final Logger LOGGER= LoggerFactory.getLogger(StackWalkerLocator.class);
+
+    private static final Object WALKER;
+    private static final MethodHandle WALK;         // (Object walker, Function)Object
+    private static final MethodHandle CLASS_NAME;   // (Object frame)String
+    private static final MethodHandle METHOD_NAME;  // (Object frame)String
+    private static final MethodHandle FILE_NAME;    // (Object frame)String
+    private static final MethodHandle LINE_NUMBER;  // (Object frame)int
+    static final boolean AVAILABLE;
+    static {
+        Object walker= null;
+        MethodHandle walk= null, className= null, methodName= null, fileName= null, lineNumber= null;
+        try {
+            MethodHandles.Lookup lookup= MethodHandles.lookup();// walk是caller-sensitive的方法，不能使用publicLookup
+            Class<?> walkerClass= Class.forName("java.lang.StackWalker");
+            Class<?> frameClass= Class.forName("java.lang.StackWalker$StackFrame");
+            walker= lookup.findStatic(walkerClass, "getInstance", MethodType.methodType(walkerClass)).invoke();
+            walk= lookup.findVirtual(walkerClass, "walk", MethodType.methodType(Object.class, Function.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Function.class));
+            className= getter(lookup, frameClass, "getClassName", String.class);
+            methodName= getter(lookup, frameClass, "getMethodName", String.class);
+            fileName= getter(lookup, frameClass, "getFileName", String.class);
+            lineNumber= getter(lookup, frameClass, "getLineNumber", int.class);
+        } catch(ClassNotFoundException x) {
+            walker= null;
+        } catch(Throwable x) {
+            LOGGER.debug("StackWalker is not available.", x);
+            walker= null;
+        }
+        WALKER= walker;
+        WALK= walk;
+        CLASS_NAME= className;
+        METHOD_NAME= methodName;
+        FILE_NAME= fileName;
+        LINE_NUMBER= lineNumber;
+        AVAILABLE= walker != null;
+    }
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Class<?> frameClass, String name, Class<?> type)
+            throws ReflectiveOperationException {
+        return lookup.findVirtual(frameClass, name, MethodType.methodType(type))
+                .asType(MethodType.methodType(type, Object.class));
+    }
+
+    private StackWalkerLocator() {
+    }
+
+    // 找不到或者不可用时返回null
+    static LocationInfo locate(final String fqnOfLoggerClass) {
+        if(!AVAILABLE || fqnOfLoggerClass == null)
+            return null;
+        Function<Stream<?>, LocationInfo> function= frames-> {
+            try {
+                boolean found= false;
+                Iterator<?> iterator= frames.iterator();
+                while(iterator.hasNext()) {
+                    Object frame= iterator.next();
+                    String className= (String)CLASS_NAME.invokeExact(frame);
+                    if(fqnOfLoggerClass.equals(className))
+                        found= true;
+                    else if(found) {
+                        // 与log4j相同，未知的文件名与行号为"?"
+                        String file= (String)FILE_NAME.invokeExact(frame);
+                        int line= (int)LINE_NUMBER.invokeExact(frame);
+                        return new LocationInfo(file == null? LocationInfo.NA: file, className,
+                                (String)METHOD_NAME.invokeExact(frame), line < 0? LocationInfo.NA: String.valueOf(line));
+                    }
+                }// while
+            } catch(Throwable x) {
+                LOGGER.debug("StackWalker failed to locate the caller.", x);
+            }
+            return null;
+        };
+        try {
+            Function<?, ?> walk= function;
+            return (LocationInfo)(Object)WALK.invokeExact(WALKER, walk);
+        } catch(Throwable x) {
+            LOGGER.debug("StackWalker failed to walk the stack.", x);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,115 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.spi.ThrowableInformation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 重复异常的去重（见ConcurrentAppenderSkeleton.setThrowableDedup）
+// 同一个异常在故障期间可能每秒出现成千上万次，每次都保存完整的trace（通常有几KB）会挤满mongodb与kafka
+// 按照异常链的结构计算指纹：每一层的异常类名与调用栈（类名、方法名、行号），不包括异常的消息
+// 一个时间窗口内第一次出现的异常保存完整的trace，之后只保存指纹与窗口内的累计次数
+// 指纹缓存按照LRU淘汰，超出maxEntries时淘汰最久没有出现的指纹（被淘汰的指纹再次出现时重新保存完整的trace）
+// 窗口按照日志的时间戳计算，延迟格式化时同样适用
+public class ThrowableDeduper {
+    public static final long WINDOW= 60*1000L;  // 默认窗口长度，1分钟
+    public static final int MAX_ENTRIES= 1024;  // 默认缓存的指纹数量
+    private static final int MAX_DEPTH= 16;     // 计算指纹时，异常链的最大层次
+
+    private static final long FNV_OFFSET= 0xcbf29ce484222325L;
+    private static final long FNV_PRIME= 0x100000001b3L;
+
+    // 一个指纹在当前窗口内的情况
+    private static final class Entry {
+        final long windowStart;
+        long count= 1;
+        Entry(long windowStart) {
+            this.windowStart= windowStart;
+        }
+    }
+
+    private final long window;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> cache;// 由this保护
+    private long countDeduped= 0;
+    public ThrowableDeduper(long window, int maxEntries) {
+        this.window= window > 0? window: WINDOW;
+        this.maxEntries= maxEntries > 0? maxEntries: MAX_ENTRIES;
+        final int max= this.maxEntries;
+        cache= new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override// LinkedHashMap
+            protected boolean removeEldestEntry(Map.Entry<String, ThrowableDeduper.Entry> eldest) {
+                return size() > max;
+            }
+        };
+    }
+    public ThrowableDeduper() {
+        this(WINDOW, MAX_ENTRIES);
+    }
+
+    public long getWindow() {
+        return window;
+    }
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    // 记录一次出现，返回当前窗口内的次数，1表示窗口内第一次出现（需要保存完整的trace）
+    public synchronized long occur(String fingerprint, long time) {
+        Entry entry= cache.get(fingerprint);
+        // 多个线程的时间戳可能稍有先后，早于窗口开始的也算在当前窗口内
+        if(entry == null || time-entry.windowStart >= window) {
+            cache.put(fingerprint, new Entry(time));
+            return 1;
+        }
+        countDeduped++;
+        return ++entry.count;
+    }
+
+    // 异常链的结构指纹（16位十六进制）
+    public static String fingerprint(ThrowableInformation info) {
+        long hash= FNV_OFFSET;
+        Throwable throwable= info.getThrowable();
+        if(throwable == null) {
+            // 反序列化得到的ThrowableInformation可能只有字符串形式
+            String[] array= info.getThrowableStrRep();
+            if(array != null)
+                for(String line: array)
+                    hash= hash(hash, line);
+            return toHex(hash);
+        }
+        for(int depth=0; throwable != null && depth < MAX_DEPTH; depth++) {
+            hash= hash(hash, throwable.getClass().getName());
+            for(StackTraceElement element: throwable.getStackTrace()) {
+                hash= hash(hash, element.getClassName());
+                hash= hash(hash, element.getMethodName());
+                hash= hash(hash, element.getLineNumber());
+            }// for
+            throwable= throwable.getCause() == throwable? null: throwable.getCause();
+        }// for
+        return toHex(hash);
+    }
+    private static long hash(long hash, String string) {
+        if(string != null) {
+            for(int i=0; i<string.length(); i++)
+                hash= hash(hash, string.charAt(i));
+        }
+        return hash(hash, -1);// 分隔符
+    }
+    private static long hash(long hash, int value) {
+        hash^= value;
+        return hash*FNV_PRIME;
+    }
+    private static String toHex(long hash) {
+        String hex= Long.toHexString(hash);
+        return hex.length() < 16? "0000000000000000".substring(hex.length())+hex: hex;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+    public synchronized String dump() {
+        return String.format("ThrowableDeduper(window= %d, maxEntries= %d, size= %d, deduped= %d)",
+                window, maxEntries, cache.size(), countDeduped);
+    }
+}
@@ -0,0 +1,71 @@
+package dmq.test.logging.log4j;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+// 带缓存的timetext格式化，输出与Helper.formatTime完全相同
+// 同一秒内的日志直接返回上次的结果；同一分钟内只替换秒数的两位数字；
+// 其他情况（换分钟、时区偏移变化等）才使用Calendar与String.format完整的格式化一次
+// 缓存的结果是不可变对象，通过volatile发布，多个线程可以同时使用同一个实例
+// 完整格式化使用的Calendar是每个线程一个
+public class TimeTextFormatter {
+    private static final int SECONDS_FROM_END= 8;// "SS +HHMM"，秒数在倒数第8、7位
+
+    // 一次格式化的结果
+    private static final class Entry {
+        final long second;      // 从1970年开始的秒数
+        final int offset;       // 这一秒的时区偏移（包括夏令时）
+        final String text;
+        final boolean patchable;// 秒数是两个ASCII数字，可以直接替换
+        Entry(long second, int offset, String text) {
+            this.second= second;
+            this.offset= offset;
+            this.text= text;
+            int length= text.length();
+            patchable= length > SECONDS_FROM_END && text.charAt(length-SECONDS_FROM_END-1) == ':'
+                    && isDigit(text.charAt(length-SECONDS_FROM_END))
+                    && isDigit(text.charAt(length-SECONDS_FROM_END+1));
+        }
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+    }
+
+    private final TimeZone timeZone;
+    private final ThreadLocal<Calendar> calendars;
+    private volatile Entry last= null;
+    public TimeTextFormatter(TimeZone timeZone) {
+        this.timeZone= timeZone != null? timeZone: TimeZone.getDefault();
+        final TimeZone zone= this.timeZone;
+        calendars= ThreadLocal.withInitial(()-> Calendar.getInstance(zone));
+    }
+
+    public TimeZone getTimeZone() {
+        return timeZone;
+    }
+
+    public String format(long time) {
+        long second= Math.floorDiv(time, 1000L);
+        Entry entry= last;
+        if(entry != null && entry.second == second)
+            return entry.text;
+
+        int offset= timeZone.getOffset(time);
+        String text;
+        // 时区偏移是整分钟时，本地时间与UTC时间同时换分钟
+        if(entry != null && entry.patchable && offset == entry.offset && offset%60000 == 0
+                && Math.floorDiv(second, 60L) == Math.floorDiv(entry.second, 60L))
+            text= patch(entry.text, (int)Math.floorMod(second, 60L));
+        else
+            text= Helper.formatTime(calendars.get(), time);
+        last= new Entry(second, offset, text);
+        return text;
+    }
+    private static String patch(String text, int second) {
+        char[] chars= text.toCharArray();
+        int position= chars.length-SECONDS_FROM_END;
+        chars[position]= (char)('0'+second/10);
+        chars[position+1]= (char)('0'+second%10);
+        return new String(chars);
+    }
+}
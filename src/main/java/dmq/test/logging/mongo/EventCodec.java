@@ -0,0 +1,168 @@
+package dmq.test.logging.mongo;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 把日志（Helper.formatEvent输出的BSONObject）一次编码成RawBsonDocument，MongoSink直接写入
+// 原来的写入过程：在每条日志上put(saveTime)与putAll(extraElements)，再由驱动程序通过MapCodec编码一次
+// 这里额外的键值在创建EventCodec时只编码一次，保存为BSON字节，编码每条日志时直接复制
+// 字段的顺序与原来相同：同名的字段在原来的位置替换，以额外的键值为准，其次是saveTime；
+// 不同名的saveTime添加在日志字段之后，再之后是不同名的额外键值
+// 每个线程复用自己的输出缓存；EventCodec本身不可变，额外的键值或者saveTime变化时创建新的实例
+public class EventCodec implements Codec<BSONObject> {
+    private static final int BUFFER_BYTES= 1024;
+    private static final int MAX_RETAINED_BYTES= 64*1024;// 超出之后不再保留，避免个别很长的日志一直占用内存
+    private static final ThreadLocal<BasicOutputBuffer> BUFFERS= ThreadLocal.withInitial(()-> new BasicOutputBuffer(BUFFER_BYTES));
+    private static final EncoderContext CONTEXT= EncoderContext.builder().build();
+
+    private final CodecRegistry registry;
+    private final String saveTime;      // 为null时不写入保存时间
+    private final Map<String, byte[]> extraElements;// 每个额外键值编码之后的元素（类型、键名与值），保持原来的顺序
+    private final byte[] extraBytes;    // 全部额外键值的元素，没有同名的字段时直接复制到日志字段之后
+    public EventCodec(CodecRegistry registry, BSONObject extraElements, String saveTime) {
+        this.registry= registry;
+        this.saveTime= saveTime;
+        this.extraElements= encodeElements(extraElements);
+        BasicOutputBuffer buffer= new BasicOutputBuffer(BUFFER_BYTES);
+        for(byte[] element: this.extraElements.values())
+            buffer.writeBytes(element);
+        this.extraBytes= buffer.toByteArray();
+    }
+
+    // 编码一条日志，saveMillis为保存时间（一批数据使用同一个时间）
+    public RawBsonDocument encode(BSONObject object, long saveMillis) {
+        BasicOutputBuffer buffer= BUFFERS.get();
+        try {
+            BsonBinaryWriter writer= new BsonBinaryWriter(buffer);
+            // 额外键值的元素直接写入buffer，writeEndDocument按照buffer的位置计算文档长度
+            writer.writeStartDocument();
+            int replaced= 0;// 在原位置写入的额外键值数
+            boolean saveTimeWritten= false;
+            for(String key: object.keySet()) {
+                byte[] extra= extraElements.get(key);
+                if(extra != null) {
+                    buffer.writeBytes(extra);
+                    replaced++;
+                } else if(key.equals(saveTime))
+                    writer.writeDateTime(key, saveMillis);
+                else {
+                    writer.writeName(key);
+                    writeValue(writer, object.get(key));
+                }
+                if(key.equals(saveTime))
+                    saveTimeWritten= true;
+            }// for
+            if(saveTime != null && !saveTimeWritten) {
+                byte[] extra= extraElements.get(saveTime);
+                if(extra != null) {
+                    buffer.writeBytes(extra);
+                    replaced++;
+                } else
+                    writer.writeDateTime(saveTime, saveMillis);
+            }
+            if(replaced == 0)
+                buffer.writeBytes(extraBytes);
+            else {
+                for(Map.Entry<String, byte[]> entry: extraElements.entrySet()) {
+                    String key= entry.getKey();
+                    if(!key.equals(saveTime) && !object.containsField(key))
+                        buffer.writeBytes(entry.getValue());
+                }// for
+            }
+            writer.writeEndDocument();
+            writer.close();
+            return new RawBsonDocument(buffer.toByteArray());
+        } finally {
+            if(buffer.getSize() > MAX_RETAINED_BYTES)
+                BUFFERS.remove();
+            else
+                buffer.truncateToPosition(0);
+        }
+    }
+
+    @Override// Encoder
+    public void encode(BsonWriter writer, BSONObject object, EncoderContext encoderContext) {
+        writeDocument(writer, object);
+    }
+    @Override// Decoder
+    public BSONObject decode(BsonReader reader, DecoderContext decoderContext) {
+        return new BasicBSONObject(registry.get(Document.class).decode(reader, decoderContext));
+    }
+    @Override// Encoder
+    public Class<BSONObject> getEncoderClass() {
+        return BSONObject.class;
+    }
+
+    private Map<String, byte[]> encodeElements(BSONObject object) {
+        if(object == null || object.keySet().isEmpty())
+            return Collections.emptyMap();
+        Map<String, byte[]> elements= new LinkedHashMap<>();
+        for(String key: object.keySet()) {
+            BasicOutputBuffer buffer= new BasicOutputBuffer(BUFFER_BYTES);
+            BsonBinaryWriter writer= new BsonBinaryWriter(buffer);
+            writer.writeStartDocument();
+            writer.writeName(key);
+            writeValue(writer, object.get(key));
+            writer.writeEndDocument();
+            writer.close();
+            byte[] document= buffer.toByteArray();
+            elements.put(key, Arrays.copyOfRange(document, 4, document.length-1));// 长度(4) + 结尾(1)
+        }// for
+        return elements;
+    }
+    private void writeDocument(BsonWriter writer, BSONObject object) {
+        writer.writeStartDocument();
+        for(String key: object.keySet()) {
+            writer.writeName(key);
+            writeValue(writer, object.get(key));
+        }// for
+        writer.writeEndDocument();
+    }
+    // 日志中常见的类型直接写入，其他类型交给驱动程序的编码器
+    // BasicBSONList既是BSONObject也是List，需要先按照List写入
+    @SuppressWarnings("unchecked")
+    private void writeValue(BsonWriter writer, Object value) {
+        if(value == null)
+            writer.writeNull();
+        else if(value instanceof String)
+            writer.writeString((String)value);
+        else if(value instanceof Date)
+            writer.writeDateTime(((Date)value).getTime());
+        else if(value instanceof Integer)
+            writer.writeInt32((Integer)value);
+        else if(value instanceof Long)
+            writer.writeInt64((Long)value);
+        else if(value instanceof Double)
+            writer.writeDouble((Double)value);
+        else if(value instanceof Boolean)
+            writer.writeBoolean((Boolean)value);
+        else if(value instanceof List) {
+            writer.writeStartArray();
+            for(Object item: (List<?>)value)
+                writeValue(writer, item);
+            writer.writeEndArray();
+        } else if(value instanceof BSONObject)
+            writeDocument(writer, (BSONObject)value);
+        else if(value instanceof Map)
+            writeDocument(writer, new BasicBSONObject((Map)value));
+        else
+            CONTEXT.encodeWithChildContext((Codec<Object>)registry.get(value.getClass()), writer, value);
+    }
+}
@@ -7,9 +7,11 @@ import com.mongodb.client.model.CreateCollectionOptions;
 import org.bson.BSONObject;
 import org.bson.BasicBSONObject;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -32,27 +34,45 @@ public class MongoSink {
     // 创建数据集时，已经存在，抛出MongoCommandException异常
     private static final int ERROR_COLLECTION_EXIST= 48;
 
-    private MongoClient mongoClient= null;
-    private MongoDatabase mongoDatabase= null;
-    private MongoCollection mongoCollection= null;
+    // TimedBuffer的多个处理通道（FlushLanes）可能同时写入，dailyCollectionUpdate更换记录集之后需要立刻可见
+    private volatile MongoClient mongoClient= null;
+    private volatile MongoDatabase mongoDatabase= null;
+    private volatile MongoCollection mongoCollection= null;
+    // 日志由EventCodec编码成RawBsonDocument之后直接写入，驱动程序不再编码
+    private volatile MongoCollection<RawBsonDocument> rawCollection= null;
+    // 批量写入时复用的列表，每个线程一个
+    private static final ThreadLocal<List<RawBsonDocument>> BULK_LIST= ThreadLocal.withInitial(ArrayList::new);
+    // 额外的键值与SAVE_TIME变化之后重新创建
+    private volatile EventCodec eventCodec= null;
+    private synchronized void resetCodec() {
+        eventCodec= new EventCodec(MongoClient.getDefaultCodecRegistry(), extraElements,
+                writeSaveTime? saveTime: null);
+    }
 
     // 是否在插入数据时候，同时添加一个字段，记录插入数据的时间
-    private boolean writeSaveTime= true;
+    private volatile boolean writeSaveTime= true;
     public void disableSaveTime() {
         writeSaveTime= false;
+        resetCodec();
     }
 
     // 添加额外的JSON信息(key=value)到每条输出的日志中
-    private BasicBSONObject extraElements= new BasicBSONObject();
-    public void putExtraElement(String key, Object val) {
-        extraElements.put(key, val);
+    // 写入时复制，多个线程写入mongodb时不需要加锁
+    private volatile BasicBSONObject extraElements= new BasicBSONObject();
+    public synchronized void putExtraElement(String key, Object val) {
+        BasicBSONObject object= new BasicBSONObject(extraElements);
+        object.put(key, val);
+        extraElements= object;
+        resetCodec();
     }
 
     // 重命名SAVE_TIME对应的字段名
-    private String saveTime= SAVE_TIME;
+    private volatile String saveTime= SAVE_TIME;
     public void renameSaveTime(String name) {
-        if(name != null && name.length() > 0)
+        if(name != null && name.length() > 0) {
             saveTime= name;
+            resetCodec();
+        }
     }
     // MongoURI中定义了一个数据集时区，数据集时区可用于统一数据集内的时间信息
     public TimeZone getCollectionTimezone() {
@@ -80,6 +100,7 @@ public class MongoSink {
         dailyCollectionFormat= mongoURI.getCollectionDailyFormat();
         dailyCollectionTimezone= mongoURI.getCollectionTimezone();
         mongoIndexKeys= mongoURI.getCollectionIndexKeys();
+        resetCodec();
         dailyCollectionInit();// 每天一个记录集的初始化要在打开之前初始化
         if(ignoreException)
             ensureOpen();
@@ -177,6 +198,7 @@ public class MongoSink {
             }
         }
         mongoCollection= mongoDatabase.getCollection(collectionName);
+        rawCollection= mongoDatabase.getCollection(collectionName, RawBsonDocument.class);
         mongoIndexKeys.forEach(x-> mongoCollection.createIndex(new BasicDBObject(x, 1)));
     }
 
@@ -281,8 +303,18 @@ public class MongoSink {
 
     // 向mongodb中写入数据
     public void write(BSONObject object) {
-        Document doc = new Document(object.toMap());
-        write(doc);
+        if(mongoClient == null || mongoDatabase == null || rawCollection == null) {
+            LOGGER.trace("MongoSink: dropped data!");
+            return;
+        }
+
+        try {
+            RawBsonDocument doc= eventCodec.encode(object, System.currentTimeMillis());
+            dailyCollectionUpdate();
+            rawCollection.insertOne(doc);
+        } catch(Exception x) {
+            x.printStackTrace();
+        }
     }
     public void message(String string) {
         Document document= new Document("message", string);
@@ -293,11 +325,26 @@ public class MongoSink {
         write(doc);
     }
     // 向mongodb中写入批量数据
+    // 由EventCodec编码之后写入，list中的数据不会被修改，一批数据使用同一个SAVE_TIME
     public void writeList(List<BSONObject> list) {
-        List<Document> docList= (List<Document>)list.stream()
-                .map(x-> new Document(x.toMap()))
-                .collect(Collectors.toList());
-        write(docList);
+        if(mongoClient == null || mongoDatabase == null || rawCollection == null) {
+            LOGGER.trace("MongoSink: dropped data in bulk! (size= {})", list.size());
+            return;
+        }
+
+        List<RawBsonDocument> docList= BULK_LIST.get();
+        try {
+            EventCodec codec= eventCodec;
+            long now= System.currentTimeMillis();
+            for(int i=0; i<list.size(); i++)
+                docList.add(codec.encode(list.get(i), now));
+            dailyCollectionUpdate();
+            rawCollection.insertMany(docList);
+        } catch(Exception x) {
+            x.printStackTrace();
+        } finally {
+            docList.clear();
+        }
     }
     public void message(List<String> list) {
         List<Document> docList= (List<Document>)list.stream()
@@ -321,5 +368,6 @@ public class MongoSink {
         }
         mongoDatabase= null;
         mongoCollection= null;
+        rawCollection= null;
     }
 }
@@ -50,6 +50,19 @@ public class Converter {
     }
 
 
+    // 解析字符串为小数
+    public static double parseDouble(String str, double def) {
+        if(str == null || str.isEmpty())
+            return def;
+        try {
+            return Double.parseDouble(str);
+        } catch(Exception x) {
+            x.printStackTrace();
+        }
+        return def;
+    }
+
+
     // 解析字符串为整数，1k=1000
     public static long parseNumLong(String str, long def) {
         return parseLong(str, def, 1000);
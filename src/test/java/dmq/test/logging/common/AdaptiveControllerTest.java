@@ -0,0 +1,61 @@
+package dmq.test.logging.common;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveControllerTest {
+    private static final long MILLIS= TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 积压时加性增（步长为maxSize/64），直到maxSize
+    @Test
+    public void backlogIncreasesSizeByStep() {
+        AdaptiveController controller= new AdaptiveController(10, 640, 10, 1000, 500);
+        assertEquals(10, controller.getThresholdSize());
+        controller.onProcessed(10, 10*MILLIS, 10);
+        assertEquals(20, controller.getThresholdSize());
+        controller.onProcessed(20, 10*MILLIS, 19);
+        assertEquals(20, controller.getThresholdSize());
+        for(int i=0; i<100; i++)
+            controller.onProcessed(100, 10*MILLIS, 10000);
+        assertEquals(640, controller.getThresholdSize());
+    }
+
+    // 单批耗时超过目标延时时乘性减，不低于minSize
+    @Test
+    public void slowBatchHalvesSize() {
+        AdaptiveController controller= new AdaptiveController(10, 640, 10, 1000, 500);
+        for(int i=0; i<30; i++)
+            controller.onProcessed(100, MILLIS, 10000);
+        assertEquals(310, controller.getThresholdSize());
+        controller.onProcessed(310, 600*MILLIS, 10000);
+        assertEquals(155, controller.getThresholdSize());
+        for(int i=0; i<10; i++)
+            controller.onProcessed(10, 600*MILLIS, 0);
+        assertEquals(10, controller.getThresholdSize());
+    }
+
+    // 处理周期 = 目标延时 - 平均耗时，限定在[minTime, maxTime]之内
+    @Test
+    public void periodFollowsAverageLatency() {
+        AdaptiveController controller= new AdaptiveController(10, 640, 10, 1000, 500);
+        assertEquals(500, controller.getThresholdTime());
+        controller.onProcessed(10, 100*MILLIS, 0);
+        assertEquals(400, controller.getThresholdTime());
+        controller.onProcessed(10, 200*MILLIS, 0);// 平均耗时 100*0.8 + 200*0.2 = 120
+        assertEquals(380, controller.getThresholdTime());
+        for(int i=0; i<50; i++)
+            controller.onProcessed(10, 2000*MILLIS, 0);
+        assertEquals(10, controller.getThresholdTime());
+    }
+
+    @Test
+    public void emptyBatchIsIgnored() {
+        AdaptiveController controller= new AdaptiveController(10, 640, 10, 1000, 500);
+        controller.onProcessed(0, 5000*MILLIS, 10000);
+        assertEquals(10, controller.getThresholdSize());
+        assertEquals(500, controller.getThresholdTime());
+    }
+}
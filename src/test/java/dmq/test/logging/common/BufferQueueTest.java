@@ -0,0 +1,109 @@
+package dmq.test.logging.common;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// 三种Engine的BufferQueue行为应当一致
+@RunWith(Parameterized.class)
+public class BufferQueueTest {
+    @Parameterized.Parameters(name= "{0}")
+    public static Collection<Object[]> engines() {
+        List<Object[]> list= new ArrayList<>();
+        for(TimedBuffer.Engine engine: TimedBuffer.Engine.values())
+            list.add(new Object[]{engine});
+        return list;
+    }
+
+    private final TimedBuffer.Engine engine;
+    public BufferQueueTest(TimedBuffer.Engine engine) {
+        this.engine= engine;
+    }
+
+    @Test
+    public void offerUpToCapacityAndDrainInOrder() {
+        BufferQueue<Integer> queue= engine.create(8);
+        for(int i=0; i<8; i++)
+            assertTrue(queue.offer(i));
+        assertFalse(queue.offer(8));
+        assertEquals(8, queue.size());
+
+        List<Integer> list= new ArrayList<>();
+        assertEquals(5, queue.drainTo(list, 5));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), list);
+        assertEquals(Integer.valueOf(5), queue.poll());
+        assertTrue(queue.offer(9));
+        list.clear();
+        queue.drainTo(list, 100);
+        assertEquals(Arrays.asList(6, 7, 9), list);
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    // 优先级最低的数据中最早写入的一条，只考虑低于limit的数据
+    @Test
+    public void removeLowestKeepsOrderOfTheRest() {
+        BufferQueue<Integer> queue= engine.create(16);
+        for(int value: new int[]{5, 1, 7, 1, 3})
+            queue.offer(value);
+        assertNull(queue.removeLowest(x-> x, 1));
+        assertEquals(Integer.valueOf(1), queue.removeLowest(x-> x, 4));
+        assertEquals(Integer.valueOf(1), queue.removeLowest(x-> x, 4));
+        assertEquals(Integer.valueOf(3), queue.removeLowest(x-> x, 4));
+        assertNull(queue.removeLowest(x-> x, 4));
+
+        List<Integer> list= new ArrayList<>();
+        queue.drainTo(list, 100);
+        assertEquals(Arrays.asList(5, 7), list);
+    }
+
+    // 多个线程同时写入，不丢失数据，每个线程的数据保持写入的顺序
+    @Test(timeout= 20000)
+    public void concurrentProducersKeepPerThreadOrder() throws Exception {
+        final int threads= 4, count= 20000;
+        BufferQueue<long[]> queue= engine.create(threads*count);
+        CountDownLatch start= new CountDownLatch(1);
+        List<Thread> producers= new ArrayList<>();
+        for(int t=0; t<threads; t++) {
+            final int id= t;
+            Thread thread= new Thread(()-> {
+                try {
+                    start.await();
+                } catch(InterruptedException x) {
+                    return;
+                }
+                for(int i=0; i<count; i++)
+                    assertTrue(queue.offer(new long[]{id, i}));
+            });
+            thread.start();
+            producers.add(thread);
+        }// for
+
+        start.countDown();
+        long[] next= new long[threads];
+        int total= 0;
+        List<long[]> list= new ArrayList<>();
+        while(total < threads*count) {
+            list.clear();
+            total+= queue.drainTo(list, 1000);
+            for(long[] one: list) {
+                assertEquals(next[(int)one[0]], one[1]);
+                next[(int)one[0]]++;
+            }// for
+        }// while
+        for(Thread thread: producers)
+            thread.join();
+        assertEquals(0, queue.size());
+    }
+}
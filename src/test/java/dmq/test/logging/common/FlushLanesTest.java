@@ -0,0 +1,79 @@
+package dmq.test.logging.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlushLanesTest {
+    private final CountDownLatch available= new CountDownLatch(1);
+    private final FlushLanes<String> lanes= new FlushLanes<>(2, s-> s.substring(0, 1), 4,
+            new BatchPool<>(16), available::countDown);
+    @After
+    public void tearDown() {
+        lanes.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    // 通道饱和时dispatch不等待，通道有空闲之后通知onAvailable
+    @Test(timeout= 10000)
+    public void dispatchDoesNotBlockWhenSaturated() throws Exception {
+        CountDownLatch release= new CountDownLatch(1);
+        List<String> processed= Collections.synchronizedList(new ArrayList<>());
+        for(int i=0; i<3; i++) {
+            lanes.dispatch(Arrays.asList("a"+i, "b"+i, "a"+i+"x"), part-> {
+                try {
+                    release.await();
+                } catch(InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.addAll(part);
+            }, null);
+        }// for
+        assertTrue(lanes.isSaturated());
+
+        release.countDown();
+        assertTrue(available.await(5, TimeUnit.SECONDS));
+        assertTrue(lanes.await(5, TimeUnit.SECONDS));
+        assertFalse(lanes.isSaturated());
+        assertEquals(9, processed.size());
+    }
+
+    // 同一个键的数据保持顺序，各批按照dispatch的顺序通知完成
+    @Test(timeout= 10000)
+    public void completesInDispatchOrder() throws Exception {
+        List<String> processed= Collections.synchronizedList(new ArrayList<>());
+        List<Integer> completed= Collections.synchronizedList(new ArrayList<>());
+        for(int i=0; i<5; i++) {
+            final int batch= i;
+            lanes.dispatch(Arrays.asList("a"+i, "b"+i), part-> {
+                // 让a通道比b通道慢
+                if(part.get(0).startsWith("a")) {
+                    try {
+                        Thread.sleep(10);
+                    } catch(InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                processed.addAll(part);
+            }, ()-> completed.add(batch));
+            lanes.awaitCapacity(5, TimeUnit.SECONDS);
+        }// for
+        assertTrue(lanes.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), completed);
+
+        List<String> a= new ArrayList<>();
+        for(String one: processed)
+            if(one.startsWith("a"))
+                a.add(one);
+        assertEquals(Arrays.asList("a0", "a1", "a2", "a3", "a4"), a);
+    }
+}
@@ -0,0 +1,136 @@
+package dmq.test.logging.common;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+    private static final Serializer<String> SERIALIZER= new Serializer<String>() {
+        @Override// Serializer
+        public byte[] serialize(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+        @Override// Serializer
+        public String deserialize(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+
+    private final List<String> processed= Collections.synchronizedList(new ArrayList<>());
+    private TimedBuffer<String> buffer;
+    @After
+    public void tearDown() {
+        if(buffer != null)
+            buffer.close();
+    }
+
+    // 容量很小、不会自动触发处理的缓存
+    private TimedBuffer<String> createBuffer(int capacity, Path directory) {
+        buffer= new TimedBuffer<>(capacity, 1000, 60000, 1, true, processed::addAll, null);
+        assertTrue(buffer.enableJournal(directory, SERIALIZER, 0, 1024*1024));
+        return buffer;
+    }
+
+    @Test
+    public void recoverReturnsOnlyUnacknowledgedData() throws Exception {
+        Path directory= folder.newFolder().toPath();
+        Journal<String> journal= new Journal<>(directory, SERIALIZER, 1024*1024, 4096);
+        for(int i=0; i<10; i++)
+            assertTrue(journal.append("data-"+i));
+        journal.ack(4);
+        journal.sync();
+        journal.close();
+
+        journal= new Journal<>(directory, SERIALIZER, 1024*1024, 4096);
+        assertEquals(6, journal.count());
+        assertEquals(Arrays.asList("data-4", "data-5", "data-6", "data-7", "data-8", "data-9"), journal.recover(100));
+        journal.close();
+    }
+
+    @Test
+    public void unacknowledgedDataIsReplayedOnEnable() throws Exception {
+        Path directory= folder.newFolder().toPath();
+        Journal<String> journal= new Journal<>(directory, SERIALIZER, 1024*1024, SegmentLog.SEGMENT_BYTES);
+        journal.append("left-0");
+        journal.append("left-1");
+        journal.close();
+
+        createBuffer(10, directory);
+        assertEquals(Arrays.asList("left-0", "left-1"), processed);
+        assertEquals(0, buffer.getJournal().count());
+    }
+
+    @Test
+    public void droppedDataIsAcknowledged() throws Exception {
+        createBuffer(5, folder.newFolder().toPath());
+        for(int i=0; i<20; i++)
+            buffer.put("data-"+i);
+        buffer.flush();
+        assertEquals(5, processed.size());
+        assertEquals(0, buffer.getJournal().count());
+    }
+
+    @Test
+    public void evictedDataIsAcknowledged() throws Exception {
+        createBuffer(5, folder.newFolder().toPath());
+        buffer.setOverflowPolicy(new DropOldestPolicy<>());
+        for(int i=0; i<20; i++)
+            assertTrue(buffer.put("data-"+i));
+        buffer.flush();
+        assertEquals(Arrays.asList("data-15", "data-16", "data-17", "data-18", "data-19"), processed);
+        assertEquals(0, buffer.getJournal().count());
+    }
+
+    @Test
+    public void callerRunsDataIsAcknowledged() throws Exception {
+        createBuffer(5, folder.newFolder().toPath());
+        buffer.setOverflowPolicy(new CallerRunsPolicy<>());
+        for(int i=0; i<20; i++)
+            assertTrue(buffer.put("data-"+i));
+        buffer.flush();
+        assertEquals(20, processed.size());
+        assertEquals(0, buffer.getJournal().count());
+    }
+
+    // BlockPolicy在journalLock之外等待，定时处理可以取出数据，缓存腾出空间之后写入
+    @Test(timeout= 10000)
+    public void blockPolicyWaitsForTheFlush() throws Exception {
+        createBuffer(5, folder.newFolder().toPath());
+        BlockPolicy<String> policy= new BlockPolicy<>(5000);
+        buffer.setOverflowPolicy(policy);
+        for(int i=0; i<20; i++)
+            assertTrue(buffer.put("data-"+i));
+        assertEquals(0, policy.countTimeout());
+        assertTrue(policy.countBlocked() > 0);
+        buffer.flush();
+        assertEquals(20, processed.size());
+        for(int i=0; i<20; i++)
+            assertEquals("data-"+i, processed.get(i));
+        assertEquals(0, buffer.getJournal().count());
+    }
+
+    @Test
+    public void droppedDataIsAcknowledgedWithFlushLanes() throws Exception {
+        createBuffer(5, folder.newFolder().toPath());
+        buffer.setFlushLanes(2, s-> s);
+        for(int i=0; i<20; i++)
+            buffer.put("data-"+i);
+        buffer.flush();
+        assertEquals(5, processed.size());
+        assertEquals(0, buffer.getJournal().count());
+    }
+}
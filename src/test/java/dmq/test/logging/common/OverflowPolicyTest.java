@@ -0,0 +1,124 @@
+package dmq.test.logging.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OverflowPolicyTest {
+    private final List<Integer> processed= Collections.synchronizedList(new ArrayList<>());
+    private TimedBuffer<Integer> buffer;
+    @After
+    public void tearDown() {
+        if(buffer != null)
+            buffer.close();
+    }
+
+    // 容量为4、不会自动触发处理的缓存；handler为null时没有定时服务
+    private TimedBuffer<Integer> createBuffer(OverflowPolicy<Integer> policy, boolean withHandler) {
+        buffer= new TimedBuffer<>(4, 1000, 60000, 1, true, withHandler? processed::addAll: null, null);
+        buffer.setOverflowPolicy(policy);
+        for(int i=0; i<4; i++)
+            assertTrue(buffer.put(i));
+        return buffer;
+    }
+
+    @Test
+    public void parseByName() {
+        assertTrue(OverflowPolicy.parse(null, null) instanceof DropNewestPolicy);
+        assertTrue(OverflowPolicy.parse("Drop_Oldest", null) instanceof DropOldestPolicy);
+        assertTrue(OverflowPolicy.parse("drop_lowest_level", x-> 0) instanceof DropLowestPolicy);
+        assertTrue(OverflowPolicy.parse("drop_lowest_level", null) instanceof DropOldestPolicy);
+        assertTrue(OverflowPolicy.parse("caller_runs", null) instanceof CallerRunsPolicy);
+        assertTrue(OverflowPolicy.parse("unknown", null) instanceof DropNewestPolicy);
+        OverflowPolicy<Object> block= OverflowPolicy.parse("block:20", null);
+        assertTrue(block instanceof BlockPolicy);
+        assertTrue(block.dump().startsWith("policy=block"));
+    }
+
+    @Test
+    public void dropNewestCountsDropped() {
+        DropNewestPolicy<Integer> policy= new DropNewestPolicy<>();
+        createBuffer(policy, false);
+        assertFalse(buffer.put(4));
+        assertFalse(buffer.put(5));
+        assertEquals(2, policy.countDropped());
+        assertEquals(2, buffer.countDropped());
+        assertEquals(Arrays.asList(0, 1, 2, 3), buffer.take());
+    }
+
+    @Test
+    public void dropOldestEvictsInOrder() {
+        DropOldestPolicy<Integer> policy= new DropOldestPolicy<>();
+        createBuffer(policy, false);
+        assertTrue(buffer.put(4));
+        assertTrue(buffer.put(5));
+        assertEquals(2, policy.countEvicted());
+        assertEquals(0, policy.countDropped());
+        assertEquals(2, buffer.countDropped());
+        assertEquals(Arrays.asList(2, 3, 4, 5), buffer.take());
+    }
+
+    // 只丢弃优先级低于新数据的数据，同级别时丢弃最早写入的
+    @Test
+    public void dropLowestEvictsOnlyLowerPriority() {
+        DropLowestPolicy<Integer> policy= new DropLowestPolicy<>(x-> x/10);
+        buffer= new TimedBuffer<>(4, 1000, 60000, 1, true, null, null);
+        buffer.setOverflowPolicy(policy);
+        for(int value: new int[]{20, 10, 30, 11})
+            assertTrue(buffer.put(value));
+
+        assertFalse(buffer.put(12));
+        assertEquals(0, policy.countEvicted());
+        assertEquals(1, policy.countRejected());
+
+        assertTrue(buffer.put(25));
+        assertTrue(buffer.put(26));
+        assertFalse(buffer.put(27));
+        assertEquals(2, policy.countEvicted());
+        assertEquals(2, policy.countRejected());
+        assertEquals(Arrays.asList(20, 30, 25, 26), buffer.take());
+    }
+
+    // 写入线程处理缓存内的数据以及新数据
+    @Test
+    public void callerRunsProcessesInCallerThread() {
+        CallerRunsPolicy<Integer> policy= new CallerRunsPolicy<>();
+        createBuffer(policy, true);
+        assertTrue(buffer.put(4));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), processed);
+        assertEquals(1, policy.countCallerRuns());
+        assertEquals(5, policy.countProcessed());
+        assertEquals(0, buffer.count());
+    }
+
+    // 等待期间触发处理，缓存腾出空间之后写入
+    @Test(timeout= 10000)
+    public void blockWaitsForTheFlush() {
+        BlockPolicy<Integer> policy= new BlockPolicy<>(5000);
+        createBuffer(policy, true);
+        assertTrue(buffer.put(4));
+        assertEquals(1, policy.countBlocked());
+        assertEquals(0, policy.countTimeout());
+        buffer.flush();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), processed);
+    }
+
+    @Test(timeout= 10000)
+    public void blockTimesOutWithoutFlush() {
+        BlockPolicy<Integer> policy= new BlockPolicy<>(50);
+        createBuffer(policy, false);
+        assertFalse(buffer.put(4));
+        assertEquals(1, policy.countBlocked());
+        assertEquals(1, policy.countTimeout());
+        assertTrue(policy.blockedMillis() >= 50);
+        assertEquals(1, buffer.countDropped());
+    }
+}
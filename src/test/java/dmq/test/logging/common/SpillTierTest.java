@@ -0,0 +1,101 @@
+package dmq.test.logging.common;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpillTierTest {
+    private static final Serializer<String> SERIALIZER= new Serializer<String>() {
+        @Override// Serializer
+        public byte[] serialize(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+        @Override// Serializer
+        public String deserialize(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+
+    private TimedBuffer<String> buffer;
+    @After
+    public void tearDown() {
+        if(buffer != null)
+            buffer.close();
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> list= new ArrayList<>();
+        for(int i=from; i<to; i++)
+            list.add("data-"+i);
+        return list;
+    }
+
+    // 跨越多个段文件时，仍然按照写入的顺序读出
+    @Test
+    public void drainAcrossSegmentsInOrder() throws Exception {
+        SpillTier<String> spill= new SpillTier<>(folder.newFolder().toPath(), SERIALIZER, 0, 64*1024, 64);
+        for(String s: range(0, 50))
+            assertTrue(spill.spill(s));
+        assertEquals(50, spill.count());
+
+        List<String> list= new ArrayList<>();
+        assertEquals(20, spill.drainTo(list, 20));
+        assertEquals(range(0, 20), list);
+        assertTrue(spill.spill("data-50"));
+        assertEquals(31, spill.drainTo(list, 100));
+        assertEquals(range(0, 51), list);
+        assertTrue(spill.isEmpty());
+        spill.close();
+    }
+
+    // 一旦开始写入磁盘，后续的数据都写入磁盘，直到磁盘中的数据全部取出
+    @Test
+    public void memoryIsDrainedBeforeDisk() throws Exception {
+        buffer= new TimedBuffer<>(100, 1000, 60000, 1, true, null, null);
+        assertTrue(buffer.enableSpill(folder.newFolder().toPath(), SERIALIZER, 3, 64*1024, 256));
+        SpillTier<String> spill= buffer.getSpillTier();
+        for(String s: range(0, 10))
+            assertTrue(buffer.put(s));
+        assertEquals(7, spill.count());
+        assertEquals(10, buffer.count());
+        assertEquals(range(0, 10), buffer.take());
+
+        assertTrue(spill.isEmpty());
+        assertFalse(spill.shouldSpill(0));
+        assertTrue(buffer.put("data-10"));
+        assertEquals(7, spill.countSpilled());
+        assertEquals(7, spill.countReplayed());
+        assertEquals(Arrays.asList("data-10"), buffer.take());
+    }
+
+    // 磁盘空间不足时，交给OverflowPolicy处理
+    @Test
+    public void fullDiskFallsBackToOverflowPolicy() throws Exception {
+        buffer= new TimedBuffer<>(100, 1000, 60000, 1, true, null, null);
+        assertTrue(buffer.enableSpill(folder.newFolder().toPath(), SERIALIZER, 0, 64, 64));
+        SpillTier<String> spill= buffer.getSpillTier();
+        int accepted= 0;
+        for(String s: range(0, 20)) {
+            if(buffer.put(s))
+                accepted++;
+        }// for
+        assertTrue(accepted > 0 && accepted < 20);
+        assertEquals(accepted, spill.countSpilled());
+        assertEquals(20-accepted, spill.countRejected());
+        assertEquals(20-accepted, buffer.countDropped());
+        assertEquals(range(0, accepted), buffer.take());
+    }
+}
@@ -0,0 +1,95 @@
+package dmq.test.logging.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    @Test(timeout= 10000)
+    public void taskRunsAfterDelay() throws Exception {
+        CountDownLatch latch= new CountDownLatch(1);
+        long start= System.nanoTime();
+        final long[] elapsed= new long[1];
+        TimerWheel.shared().schedule(TimerWheel.shared().workers(), ()-> {
+            elapsed[0]= TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+            latch.countDown();
+        }, 100);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue("elapsed= "+elapsed[0], elapsed[0] >= 100-TimerWheel.TICK);
+    }
+
+    @Test(timeout= 10000)
+    public void cancelledTaskDoesNotRun() throws Exception {
+        AtomicBoolean ran= new AtomicBoolean(false);
+        TimerWheel.Timeout timeout= TimerWheel.shared().schedule(TimerWheel.shared().workers(), ()-> ran.set(true), 50);
+        timeout.cancel();
+        assertTrue(timeout.isCancelled());
+
+        CountDownLatch later= new CountDownLatch(1);
+        TimerWheel.shared().schedule(TimerWheel.shared().workers(), later::countDown, 150);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    // 阻塞的任务占满原有的线程之后，其他SerialExecutor的任务仍然可以执行
+    @Test(timeout= 10000)
+    public void blockedTasksDoNotStallOthers() throws Exception {
+        int blocked= Runtime.getRuntime().availableProcessors()+2;
+        CountDownLatch release= new CountDownLatch(1);
+        CountDownLatch started= new CountDownLatch(blocked);
+        try {
+            for(int i=0; i<blocked; i++) {
+                new SerialExecutor(TimerWheel.shared().workers()).execute(()-> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }// for
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            CountDownLatch ran= new CountDownLatch(1);
+            SerialExecutor other= new SerialExecutor(TimerWheel.shared().workers());
+            TimerWheel.shared().schedule(other, ran::countDown, 10);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    // 同一个SerialExecutor的任务按照提交的顺序依次执行，不会同时执行
+    @Test(timeout= 10000)
+    public void serialExecutorRunsTasksInOrder() throws Exception {
+        SerialExecutor executor= new SerialExecutor(TimerWheel.shared().workers());
+        List<Integer> order= Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running= new AtomicInteger(0);
+        AtomicBoolean overlapped= new AtomicBoolean(false);
+        for(int i=0; i<200; i++) {
+            final int n= i;
+            executor.execute(()-> {
+                if(running.incrementAndGet() > 1)
+                    overlapped.set(true);
+                order.add(n);
+                running.decrementAndGet();
+            });
+        }// for
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        assertEquals(200, order.size());
+        for(int i=0; i<order.size(); i++)
+            assertEquals(Integer.valueOf(i), order.get(i));
+    }
+}
@@ -0,0 +1,63 @@
+package dmq.test.logging.common;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    // 初始时令牌是满的，取完burst个之后立即返回false
+    @Test
+    public void burstThenReject() {
+        TokenBucket bucket= new TokenBucket(0.01, 5);
+        for(int i=0; i<5; i++)
+            assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    // 按照rate补充令牌，空闲时最多积攒burst个
+    @Test(timeout= 10000)
+    public void refillsAtRate() throws Exception {
+        TokenBucket bucket= new TokenBucket(20, 2);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(60);
+        assertTrue(bucket.tryAcquire());
+        Thread.sleep(500);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    // 多个线程同时取令牌，总数不超过burst
+    @Test(timeout= 10000)
+    public void concurrentAcquireNeverExceedsBurst() throws Exception {
+        final TokenBucket bucket= new TokenBucket(0.01, 1000);
+        final AtomicInteger acquired= new AtomicInteger(0);
+        final CountDownLatch start= new CountDownLatch(1);
+        Thread[] threads= new Thread[4];
+        for(int t=0; t<threads.length; t++) {
+            threads[t]= new Thread(()-> {
+                try {
+                    start.await();
+                } catch(InterruptedException x) {
+                    return;
+                }
+                for(int i=0; i<1000; i++)
+                    if(bucket.tryAcquire())
+                        acquired.incrementAndGet();
+            });
+            threads[t].start();
+        }// for
+        start.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        assertEquals(1000, acquired.get());
+    }
+}
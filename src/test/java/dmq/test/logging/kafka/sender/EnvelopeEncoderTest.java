@@ -0,0 +1,92 @@
+package dmq.test.logging.kafka.sender;
+
+import dmq.test.logging.kafka.EnvelopeDecoder;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvelopeEncoderTest {
+    private static KafkaRecord record(String key, String value) {
+        return new KafkaRecord(key, value.getBytes(StandardCharsets.UTF_8), KafkaRecord.DEFAULT_PRIORITY, null);
+    }
+    private static List<String> values(List<KafkaRecord> records) {
+        List<String> list= new ArrayList<>();
+        for(KafkaRecord record: records)
+            list.add(new String(record.getValue(), StandardCharsets.UTF_8));
+        return list;
+    }
+
+    // 每种压缩方式都可以原样解析
+    @Test
+    public void roundTripForEveryCodec() throws Exception {
+        List<KafkaRecord> records= Arrays.asList(record("k", "{level=INFO, message=first}"),
+                record("k", ""), record("k", "{level=ERROR, message=中文}"));
+        for(int level: new int[]{0, 1, 6, 9}) {
+            for(byte[] dictionary: new byte[][]{null, EnvelopeDecoder.DEFAULT_DICTIONARY}) {
+                byte[] envelope= new EnvelopeEncoder(0, level, dictionary).encode(records);
+                assertTrue(EnvelopeDecoder.isEnvelope(envelope));
+                EnvelopeDecoder decoder= new EnvelopeDecoder(dictionary);
+                assertEquals(values(records), decoder.decodeStrings(envelope));
+            }// for
+        }// for
+    }
+
+    // 按照key分组，每组按照maxBytes拆分，组内保持顺序
+    @Test
+    public void packGroupsByKeyAndSplitsBySize() throws Exception {
+        List<KafkaRecord> records= new ArrayList<>();
+        for(int i=0; i<10; i++)
+            records.add(record(i%2 == 0? "even": "odd", String.format("value-%02d", i)));
+        EnvelopeEncoder encoder= new EnvelopeEncoder(30, 6, EnvelopeDecoder.DEFAULT_DICTIONARY);
+        List<KafkaRecord> envelopes= encoder.pack(records);
+
+        EnvelopeDecoder decoder= new EnvelopeDecoder();
+        List<String> even= new ArrayList<>(), odd= new ArrayList<>();
+        for(KafkaRecord envelope: envelopes) {
+            List<String> decoded= decoder.decodeStrings(envelope.getValue());
+            assertTrue(decoded.size() <= 2);// 每条12字节（包括长度），30字节最多两条
+            ("even".equals(envelope.getKey())? even: odd).addAll(decoded);
+        }// for
+        assertEquals(Arrays.asList("value-00", "value-02", "value-04", "value-06", "value-08"), even);
+        assertEquals(Arrays.asList("value-01", "value-03", "value-05", "value-07", "value-09"), odd);
+        assertEquals(6, envelopes.size());
+    }
+
+    // 不是信封的数据原样返回
+    @Test
+    public void plainValuesPassThrough() throws Exception {
+        byte[] plain= "{level=INFO}".getBytes(StandardCharsets.UTF_8);
+        assertFalse(EnvelopeDecoder.isEnvelope(plain));
+        List<byte[]> decoded= new EnvelopeDecoder().decode(plain);
+        assertEquals(1, decoded.size());
+        assertArrayEquals(plain, decoded.get(0));
+    }
+
+    @Test
+    public void dictionaryMismatchIsRejected() {
+        byte[] envelope= new EnvelopeEncoder(0, 6, "custom dictionary".getBytes(StandardCharsets.UTF_8))
+                .encode(Arrays.asList(record(null, "value")));
+        try {
+            new EnvelopeDecoder().decode(envelope);
+            fail("dictionary mismatch should be rejected");
+        } catch(DataFormatException x) {
+            assertTrue(x.getMessage().startsWith("Dictionary mismatch"));
+        }
+    }
+
+    @Test(expected= DataFormatException.class)
+    public void truncatedEnvelopeIsRejected() throws Exception {
+        byte[] envelope= new EnvelopeEncoder(0, 0, null).encode(Arrays.asList(record(null, "value")));
+        new EnvelopeDecoder().decode(Arrays.copyOf(envelope, envelope.length-2));
+    }
+}
@@ -0,0 +1,31 @@
+package dmq.test.logging.kafka.sender;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class KafkaRecordTest {
+    // key按照UTF-8的字节数计算
+    @Test
+    public void sizeCountsKeyInUtf8Bytes() {
+        byte[] value= "value".getBytes(StandardCharsets.UTF_8);
+        for(String key: new String[]{null, "", "ascii", "中文键", "emoji 😀", "broken \uD800x\uDC00"}) {
+            int expected= value.length + (key == null? 0: key.getBytes(StandardCharsets.UTF_8).length);
+            assertEquals(String.valueOf(key), expected, new KafkaRecord(key, value, 0, null).size());
+        }// for
+    }
+
+    @Test
+    public void serializerRoundTrip() {
+        KafkaRecord record= new KafkaRecord("键😀", "value".getBytes(StandardCharsets.UTF_8), 3, "group");
+        KafkaRecord copy= KafkaRecord.SERIALIZER.deserialize(KafkaRecord.SERIALIZER.serialize(record));
+        assertEquals(record.getKey(), copy.getKey());
+        assertArrayEquals(record.getValue(), copy.getValue());
+        assertEquals(3, copy.getPriority());
+        assertEquals("group", copy.getGroup());
+        assertEquals(record.size(), copy.size());
+    }
+}
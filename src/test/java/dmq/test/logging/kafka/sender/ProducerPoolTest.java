@@ -0,0 +1,105 @@
+package dmq.test.logging.kafka.sender;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProducerPoolTest {
+    private static final String TOPIC= "logs";
+    private static final byte[] VALUE= "value".getBytes(StandardCharsets.UTF_8);
+
+    private static List<MockProducer<String, byte[]>> producers(int size, int partitions) {
+        Cluster cluster= Cluster.empty();
+        if(partitions > 0) {
+            Node node= new Node(0, "localhost", 9092);
+            List<PartitionInfo> list= new ArrayList<>();
+            for(int i=0; i<partitions; i++)
+                list.add(new PartitionInfo(TOPIC, i, node, new Node[]{node}, new Node[]{node}));
+            cluster= new Cluster("cluster", Collections.singletonList(node), list,
+                    Collections.emptySet(), Collections.emptySet());
+        }
+        List<MockProducer<String, byte[]>> list= new ArrayList<>();
+        for(int i=0; i<size; i++)
+            list.add(new MockProducer<>(cluster, true, new DefaultPartitioner(),
+                    new StringSerializer(), new ByteArraySerializer()));
+        return list;
+    }
+    private static int count(MockProducer<String, byte[]> producer) {
+        return producer.history().size();
+    }
+
+    // 同一个key总是使用同一个producer，分区由producer自己选择
+    @Test
+    public void keyRouteUsesKeyHash() {
+        List<MockProducer<String, byte[]>> list= producers(3, 0);
+        ProducerPool pool= new ProducerPool(TOPIC, list, ProducerPool.ROUTE_KEY);
+        for(int i=0; i<30; i++)
+            pool.send("key-"+(i%5), VALUE, null);
+        for(int i=0; i<list.size(); i++) {
+            for(ProducerRecord<String, byte[]> record: list.get(i).history()) {
+                assertEquals(i, Utils.toPositive(record.key().hashCode()) % list.size());
+                assertNull(record.partition());
+            }// for
+        }// for
+        assertEquals(30, count(list.get(0))+count(list.get(1))+count(list.get(2)));
+    }
+
+    // 没有key的数据轮流使用所有producer
+    @Test
+    public void nullKeyRoundRobin() {
+        List<MockProducer<String, byte[]>> list= producers(3, 0);
+        ProducerPool pool= new ProducerPool(TOPIC, list, ProducerPool.ROUTE_KEY);
+        for(int i=0; i<9; i++)
+            pool.send(null, VALUE, null);
+        for(MockProducer<String, byte[]> producer: list)
+            assertEquals(3, count(producer));
+    }
+
+    // 按照murmur2计算分区，每个分区只由一个producer发送
+    @Test
+    public void partitionRouteMatchesDefaultPartitioner() {
+        List<MockProducer<String, byte[]>> list= producers(2, 6);
+        ProducerPool pool= new ProducerPool(TOPIC, list, ProducerPool.ROUTE_PARTITION);
+        for(int i=0; i<60; i++)
+            pool.send("key-"+i, VALUE, null);
+        pool.send(null, VALUE, null);
+        for(int i=0; i<list.size(); i++) {
+            for(ProducerRecord<String, byte[]> record: list.get(i).history()) {
+                int partition= record.partition();
+                if(record.key() != null)
+                    assertEquals(Utils.toPositive(Utils.murmur2(record.key().getBytes(StandardCharsets.UTF_8))) % 6,
+                            partition);
+                assertEquals(i, partition % list.size());
+            }// for
+        }// for
+        assertEquals(61, count(list.get(0))+count(list.get(1)));
+        assertTrue(pool.dump().startsWith("ProducerPool(size= 2, route= partition, partitions= 6"));
+    }
+
+    // 无法取得分区数量时按照key路由
+    @Test
+    public void partitionRouteFallsBackToKey() {
+        List<MockProducer<String, byte[]>> list= producers(2, 0);
+        ProducerPool pool= new ProducerPool(TOPIC, list, ProducerPool.ROUTE_PARTITION);
+        pool.send("key", VALUE, null);
+        int index= Utils.toPositive("key".hashCode()) % 2;
+        assertEquals(1, count(list.get(index)));
+        assertNull(list.get(index).history().get(0).partition());
+    }
+}
@@ -0,0 +1,184 @@
+package dmq.test.logging.kafka.sender;
+
+import dmq.test.logging.common.TimerWheel;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendPipelineTest {
+    // 模拟KafkaProducer：前failures次发送出错，回调在io线程上执行（inline为true时在调用线程上回调）
+    // delay为io线程回调之前等待的毫秒数
+    private static final class MockTransport implements SendPipeline.Transport {
+        final AtomicInteger sends= new AtomicInteger(0);
+        final AtomicInteger acked= new AtomicInteger(0);
+        final ExecutorService io= Executors.newSingleThreadExecutor();
+        final int failures;
+        final RuntimeException error;
+        final boolean inline;
+        volatile long delay= 0;
+        MockTransport(int failures, RuntimeException error, boolean inline) {
+            this.failures= failures;
+            this.error= error;
+            this.inline= inline;
+        }
+        @Override// Transport
+        public void send(KafkaRecord record, Callback callback) {
+            boolean fail= sends.incrementAndGet() <= failures;
+            if(fail && inline) {
+                callback.onCompletion(null, error);
+                return;
+            }
+            io.execute(()-> {
+                try {
+                    if(delay > 0)
+                        Thread.sleep(delay);
+                } catch(InterruptedException x) {
+                    return;
+                }
+                if(!fail)
+                    acked.incrementAndGet();
+                callback.onCompletion(null, fail? error: null);
+            });
+        }
+    }
+
+    private MockTransport transport;
+    private SendPipeline pipeline;
+    @After
+    public void tearDown() {
+        if(pipeline != null)
+            pipeline.close();
+        if(transport != null)
+            transport.io.shutdownNow();
+    }
+
+    private static List<KafkaRecord> records(int count) {
+        List<KafkaRecord> list= new ArrayList<>(count);
+        for(int i=0; i<count; i++)
+            list.add(new KafkaRecord(("record-"+i).getBytes()));
+        return list;
+    }
+
+    // 发送中的数量全部被等待重试的数据占用，processBuffer阻塞在共享线程池上时，重试仍然可以完成
+    @Test(timeout= 20000)
+    public void retriesCompleteWhileWorkersAreBlocked() throws Exception {
+        transport= new MockTransport(20, new TimeoutException("mock timeout"), false);
+        pipeline= new SendPipeline(transport);
+        pipeline.setInFlightLimit(10, 0);
+        pipeline.setRetry(3, 10);
+
+        int workers= 2, batch= 50;
+        CountDownLatch done= new CountDownLatch(workers);
+        for(int i=0; i<workers; i++) {
+            TimerWheel.shared().workers().execute(()-> {
+                pipeline.process(records(batch), true, 10000);
+                done.countDown();
+            });
+        }// for
+        assertTrue(pipeline.dump(), done.await(15, TimeUnit.SECONDS));
+        assertTrue(pipeline.dump(), pipeline.awaitIdle(5000));
+        assertEquals(pipeline.dump(), workers*batch, transport.acked.get());
+        assertEquals(0, pipeline.inFlightRecords());
+    }
+
+    // kafka-clients 2.2在调用线程上回调max.block.ms超时，本批剩余的数据直接进入重试
+    @Test(timeout= 20000)
+    public void inlineCallbackFailureDefersRestOfBatch() {
+        transport= new MockTransport(1, new TimeoutException("mock metadata timeout"), true);
+        pipeline= new SendPipeline(transport);
+        pipeline.setRetry(3, 500);
+
+        pipeline.process(records(5), false, 0);
+        assertEquals(pipeline.dump(), 1, transport.sends.get());
+        assertTrue(pipeline.dump(), pipeline.awaitIdle(10000));
+        assertEquals(pipeline.dump(), 5, transport.acked.get());
+    }
+
+    // 同步出错但不可重试（或者不重试）时，剩余的数据仍然逐条发送
+    @Test(timeout= 20000)
+    public void inlineFailureWithoutRetryKeepsSending() {
+        transport= new MockTransport(1, new RecordTooLargeException("mock too large"), true);
+        pipeline= new SendPipeline(transport);
+        pipeline.setRetry(3, 500);
+        assertTrue(pipeline.process(records(5), true, 5000));
+        assertEquals(pipeline.dump(), 5, transport.sends.get());
+        assertEquals(4, transport.acked.get());
+
+        transport.io.shutdownNow();
+        transport= new MockTransport(1, new TimeoutException("mock metadata timeout"), true);
+        pipeline.close();
+        pipeline= new SendPipeline(transport);
+        pipeline.setRetry(0, 500);
+        assertTrue(pipeline.process(records(5), true, 5000));
+        assertEquals(pipeline.dump(), 5, transport.sends.get());
+        assertEquals(4, transport.acked.get());
+    }
+
+    // 等待发送中的数量时被中断，剩余的数据照常发送，中断状态保留
+    @Test(timeout= 20000)
+    public void interruptDoesNotDropTheBatch() {
+        transport= new MockTransport(0, null, false);
+        transport.delay= 100;
+        pipeline= new SendPipeline(transport);
+        pipeline.setInFlightLimit(1, 0);
+
+        Thread.currentThread().interrupt();
+        pipeline.process(records(5), false, 0);
+        assertTrue(Thread.interrupted());
+        assertEquals(5, transport.sends.get());
+        assertTrue(pipeline.dump(), pipeline.awaitIdle(5000));
+        assertEquals(5, transport.acked.get());
+    }
+
+    // 超时之后返回false；untilAcked为true时继续等待，直到确认
+    @Test(timeout= 20000)
+    public void untilAckedWaitsPastTheTimeout() {
+        transport= new MockTransport(0, null, false);
+        transport.delay= 300;
+        pipeline= new SendPipeline(transport);
+
+        assertFalse(pipeline.process(records(1), true, 50));
+        assertTrue(pipeline.process(records(1), true, 50, true));
+        assertEquals(2, transport.acked.get());
+    }
+
+    // 不可重试的异常直接计为失败，释放发送中的数量
+    @Test(timeout= 20000)
+    public void nonRetriableFailureIsNotRetried() {
+        transport= new MockTransport(1, new RecordTooLargeException("mock too large"), false);
+        pipeline= new SendPipeline(transport);
+        pipeline.setRetry(3, 10);
+
+        pipeline.process(records(1), true, 5000);
+        assertTrue(pipeline.awaitIdle(5000));
+        assertEquals(1, transport.sends.get());
+        assertEquals(0, transport.acked.get());
+    }
+
+    // 关闭之后，等待重试的数据计为失败，不再占用发送中的数量
+    @Test(timeout= 20000)
+    public void closeReleasesPendingRetries() {
+        transport= new MockTransport(Integer.MAX_VALUE, new TimeoutException("mock timeout"), false);
+        pipeline= new SendPipeline(transport);
+        pipeline.setRetry(3, 200);
+
+        pipeline.process(records(3), false, 0);
+        pipeline.close();
+        assertTrue(pipeline.dump(), pipeline.awaitIdle(5000));
+        assertEquals(0, transport.acked.get());
+    }
+}
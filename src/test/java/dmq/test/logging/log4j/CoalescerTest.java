@@ -0,0 +1,80 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescerTest {
+    // 一次合并输出：消息、次数、第一次与最后一次的时间
+    private final List<String> emitted= Collections.synchronizedList(new ArrayList<>());
+    private Coalescer create(long interval, int slots) {
+        return new Coalescer(interval, slots, event-> EventSnapshot.capture(null, null, event, null),
+                (snapshot, count, firstTs, lastTs)-> emitted.add(
+                        String.format("%s x%d [%d,%d]", snapshot.getMessage(), count, firstTs, lastTs)));
+    }
+    private static LoggingEvent event(String message, long time) {
+        return new LoggingEvent(null, Logger.getLogger("dmq.test.Coalesce"), time, Level.WARN, message, null);
+    }
+
+    // 窗口内第一次照常写入，之后的重复被合并，窗口之后再次出现时输出合并结果
+    @Test
+    public void repeatsWithinWindowAreCoalesced() {
+        Coalescer coalescer= create(60000, 16);
+        long now= System.currentTimeMillis();
+        assertTrue(coalescer.offer(event("retry", now)));
+        assertFalse(coalescer.offer(event("retry", now+10)));
+        assertFalse(coalescer.offer(event("retry", now+20)));
+        assertFalse(coalescer.offer(event("retry", now+59999)));
+        assertTrue(emitted.isEmpty());
+
+        assertTrue(coalescer.offer(event("retry", now+60000)));
+        assertEquals(Collections.singletonList(String.format("retry x3 [%d,%d]", now+10, now+59999)), emitted);
+        assertFalse(coalescer.offer(event("retry", now+60001)));
+        coalescer.close();
+        assertEquals(String.format("retry x1 [%d,%d]", now+60001, now+60001), emitted.get(1));
+    }
+
+    // 级别或者消息不同的日志不合并；只有一个槽位时，其他签名替换并输出原来的合并结果
+    @Test
+    public void differentSignatureReplacesSlot() {
+        Coalescer coalescer= create(60000, 1);
+        long now= System.currentTimeMillis();
+        assertTrue(coalescer.offer(event("a", now)));
+        assertFalse(coalescer.offer(event("a", now+1)));
+        assertTrue(coalescer.offer(new LoggingEvent(null, Logger.getLogger("dmq.test.Coalesce"), now+2,
+                Level.ERROR, "a", null)));
+        assertEquals(Collections.singletonList(String.format("a x1 [%d,%d]", now+1, now+1)), emitted);
+        assertTrue(coalescer.offer(event("b", now+3)));
+        assertTrue(coalescer.offer(event("a", now+4)));
+        assertEquals(1, emitted.size());
+        coalescer.close();
+        assertEquals(1, emitted.size());
+        // 关闭之后不再合并
+        assertTrue(coalescer.offer(event("a", now+5)));
+    }
+
+    // 没有新的日志时，定时检查输出窗口已经结束的合并结果
+    @Test(timeout= 10000)
+    public void sweepEmitsExpiredWindows() throws Exception {
+        Coalescer coalescer= create(100, 16);
+        long now= System.currentTimeMillis();
+        assertTrue(coalescer.offer(event("tick", now)));
+        assertFalse(coalescer.offer(event("tick", now+1)));
+        assertFalse(coalescer.offer(event("tick", now+2)));
+        while(emitted.isEmpty())
+            TimeUnit.MILLISECONDS.sleep(10);
+        assertEquals(Collections.singletonList(String.format("tick x2 [%d,%d]", now+1, now+2)), emitted);
+        coalescer.close();
+        assertEquals(1, emitted.size());
+    }
+}
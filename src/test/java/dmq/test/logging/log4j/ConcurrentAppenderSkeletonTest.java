@@ -0,0 +1,48 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentAppenderSkeletonTest {
+    private static final class CountingAppender extends ConcurrentAppenderSkeleton {
+        final AtomicInteger appended= new AtomicInteger(0);
+        @Override// AppenderSkeleton
+        protected void append(LoggingEvent event) {
+            appended.incrementAndGet();
+        }
+        @Override// ConcurrentAppenderSkeleton
+        protected void appendCoalesced(EventSnapshot snapshot, long repeatCount, long firstTs, long lastTs) {
+        }
+        @Override// AppenderSkeleton
+        public synchronized void close() {
+            markClosed();
+        }
+        @Override// AppenderSkeleton
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    // 关闭之后，其他线程上不加锁的doAppend不再写入
+    @Test(timeout= 10000)
+    public void closedAppenderRejectsEventsOnOtherThreads() throws Exception {
+        CountingAppender appender= new CountingAppender();
+        LoggingEvent event= new LoggingEvent(null, Logger.getLogger("dmq.test.Closed"), Level.INFO, "message", null);
+        appender.doAppend(event);
+        assertEquals(1, appender.appended.get());
+
+        appender.close();
+        assertTrue(appender.isClosed());
+        Thread thread= new Thread(()-> appender.doAppend(event));
+        thread.start();
+        thread.join();
+        assertEquals(1, appender.appended.get());
+    }
+}
@@ -0,0 +1,91 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.bson.BSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+
+// EventEncoder的输出应当与原来的 formatEvent + putAll(extraElements) + put(saveTime) 之后的 toString 完全相同
+public class EventEncoderTest {
+    private static final TimeTextFormatter FORMATTER= new TimeTextFormatter(TimeZone.getTimeZone("Asia/Shanghai"));
+    private static final long SAVE_MILLIS= 1700000000123L;
+
+    private static LoggingEvent event(Object message, Throwable throwable) {
+        return new LoggingEvent(null, Logger.getLogger("dmq.test.Encoder"), 1699999999000L, Level.WARN,
+                message, throwable);
+    }
+    private static Map<String, Object> extras(Object... pairs) {
+        Map<String, Object> map= new LinkedHashMap<>();
+        for(int i=0; i<pairs.length; i+= 2)
+            map.put((String)pairs[i], pairs[i+1]);
+        return map;
+    }
+    // 原来的编码方式
+    private static String expected(BSONObject object, Map<String, Object> extraElements, String saveTime) {
+        if(extraElements != null)
+            object.putAll(extraElements);
+        if(saveTime != null)
+            object.put(saveTime, new Date(SAVE_MILLIS));
+        return object.toString();
+    }
+    private static void check(LoggingEvent event, Map<String, Object> extraElements, String saveTime) {
+        String expected= expected(Helper.formatEvent(FORMATTER, LocationPolicy.NEVER, null, event), extraElements, saveTime);
+        byte[] actual= EventEncoder.encode(FORMATTER, null, null, event, extraElements, saveTime, SAVE_MILLIS);
+        assertArrayEquals(expected, expected.getBytes(StandardCharsets.UTF_8), actual);
+
+        // 延迟格式化（快照，包括位置信息与异常）
+        EventSnapshot snapshot= EventSnapshot.capture(FORMATTER, null, event,
+                new LocationInfo("Encoder.java", "dmq.test.Encoder", "run", "42"));
+        expected= expected(Helper.formatEvent(snapshot), extraElements, saveTime);
+        actual= EventEncoder.encode(snapshot, extraElements, saveTime, SAVE_MILLIS);
+        assertArrayEquals(expected, expected.getBytes(StandardCharsets.UTF_8), actual);
+    }
+
+    @Test
+    public void plainEvent() {
+        check(event("plain message", null), null, "save_time");
+        check(event("plain message", null), null, null);
+        check(event(null, null), extras(), "save_time");
+    }
+
+    // 与内置字段同名的额外键值替换原来位置上的值，其他的按照顺序追加
+    @Test
+    public void extrasOverrideBuiltInFieldsInPlace() {
+        check(event("message", null), extras("app", "svc", "message", "override", "level", 7, "timestamp", null),
+                "save_time");
+        check(event("message", null), extras("exception", "none", "host", "h1"), null);
+    }
+
+    // saveTime与额外键值或者内置字段同名时，在原来的位置上替换为保存时间
+    @Test
+    public void saveTimeCollisions() {
+        check(event("message", null), extras("save_time", "old", "host", "h1"), "save_time");
+        check(event("message", null), extras("host", "h1", "save_time", "old"), "save_time");
+        check(event("message", null), extras("host", "h1"), "timestamp");
+        check(event("message", null), extras("timestamp", "old"), "timestamp");
+    }
+
+    // 非BMP字符（代理对）按照UTF-8的4字节编码，不成对的代理字符与String.getBytes相同，输出为'?'
+    @Test
+    public void nonBmpCharacters() {
+        check(event("emoji 😀 中文 𝄞", null),
+                extras("tag", "👍", "🔑", "value"), "save_time");
+        check(event("broken \uD800x \uDC00 end\uD83D", null), extras("tail", "\uDE00"), "save_time");
+    }
+
+    @Test
+    public void eventWithException() {
+        check(event("failed", new IllegalStateException("boom 💥", new RuntimeException("cause"))),
+                extras("app", "svc"), "save_time");
+    }
+}
@@ -0,0 +1,54 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventLimiterTest {
+    private static LoggingEvent event(String name, Level level) {
+        return new LoggingEvent(null, Logger.getLogger(name), level, "message", null);
+    }
+
+    @Test
+    public void parseIgnoresBadRules() {
+        assertNull(EventLimiter.parse(null, null));
+        assertNull(EventLimiter.parse(" ; bad", null));
+    }
+
+    // 最长的前缀优先，只限制不高于规则级别的日志
+    @Test
+    public void longestPrefixAndLevel() {
+        EventLimiter limiter= EventLimiter.parse("*:INFO:rate=0.01,burst=1;com.noisy:DEBUG:rate=0.01,burst=2", null);
+        try {
+            assertTrue(limiter.allow(event("com.noisy.Worker", Level.DEBUG)));
+            assertTrue(limiter.allow(event("com.noisy.Worker", Level.DEBUG)));
+            assertFalse(limiter.allow(event("com.noisy.Worker", Level.DEBUG)));
+            // com.noisy的INFO不匹配DEBUG规则，按照*的规则限流
+            assertTrue(limiter.allow(event("com.noisy.Worker", Level.INFO)));
+            assertFalse(limiter.allow(event("com.noisy", Level.INFO)));
+            assertFalse(limiter.allow(event("com.noisyother", Level.DEBUG)));
+            // 高于规则级别的日志不受影响
+            for(int i=0; i<10; i++)
+                assertTrue(limiter.allow(event("com.noisy.Worker", Level.WARN)));
+            assertTrue(limiter.dump().contains("suppressed= 2"));
+        } finally {
+            limiter.close();
+        }
+    }
+
+    @Test
+    public void sampleZeroSuppressesAll() {
+        EventLimiter limiter= EventLimiter.parse("dmq:DEBUG:sample=0", null);
+        try {
+            assertFalse(limiter.allow(event("dmq.test", Level.DEBUG)));
+            assertTrue(limiter.allow(event("other", Level.DEBUG)));
+        } finally {
+            limiter.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyStrategyTest {
+    // 用于测试class:FQCN
+    public static class FixedKey implements KeyStrategy {
+        @Override// KeyStrategy
+        public String key(LoggingEvent event) {
+            return "fixed";
+        }
+    }
+
+    @After
+    public void tearDown() {
+        MDC.remove("tenant");
+    }
+
+    private static LoggingEvent event() {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("dmq.test.Key"), Level.INFO, "message", null);
+    }
+
+    @Test
+    public void parseBuiltinStrategies() {
+        assertSame(KeyStrategy.NONE, KeyStrategy.parse("none"));
+        assertSame(KeyStrategy.LOGGER, KeyStrategy.parse(" Logger "));
+        assertSame(KeyStrategy.THREAD, KeyStrategy.parse("thread"));
+        assertEquals("json", KeyStrategy.parse("constant:json").key(event()));
+        assertNull(KeyStrategy.parse("constant:").key(event()));
+        assertNull(KeyStrategy.parse(""));
+        assertNull(KeyStrategy.parse("mdc:"));
+        assertNull(KeyStrategy.parse("unknown:x"));
+    }
+
+    @Test
+    public void keysFromEventAndSnapshot() {
+        MDC.put("tenant", "t1");
+        LoggingEvent event= event();
+        EventSnapshot snapshot= EventSnapshot.capture(null, null, event, null);
+
+        assertEquals("dmq.test.Key", KeyStrategy.LOGGER.key(event));
+        assertEquals("dmq.test.Key", KeyStrategy.LOGGER.key(snapshot));
+        assertEquals(Thread.currentThread().getName(), KeyStrategy.THREAD.key(event));
+        assertEquals(Thread.currentThread().getName(), KeyStrategy.THREAD.key(snapshot));
+        KeyStrategy mdc= KeyStrategy.parse("mdc:tenant");
+        assertEquals("t1", mdc.key(event));
+        assertEquals("t1", mdc.key(snapshot));
+        assertNull(KeyStrategy.parse("mdc:missing").key(event));
+        assertNull(KeyStrategy.NONE.key(snapshot));
+    }
+
+    @Test
+    public void parseCustomClass() {
+        KeyStrategy strategy= KeyStrategy.parse("class:"+FixedKey.class.getName());
+        assertTrue(strategy instanceof FixedKey);
+        assertEquals("fixed", strategy.key(event()));
+        assertNull(KeyStrategy.parse("class:no.such.Strategy"));
+    }
+}
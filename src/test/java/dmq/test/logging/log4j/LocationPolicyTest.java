@@ -0,0 +1,66 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LocationPolicyTest {
+    // 相当于log4j的Logger，调用位置是这个类之后的栈帧
+    private static final class FakeLogger {
+        static LocationInfo log(LocationPolicy policy, Level level) {
+            LoggingEvent event= new LoggingEvent(FakeLogger.class.getName(), Logger.getLogger("dmq.test.Location"),
+                    level, "message", null);
+            return policy.capture(event);
+        }
+        static LocationInfo walk() {
+            return StackWalkerLocator.locate(FakeLogger.class.getName());
+        }
+    }
+
+    @Test
+    public void parsePolicies() {
+        assertSame(LocationPolicy.ALWAYS, LocationPolicy.parse(null));
+        assertSame(LocationPolicy.NEVER, LocationPolicy.parse("Never"));
+        assertEquals("level:WARN", LocationPolicy.parse("level").dump());
+        assertEquals("level:ERROR", LocationPolicy.parse("level:error").dump());
+        assertSame(LocationPolicy.ALWAYS, LocationPolicy.parse("unknown"));
+    }
+
+    @Test
+    public void captureFindsTheCaller() {
+        LocationInfo info= FakeLogger.log(LocationPolicy.ALWAYS, Level.INFO);
+        assertEquals(LocationPolicyTest.class.getName(), info.getClassName());
+        assertEquals("captureFindsTheCaller", info.getMethodName());
+        assertEquals("LocationPolicyTest.java", info.getFileName());
+        assertTrue(Integer.parseInt(info.getLineNumber()) > 0);
+    }
+
+    @Test
+    public void levelPolicySkipsLowerLevels() {
+        LocationPolicy policy= LocationPolicy.parse("level:warn");
+        assertNull(FakeLogger.log(policy, Level.INFO));
+        assertEquals("levelPolicySkipsLowerLevels", FakeLogger.log(policy, Level.ERROR).getMethodName());
+        assertNull(FakeLogger.log(LocationPolicy.NEVER, Level.FATAL));
+        assertFalse(LocationPolicy.NEVER.shouldCapture(
+                new LoggingEvent(null, Logger.getLogger("x"), Level.FATAL, "message", null)));
+    }
+
+    // 运行在Java 9以上时应当使用StackWalker
+    @Test
+    public void stackWalkerIsUsedWhenAvailable() {
+        boolean java9= !System.getProperty("java.specification.version").startsWith("1.");
+        assertEquals(java9, StackWalkerLocator.AVAILABLE);
+        if(java9) {
+            assertEquals("stackWalkerIsUsedWhenAvailable", FakeLogger.walk().getMethodName());
+            assertNull(StackWalkerLocator.locate("no.such.Logger"));
+        }
+    }
+}
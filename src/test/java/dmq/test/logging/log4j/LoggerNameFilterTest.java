@@ -0,0 +1,74 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerNameFilterTest {
+    // 默认过滤org.apache.kafka的日志，只记录通过的日志名称
+    private static final class RecordingAppender extends ConcurrentAppenderSkeleton {
+        final List<String> appended= new ArrayList<>();
+        RecordingAppender() {
+            super("org.apache.kafka:"+LoggerNameFilter.EXCLUDE);
+        }
+        @Override// AppenderSkeleton
+        protected void append(LoggingEvent event) {
+            appended.add(event.getLoggerName());
+        }
+        @Override// ConcurrentAppenderSkeleton
+        protected void appendCoalesced(EventSnapshot snapshot, long repeatCount, long firstTs, long lastTs) {
+        }
+        @Override// Appender
+        public void close() {
+        }
+        @Override// Appender
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    private static LoggingEvent event(String logger, Level level) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), level, "message", null);
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        LoggerNameFilter filter= new LoggerNameFilter("*:exclude;com.example:include;com.example.noisy:WARN");
+        assertFalse(filter.accept(event("org.other", Level.ERROR)));
+        assertTrue(filter.accept(event("com.example.Service", Level.DEBUG)));
+        assertFalse(filter.accept(event("com.example.noisy.Job", Level.INFO)));
+        assertTrue(filter.accept(event("com.example.noisy.Job", Level.WARN)));
+        assertFalse(filter.accept(event("com.examples", Level.DEBUG)));
+    }
+
+    // 用户的规则不能放开驱动程序的日志
+    @Test
+    public void defaultRulesAreAHardGate() {
+        RecordingAppender appender= new RecordingAppender();
+        appender.setLoggerFilter("org.apache.kafka:include;org.apache.kafka.clients:include;com.example:WARN");
+        appender.doAppend(event("org.apache.kafka.clients.producer.KafkaProducer", Level.ERROR));
+        appender.doAppend(event("org.apache.kafka.common.Metrics", Level.ERROR));
+        appender.doAppend(event("com.example.Service", Level.INFO));
+        appender.doAppend(event("com.example.Service", Level.ERROR));
+        appender.doAppend(event("org.apache.kafkax", Level.INFO));
+
+        List<String> expected= new ArrayList<>();
+        expected.add("com.example.Service");
+        expected.add("org.apache.kafkax");
+        assertEquals(expected, appender.appended);
+
+        appender.setLoggerFilter(null);
+        appender.doAppend(event("org.apache.kafka.clients.Metadata", Level.ERROR));
+        appender.doAppend(event("com.example.Service", Level.INFO));
+        expected.add("com.example.Service");
+        assertEquals(expected, appender.appended);
+    }
+}
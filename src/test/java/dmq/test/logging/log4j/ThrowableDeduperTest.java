@@ -0,0 +1,56 @@
+package dmq.test.logging.log4j;
+
+import org.apache.log4j.spi.ThrowableInformation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ThrowableDeduperTest {
+    private static Throwable failure(String message) {
+        return new IllegalStateException(message, new RuntimeException("cause"));
+    }
+
+    // 窗口内累计次数，窗口结束之后重新从1开始
+    @Test
+    public void countsWithinWindow() {
+        ThrowableDeduper deduper= new ThrowableDeduper(1000, 16);
+        assertEquals(1, deduper.occur("a", 10000));
+        assertEquals(2, deduper.occur("a", 10500));
+        assertEquals(3, deduper.occur("a", 10999));
+        assertEquals(1, deduper.occur("b", 10999));
+        // 早于窗口开始的时间戳也算在当前窗口内
+        assertEquals(4, deduper.occur("a", 9990));
+        assertEquals(1, deduper.occur("a", 11000));
+        assertEquals(2, deduper.occur("a", 11001));
+    }
+
+    // 超出maxEntries时淘汰最久没有出现的指纹
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ThrowableDeduper deduper= new ThrowableDeduper(60000, 2);
+        deduper.occur("a", 0);
+        deduper.occur("b", 0);
+        assertEquals(2, deduper.occur("a", 1));
+        deduper.occur("c", 1);// 淘汰b
+        assertEquals(2, deduper.size());
+        assertEquals(3, deduper.occur("a", 2));
+        assertEquals(1, deduper.occur("b", 2));// 淘汰c
+        assertEquals(1, deduper.occur("c", 3));// 淘汰a
+        assertEquals(1, deduper.occur("a", 3));
+    }
+
+    // 指纹只与异常链的结构有关，与消息无关
+    @Test
+    public void fingerprintIgnoresMessage() {
+        Throwable[] same= new Throwable[2];
+        for(int i=0; i<2; i++)
+            same[i]= failure("message "+i);
+        String first= ThrowableDeduper.fingerprint(new ThrowableInformation(same[0]));
+        assertEquals(16, first.length());
+        assertEquals(first, ThrowableDeduper.fingerprint(new ThrowableInformation(same[1])));
+        assertNotEquals(first, ThrowableDeduper.fingerprint(new ThrowableInformation(failure("message 0"))));
+        assertNotEquals(first, ThrowableDeduper.fingerprint(
+                new ThrowableInformation(new IllegalArgumentException("message 0", same[0].getCause()))));
+    }
+}
@@ -0,0 +1,93 @@
+package dmq.test.logging.log4j;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+// TimeTextFormatter的输出应当与Helper.formatTime完全相同
+public class TimeTextFormatterTest {
+    // 包括半小时、45分钟的偏移，半小时的夏令时，以及南半球的夏令时
+    private static final String[] ZONES= {
+            "UTC", "Asia/Shanghai", "America/New_York", "Europe/London", "Asia/Kolkata",
+            "Asia/Kathmandu", "Australia/Adelaide", "Australia/Lord_Howe", "America/St_Johns"
+    };
+    private static final long FROM= 1500000000000L;// 2017年
+    private static final long TO= 1800000000000L;  // 2027年
+
+    private static void check(TimeTextFormatter formatter, Calendar calendar, long time) {
+        assertEquals(formatter.getTimeZone().getID()+" @"+time,
+                Helper.formatTime(calendar, time), formatter.format(time));
+    }
+
+    // 从from开始按照step依次格式化count次，step为负数时时间倒退
+    private static void walk(TimeTextFormatter formatter, Calendar calendar, long from, long step, int count) {
+        for(int i=0; i<count; i++)
+            check(formatter, calendar, from+i*step);
+    }
+
+    @Test
+    public void randomTimestamps() {
+        Random random= new Random(20161018L);
+        for(String id: ZONES) {
+            TimeZone zone= TimeZone.getTimeZone(id);
+            TimeTextFormatter formatter= new TimeTextFormatter(zone);
+            Calendar calendar= Calendar.getInstance(zone);
+            for(int i=0; i<20000; i++) {
+                long time= FROM+(long)(random.nextDouble()*(TO-FROM));
+                check(formatter, calendar, time);
+                // 同一分钟内的下一条，走替换秒数的路径
+                check(formatter, calendar, time+random.nextInt(60000));
+            }// for
+        }// for
+    }
+
+    // 跨越换分钟、换小时、换天、换年
+    @Test
+    public void minuteRollovers() {
+        for(String id: ZONES) {
+            TimeZone zone= TimeZone.getTimeZone(id);
+            TimeTextFormatter formatter= new TimeTextFormatter(zone);
+            Calendar calendar= Calendar.getInstance(zone);
+            Calendar start= Calendar.getInstance(zone);
+            start.clear();
+            start.set(2024, Calendar.DECEMBER, 31, 23, 58, 30);
+            walk(formatter, calendar, start.getTimeInMillis(), 250, 4*240);
+            walk(formatter, calendar, start.getTimeInMillis()+240000, -700, 400);
+            walk(formatter, calendar, start.getTimeInMillis(), 997, 3600);
+        }// for
+    }
+
+    // 夏令时开始、结束前后的几分钟逐秒格式化
+    @Test
+    public void daylightSavingTransitions() {
+        for(String id: ZONES) {
+            TimeZone zone= TimeZone.getTimeZone(id);
+            TimeTextFormatter formatter= new TimeTextFormatter(zone);
+            Calendar calendar= Calendar.getInstance(zone);
+            ZoneRules rules= zone.toZoneId().getRules();
+            ZoneOffsetTransition transition= rules.nextTransition(Instant.ofEpochMilli(FROM));
+            while(transition != null && transition.getInstant().toEpochMilli() < TO) {
+                long instant= transition.getInstant().toEpochMilli();
+                walk(formatter, calendar, instant-180000, 500, 720);
+                walk(formatter, calendar, instant+60000, -1000, 120);
+                transition= rules.nextTransition(transition.getInstant());
+            }// while
+        }// for
+    }
+
+    // 时区偏移不是整分钟（1972年之前的蒙罗维亚是-00:44:30）时，本地时间与UTC时间不同时换分钟，不能替换秒数
+    @Test
+    public void offsetWithSeconds() {
+        TimeZone zone= TimeZone.getTimeZone("Africa/Monrovia");
+        TimeTextFormatter formatter= new TimeTextFormatter(zone);
+        Calendar calendar= Calendar.getInstance(zone);
+        walk(formatter, calendar, -1000000000000L, 1000, 300);
+    }
+}
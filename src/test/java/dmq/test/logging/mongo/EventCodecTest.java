@@ -0,0 +1,103 @@
+package dmq.test.logging.mongo;
+
+import com.mongodb.MongoClient;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.BasicBSONList;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// EventCodec.encode的输出应当与原来的写入过程（put(saveTime)、putAll(extraElements)，再由MapCodec编码）完全相同
+public class EventCodecTest {
+    private static final CodecRegistry REGISTRY= MongoClient.getDefaultCodecRegistry();
+    private static final long SAVE_MILLIS= 1700000000123L;
+
+    private static BasicBSONObject event() {
+        BasicBSONList stack= new BasicBSONList();
+        stack.add("at dmq.test.Encoder.run(Encoder.java:42)");
+        stack.add("at java.lang.Thread.run(Thread.java:748)");
+        BasicBSONObject location= new BasicBSONObject("class", "dmq.test.Encoder").append("line", "42");
+        return new BasicBSONObject("level", "WARN")
+                .append("message", "消息 😀")
+                .append("timestamp", 1699999999000L)
+                .append("timetext", "2023-11-15 06:13:19 +0800")
+                .append("location", location)
+                .append("stack", stack)
+                .append("count", 3)
+                .append("empty", null);
+    }
+    private static BasicBSONObject extras(Object... keyValues) {
+        BasicBSONObject object= new BasicBSONObject();
+        for(int i=0; i<keyValues.length; i+= 2)
+            object.put((String)keyValues[i], keyValues[i+1]);
+        return object;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void check(BSONObject object, BSONObject extras, String saveTime) {
+        BasicBSONObject expected= new BasicBSONObject(object.toMap());
+        if(saveTime != null)
+            expected.put(saveTime, new Date(SAVE_MILLIS));
+        expected.putAll(extras);
+        RawBsonDocument old= new RawBsonDocument(expected, (Codec<Map>)REGISTRY.get(Map.class));
+
+        EventCodec codec= new EventCodec(REGISTRY, extras, saveTime);
+        RawBsonDocument actual= codec.encode(object, SAVE_MILLIS);
+        assertArrayEquals(bytes(old), bytes(actual));
+
+        BSONObject decoded= actual.decode(codec);
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(decoded.keySet()));
+        assertEquals(expected.get("message"), decoded.get("message"));
+        // 编码之后的日志不变，可以再次编码
+        assertArrayEquals(bytes(actual), bytes(codec.encode(object, SAVE_MILLIS)));
+    }
+    private static byte[] bytes(RawBsonDocument document) {
+        ByteBuffer buffer= document.getByteBuffer().asNIO();
+        byte[] bytes= new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void plainEvent() {
+        check(event(), extras(), "savetime");
+        check(event(), extras(), null);
+        check(new BasicBSONObject(), extras(), "savetime");
+        check(new BasicBSONObject(), extras("host", "a"), null);
+    }
+
+    @Test
+    public void extrasAreAppendedInOrder() {
+        check(event(), extras("host", "server-1", "pid", 1234, "tags", Arrays.asList("a", "b")), "savetime");
+        check(event(), extras("host", "server-1", "pid", 1234L), null);
+    }
+
+    // 同名的额外键值在原来的位置替换日志的字段，不同名的仍然添加在结尾
+    @Test
+    public void extrasReplaceFieldsInPlace() {
+        check(event(), extras("host", "server-1", "message", "替换", "level", 1), "savetime");
+        check(event(), extras("location", "none", "empty", "not empty"), null);
+        check(event(), extras("timetext", null, "z", true), "savetime");
+    }
+
+    // saveTime与日志的字段同名时在原位置替换；与额外的键值同名时以额外的键值为准
+    @Test
+    public void saveTimeCollisions() {
+        check(event(), extras("host", "server-1"), "timestamp");
+        check(event(), extras("host", "server-1", "savetime", "fixed"), "savetime");
+        check(event(), extras("timestamp", "fixed", "host", "server-1"), "timestamp");
+        check(event(), extras("savetime", "fixed"), "savetime");
+        check(event(), extras("savetime", new Date(1L), "level", "INFO"), "savetime");
+    }
+}